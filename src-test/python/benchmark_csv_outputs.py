@@ -0,0 +1,81 @@
+# Benchmark of the csv files written by the sync script, against writing each value with str() and
+# joining the row, and against pandas when it is installed. Run with:
+#   python3 benchmark_csv_outputs.py [rows]
+# It prints the rows and megabytes written per second by each writer, the same rows for all of them.
+import csv
+import os
+import sys
+import tempfile
+import time
+from datetime import date, datetime
+from decimal import Decimal
+
+import sync_script
+
+BATCH_ROWS = 10000
+
+
+def sample_rows(count):
+    # the kind of rows fetched by psycopg2: text, integers, numeric, dates, timestamps and nulls
+    return [(f'DOC-{index:08d}', index, Decimal(index) / 100, date(2024, 1 + index % 12, 1 + index % 28),
+             datetime(2024, 1, 1, index % 24, index % 60, index % 60), None if index % 7 else 'Note, with separator',
+             'Customer name') for index in range(count)]
+
+
+def batches(rows):
+    for start in range(0, len(rows), BATCH_ROWS):
+        yield rows[start:start + BATCH_ROWS]
+
+
+def script_writer(directory, columns, rows):
+    script = sync_script.load(['projection', 'CsvOutputs'], STORE=None, PUSHER=None, TMP_DIR=directory,
+                              OUTPUT_BUFFER=1024 * 1024, csv_separator=',', csv=csv, os=os)
+    with script['CsvOutputs'](columns, [('script.csv', None, None)]) as writer:
+        for batch in batches(rows):
+            writer.write(batch)
+    return os.path.join(directory, 'script.csv')
+
+
+def str_writer(directory, columns, rows):
+    path = os.path.join(directory, 'str.csv')
+    with open(path, 'w', encoding='utf-8', newline='', buffering=1024 * 1024) as file:
+        file.write(','.join(columns) + os.linesep)
+        for batch in batches(rows):
+            for row in batch:
+                file.write(','.join('' if value is None else str(value) for value in row) + os.linesep)
+    return path
+
+
+def pandas_writer(directory, columns, rows):
+    import pandas
+    path = os.path.join(directory, 'pandas.csv')
+    for index, batch in enumerate(batches(rows)):
+        pandas.DataFrame(batch, columns=columns, dtype=object).to_csv(
+            path, mode='a' if index else 'w', header=not index, index=False)
+    return path
+
+
+def measure(name, writer, columns, rows):
+    with tempfile.TemporaryDirectory() as directory:
+        start = time.perf_counter()
+        path = writer(directory, columns, rows)
+        elapsed = time.perf_counter() - start
+        size = os.path.getsize(path)
+    print(f'{name:8} {len(rows) / elapsed:12,.0f} rows/s {size / elapsed / 1024 / 1024:8.1f} MB/s')
+
+
+def main():
+    rows = sample_rows(int(sys.argv[1]) if len(sys.argv) > 1 else 500000)
+    columns = ['documentno', 'line', 'amount', 'dateacct', 'updated', 'description', 'name']
+    writers = [('script', script_writer), ('str', str_writer)]
+    try:
+        import pandas  # noqa: F401
+        writers.append(('pandas', pandas_writer))
+    except ImportError:
+        print('pandas is not installed, not measured')
+    for name, writer in writers:
+        measure(name, writer, columns, rows)
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,48 @@
+# HTTP server run by the tests in a thread, in place of a destination of the sync script. It keeps
+# the requests it receives and answers them with the responses queued by the test, 200 when there
+# are none left.
+import gzip
+import threading
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
+
+
+class StubServer:
+
+    def __init__(self, handle=None):
+        self.requests = []
+        self.responses = []
+        self.handle = handle
+        self.lock = threading.Lock()
+        stub = self
+
+        class Handler(BaseHTTPRequestHandler):
+
+            def do_request(self):
+                body = self.rfile.read(int(self.headers.get('Content-Length') or 0))
+                if self.headers.get('Content-Encoding') == 'gzip':
+                    body = gzip.decompress(body)
+                with stub.lock:
+                    stub.requests.append((self.command, self.path, dict(self.headers), body))
+                    response = stub.responses.pop(0) if stub.responses else None
+                if response is None and stub.handle:
+                    response = stub.handle(self.command, self.path, body)
+                status, headers, content = response or (200, {}, b'')
+                self.send_response(status)
+                for name, value in headers.items():
+                    self.send_header(name, value)
+                self.send_header('Content-Length', str(len(content)))
+                self.end_headers()
+                self.wfile.write(content)
+
+            do_GET = do_PUT = do_POST = do_DELETE = do_request
+
+            def log_message(self, *args):
+                pass
+
+        self.server = ThreadingHTTPServer(('127.0.0.1', 0), Handler)
+        self.url = f'http://127.0.0.1:{self.server.server_port}'
+        threading.Thread(target=self.server.serve_forever, daemon=True).start()
+
+    def close(self):
+        self.server.shutdown()
+        self.server.server_close()
@@ -0,0 +1,26 @@
+# Loads definitions of the sync script for the tests. The script starts the sync as soon as it is
+# imported, so the functions and classes under test are compiled from its source, together with its
+# imports and the constants given by the test.
+import ast
+import os
+
+SCRIPT = os.path.join(os.path.dirname(__file__), '..', '..', 'web', 'com.etendoerp.integration.powerbi',
+                      'etendobi_scripts', 'ETPBIC_SyncScript.py')
+
+
+def load(names, **constants):
+    with open(SCRIPT, encoding='utf-8') as file:
+        tree = ast.parse(file.read(), SCRIPT)
+    namespace = {}
+    for node in tree.body:
+        if isinstance(node, (ast.Import, ast.ImportFrom)):
+            try:
+                exec(compile(ast.Module(body=[node], type_ignores=[]), SCRIPT, 'exec'), namespace)
+            except ImportError:
+                # modules not needed by the definitions under test, like the database driver
+                pass
+    namespace.update(constants)
+    definitions = [node for node in tree.body
+                   if isinstance(node, (ast.FunctionDef, ast.ClassDef)) and node.name in names]
+    exec(compile(ast.Module(body=definitions, type_ignores=[]), SCRIPT, 'exec'), namespace)
+    return namespace
@@ -0,0 +1,75 @@
+# Tests of the HTTP push destination of the sync script against a stub ingestion endpoint.
+import json
+import logging
+import unittest
+from decimal import Decimal
+
+try:
+    import requests
+except ImportError:
+    requests = None
+
+import sync_script
+from stub_server import StubServer
+
+
+@unittest.skipUnless(requests, 'requests is not installed')
+class HttpPusherTest(unittest.TestCase):
+
+    def setUp(self):
+        self.server = StubServer()
+        self.script = sync_script.load(
+            ['json_value', 'retry_after', 'send_request', 'RequestPool', 'HttpPusher'],
+            PUSH_URL=self.server.url + '/ingest/{dataset}', PUSH_TOKEN='token', PUSH_FORMAT='json',
+            PUSH_BATCH_ROWS=2, PUSH_CONCURRENCY=1, RUN_ID='RUN1', csv_separator=',',
+            REQUEST_MAX_ATTEMPTS=3, REQUEST_BASE_BACKOFF=0, REQUEST_MAX_BACKOFF=0, REQUEST_TIMEOUT=10,
+            LOGGER=logging.getLogger('test'))
+
+    def tearDown(self):
+        self.server.close()
+
+    def push(self, file_name, columns, rows):
+        pusher = self.script['HttpPusher']()
+        pusher.send(file_name, columns, rows)
+        pusher.publish()
+        return pusher
+
+    def test_batches_have_idempotency_keys(self):
+        """The rows go in batches of PUSH_BATCH_ROWS, each one with the run, the dataset and its number as key."""
+        pusher = self.push('EBI_Sales.csv', ['id'], [(1,), (2,), (3,)])
+
+        self.assertEqual(3, pusher.pushed)
+        self.assertEqual(['/ingest/EBI_Sales'] * 2, [path for _, path, _, _ in self.server.requests])
+        self.assertEqual(['RUN1:EBI_Sales:1', 'RUN1:EBI_Sales:2'],
+                         [headers['Idempotency-Key'] for _, _, headers, _ in self.server.requests])
+        self.assertEqual([[{'id': 1}, {'id': 2}], [{'id': 3}]],
+                         [json.loads(body)['rows'] for _, _, _, body in self.server.requests])
+        self.assertEqual('Bearer token', self.server.requests[0][2]['Authorization'])
+
+    def test_retry_keeps_idempotency_key(self):
+        """A batch retried after an error response is sent again with the same key."""
+        self.server.responses.append((503, {'Retry-After': '0'}, b''))
+
+        self.push('EBI_Sales.csv', ['id'], [(1,)])
+
+        self.assertEqual(['RUN1:EBI_Sales:1', 'RUN1:EBI_Sales:1'],
+                         [headers['Idempotency-Key'] for _, _, headers, _ in self.server.requests])
+
+    def test_decimals_keep_their_digits(self):
+        """Numeric values are sent with all their digits instead of rounded to a float."""
+        self.push('EBI_Sales.csv', ['amount'], [(Decimal('12345678901234567890.123456789'),), (Decimal('0.10'),)])
+
+        rows = json.loads(self.server.requests[0][3])['rows']
+        self.assertEqual(['12345678901234567890.123456789', '0.10'], [row['amount'] for row in rows])
+
+    def test_client_error_not_retried(self):
+        """A rejected batch fails the push without being retried."""
+        self.server.responses.append((400, {}, b'bad batch'))
+
+        with self.assertRaises(requests.HTTPError):
+            self.push('EBI_Sales.csv', ['id'], [(1,)])
+        self.assertEqual(1, len(self.server.requests))
+
+
+if __name__ == '__main__':
+    unittest.main()
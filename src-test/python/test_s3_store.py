@@ -0,0 +1,136 @@
+# Tests of the S3 compatible object storage destination of the sync script against a stub store.
+import hashlib
+import json
+import logging
+import re
+import unittest
+from urllib.parse import parse_qs, unquote, urlsplit
+
+try:
+    import requests
+except ImportError:
+    requests = None
+
+import sync_script
+from stub_server import StubServer
+
+BUCKET = 'bi'
+PREFIX = 'client/org/'
+
+
+class StubStore:
+    # objects and multipart uploads of a bucket, kept in memory
+
+    def __init__(self):
+        self.objects = {}
+        self.uploads = {}
+        self.failing_parts = set()
+
+    def handle(self, method, path, body):
+        url = urlsplit(path)
+        key = unquote(url.path)[len(f'/{BUCKET}/'):]
+        params = {name: values[0] for name, values in parse_qs(url.query, keep_blank_values=True).items()}
+        if method == 'GET' and 'uploads' in params:
+            uploads = ''.join(f'<Upload><Key>{upload_key}</Key><UploadId>{upload_id}</UploadId></Upload>'
+                              for upload_id, (upload_key, _) in self.uploads.items()
+                              if upload_key.startswith(params.get('prefix', '')))
+            return 200, {}, (f'<ListMultipartUploadsResult>{uploads}<IsTruncated>false</IsTruncated>'
+                             f'</ListMultipartUploadsResult>').encode('utf-8')
+        if method == 'POST' and 'uploads' in params:
+            upload_id = f'upload{len(self.uploads) + 1}'
+            self.uploads[upload_id] = (key, {})
+            return 200, {}, f'<InitiateMultipartUploadResult><UploadId>{upload_id}</UploadId></InitiateMultipartUploadResult>'.encode('utf-8')
+        if method == 'PUT' and 'partNumber' in params:
+            if int(params['partNumber']) in self.failing_parts:
+                return 400, {}, b'<Error><Code>InvalidPart</Code></Error>'
+            self.uploads[params['uploadId']][1][int(params['partNumber'])] = body
+            return 200, {'ETag': f'"{hashlib.md5(body).hexdigest()}"'}, b''
+        if method == 'POST' and 'uploadId' in params:
+            upload_key, parts = self.uploads.pop(params['uploadId'])
+            numbers = [int(number) for number in re.findall(r'<PartNumber>(\d+)</PartNumber>', body.decode('utf-8'))]
+            self.objects[upload_key] = b''.join(parts[number] for number in numbers)
+            return 200, {'ETag': '"complete"'}, b'<CompleteMultipartUploadResult/>'
+        if method == 'DELETE' and 'uploadId' in params:
+            return (204, {}, b'') if self.uploads.pop(params['uploadId'], None) else (404, {}, b'')
+        if method == 'PUT':
+            self.objects[key] = body
+            return 200, {'ETag': '"single"'}, b''
+        if method == 'GET':
+            return (200, {}, self.objects[key]) if key in self.objects else (404, {}, b'<Error/>')
+        if method == 'DELETE':
+            self.objects.pop(key, None)
+            return 204, {}, b''
+        return 400, {}, b''
+
+
+@unittest.skipUnless(requests, 'requests is not installed')
+class S3StoreTest(unittest.TestCase):
+
+    def setUp(self):
+        self.store = StubStore()
+        self.server = StubServer(self.store.handle)
+        self.script = sync_script.load(
+            ['retry_after', 'send_request', 'RequestPool', 's3_signature_key', 's3_authorization', 'S3Store',
+             'S3Object'],
+            S3_BUCKET=BUCKET, S3_ENDPOINT=self.server.url, S3_PREFIX=PREFIX, S3_REGION='us-east-1',
+            S3_ACCESS_KEY='access', S3_SECRET_KEY='secret', S3_PART_SIZE=8, S3_CONCURRENCY=2,
+            S3_MANIFEST='manifest.json', OUTPUT_BUFFER=4, RUN_ID='RUN1', REQUEST_MAX_ATTEMPTS=2,
+            REQUEST_BASE_BACKOFF=0, REQUEST_MAX_BACKOFF=0, REQUEST_TIMEOUT=10, LOGGER=logging.getLogger('test'))
+
+    def tearDown(self):
+        self.server.close()
+
+    def upload(self, file_name, text):
+        s3 = self.script['S3Store']()
+        file = s3.open(file_name)
+        file.write(text)
+        file.close()
+        return s3
+
+    def test_multipart_upload_published(self):
+        """A dataset larger than a part is uploaded in parts and published in the manifest."""
+        s3 = self.upload('EBI_Sales.csv', 'id\n1\n2\n3\n4\n5\n6\n7\n')
+        s3.publish()
+
+        manifest = json.loads(self.store.objects[PREFIX + 'manifest.json'])
+        entry = manifest['files']['EBI_Sales.csv']
+        self.assertEqual(PREFIX + 'RUN1/EBI_Sales.csv', entry['key'])
+        self.assertEqual(b'id\n1\n2\n3\n4\n5\n6\n7\n', self.store.objects[entry['key']])
+        self.assertEqual(hashlib.sha256(b'id\n1\n2\n3\n4\n5\n6\n7\n').hexdigest(), entry['sha256'])
+        self.assertEqual({}, self.store.uploads)
+
+    def test_failed_part_aborts_upload(self):
+        """An upload whose part is rejected is aborted, so its stored parts don't remain in the bucket."""
+        self.store.failing_parts.add(2)
+
+        with self.assertRaises(requests.HTTPError):
+            self.upload('EBI_Sales.csv', 'id\n1\n2\n3\n4\n5\n6\n7\n')
+
+        self.assertEqual({}, self.store.uploads)
+        self.assertNotIn(PREFIX + 'RUN1/EBI_Sales.csv', self.store.objects)
+
+    def test_publish_aborts_uploads_of_previous_runs(self):
+        """The uploads left by a run that was killed are aborted by the next run that publishes."""
+        self.store.uploads['orphan'] = (PREFIX + 'RUN0/EBI_Sales.csv', {1: b'id\n1\n'})
+        self.store.uploads['other'] = ('other/org/RUN0/EBI_Sales.csv', {1: b'id\n1\n'})
+
+        self.upload('EBI_Sales.csv', 'id\n1\n').publish()
+
+        self.assertEqual(['other'], list(self.store.uploads))
+
+    def test_unchanged_dataset_keeps_object(self):
+        """A dataset with the same content as in the last manifest keeps its object."""
+        self.upload('EBI_Sales.csv', 'id\n1\n2\n3\n4\n5\n6\n7\n').publish()
+        self.script['RUN_ID'] = 'RUN2'
+
+        s3 = self.upload('EBI_Sales.csv', 'id\n1\n2\n3\n4\n5\n6\n7\n')
+        s3.publish()
+
+        self.assertEqual(1, s3.reused)
+        manifest = json.loads(self.store.objects[PREFIX + 'manifest.json'])
+        self.assertEqual(PREFIX + 'RUN1/EBI_Sales.csv', manifest['files']['EBI_Sales.csv']['key'])
+        self.assertEqual({}, self.store.uploads)
+
+
+if __name__ == '__main__':
+    unittest.main()
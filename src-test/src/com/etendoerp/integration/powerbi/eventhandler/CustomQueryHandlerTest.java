@@ -5,6 +5,8 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 
 import org.junit.After;
@@ -17,10 +19,13 @@ import org.mockito.junit.MockitoJUnitRunner;
 import org.openbravo.base.model.Entity;
 import org.openbravo.base.model.ModelProvider;
 import org.openbravo.base.model.Property;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
 import org.openbravo.client.kernel.event.EntityNewEvent;
 import org.openbravo.client.kernel.event.EntityUpdateEvent;
 
+import com.etendoerp.integration.powerbi.data.BiQuery;
 import com.etendoerp.integration.powerbi.data.BiQueryCustom;
+import com.etendoerp.integration.powerbi.processes.StaleDatasets;
 
 /**
  * Test class for {@link CustomQueryHandler} to validate event handling
@@ -34,6 +39,7 @@ import com.etendoerp.integration.powerbi.data.BiQueryCustom;
  * <ul>
  *   <li>Validating query on new entity save</li>
  *   <li>Validating query on entity update</li>
+ *   <li>Marking the base query stale on save, update and delete</li>
  *   <li>Verifying observed entities</li>
  * </ul>
  * </p>
@@ -44,6 +50,7 @@ public class CustomQueryHandlerTest {
     private CustomQueryHandler customQueryHandler;
     private MockedStatic<ModelProvider> mockedModelProvider;
     private MockedStatic<QueryValidationUtil> mockedQueryValidationUtil;
+    private MockedStatic<StaleDatasets> mockedStaleDatasets;
 
     @Mock
     private ModelProvider modelProvider;
@@ -60,6 +67,15 @@ public class CustomQueryHandlerTest {
     @Mock
     private EntityUpdateEvent updateEvent;
 
+    @Mock
+    private EntityDeleteEvent deleteEvent;
+
+    @Mock
+    private Property biQueryProperty;
+
+    @Mock
+    private BiQuery biQuery;
+
     /**
      * Sets up the test environment before each test method.
      *
@@ -76,6 +92,7 @@ public class CustomQueryHandlerTest {
     public void setUp() {
         mockedModelProvider = mockStatic(ModelProvider.class);
         mockedQueryValidationUtil = mockStatic(QueryValidationUtil.class);
+        mockedStaleDatasets = mockStatic(StaleDatasets.class);
 
         mockedModelProvider.when(ModelProvider::getInstance).thenReturn(modelProvider);
         when(modelProvider.getEntity(BiQueryCustom.ENTITY_NAME)).thenReturn(mockEntity);
@@ -84,6 +101,7 @@ public class CustomQueryHandlerTest {
 
         customQueryHandler = new TestableCustomQueryHandler();
         customQueryHandler.customQueryProp = customQueryProperty;
+        customQueryHandler.biQueryProp = biQueryProperty;
 
 
         mockedQueryValidationUtil.when(() ->
@@ -102,6 +120,9 @@ public class CustomQueryHandlerTest {
         if (mockedQueryValidationUtil != null) {
             mockedQueryValidationUtil.close();
         }
+        if (mockedStaleDatasets != null) {
+            mockedStaleDatasets.close();
+        }
     }
 
     /**
@@ -133,6 +154,34 @@ public class CustomQueryHandlerTest {
             QueryValidationUtil.queryValidation(any(), any(), any()));
     }
 
+    /**
+     * Tests that saving, updating or deleting a custom query marks its base query stale, so its
+     * dataset is re-synced.
+     */
+    @Test
+    public void testChangesMarkBaseQueryStale() throws Exception {
+        when(biQuery.getId()).thenReturn("queryId");
+        when(newEvent.getCurrentState(biQueryProperty)).thenReturn(biQuery);
+        when(updateEvent.getCurrentState(biQueryProperty)).thenReturn(biQuery);
+        when(deleteEvent.getCurrentState(biQueryProperty)).thenReturn(biQuery);
+
+        customQueryHandler.onSave(newEvent);
+        customQueryHandler.onUpdate(updateEvent);
+        customQueryHandler.onDelete(deleteEvent);
+
+        mockedStaleDatasets.verify(() -> StaleDatasets.mark("queryId"), times(3));
+    }
+
+    /**
+     * Tests that a custom query without base query marks nothing stale.
+     */
+    @Test
+    public void testWithoutBaseQueryMarksNothing() {
+        customQueryHandler.onDelete(deleteEvent);
+
+        mockedStaleDatasets.verify(() -> StaleDatasets.mark(any()), never());
+    }
+
     /**
      * Tests retrieval of observed entities.
      *
@@ -10,6 +10,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.lang.reflect.Field;
+import java.util.Date;
 
 import org.apache.logging.log4j.Logger;
 import org.junit.After;
@@ -25,6 +26,7 @@ import org.openbravo.base.model.ModelProvider;
 import org.openbravo.base.model.Property;
 import org.openbravo.client.kernel.event.EntityDeleteEvent;
 import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
 import org.openbravo.erpCommon.utility.OBMessageUtils;
 
 import com.etendoerp.integration.powerbi.data.BiQuery;
@@ -48,12 +50,21 @@ public class EtendoBaseQueryHandlerTest {
   @Mock
   private Property queryProperty;
 
+  @Mock
+  private Property materializedProperty;
+
+  @Mock
+  private Property staleSinceProperty;
+
   @Mock
   private EntityDeleteEvent deleteEvent;
 
   @Mock
   private EntityNewEvent newEvent;
 
+  @Mock
+  private EntityUpdateEvent updateEvent;
+
   @Mock
   private Logger logger;
 
@@ -80,10 +91,15 @@ public class EtendoBaseQueryHandlerTest {
 
     when(mockEntity.getProperty(BiQuery.PROPERTY_ISETENDOBASE)).thenReturn(isEtendoBaseProperty);
     when(mockEntity.getProperty(BiQuery.PROPERTY_QUERY)).thenReturn(queryProperty);
+    when(mockEntity.getProperty(BiQuery.PROPERTY_MATERIALIZED)).thenReturn(materializedProperty);
 
     handler = new TestableEtendoBaseQueryHandler(logger);
 
     setEntitiesFieldUsingReflection(handler, new Entity[]{ mockEntity });
+    // the properties are read when the handler is created, from the entity of the first test
+    handler.queryProp = queryProperty;
+    handler.materializedProp = materializedProperty;
+    handler.staleSinceProp = staleSinceProperty;
   }
 
   /**
@@ -165,6 +181,54 @@ public class EtendoBaseQueryHandlerTest {
     handler.onDelete(deleteEvent);
   }
 
+  /**
+   * Tests that a materialized query without references to intermediate queries is saved, its view
+   * is created by the background process.
+   */
+  @Test
+  public void testOnSaveMaterializedQuery() {
+    when(newEvent.getCurrentState(materializedProperty)).thenReturn(true);
+    when(newEvent.getCurrentState(queryProperty)).thenReturn("SELECT 1");
+
+    handler.onSave(newEvent);
+
+    verify(newEvent).getCurrentState(queryProperty);
+  }
+
+  /**
+   * Tests that a materialized query can't reference intermediate queries.
+   */
+  @Test(expected = OBException.class)
+  public void testOnSaveMaterializedWithIntermediateReference() {
+    when(newEvent.getCurrentState(materializedProperty)).thenReturn(true);
+    when(newEvent.getCurrentState(queryProperty)).thenReturn("SELECT * FROM {{Invoice lines}}");
+
+    handler.onSave(newEvent);
+  }
+
+  /**
+   * Tests that a materialized query updated to reference intermediate queries is rejected.
+   */
+  @Test(expected = OBException.class)
+  public void testOnUpdateMaterializedWithIntermediateReference() {
+    when(updateEvent.getCurrentState(materializedProperty)).thenReturn(true);
+    when(updateEvent.getCurrentState(queryProperty)).thenReturn("SELECT * FROM {{Invoice lines}}");
+
+    handler.onUpdate(updateEvent);
+  }
+
+  /**
+   * Tests that saving a query, new or existing, marks its dataset stale so it is re-synced.
+   */
+  @Test
+  public void testOnSaveAndUpdateMarkStale() {
+    handler.onSave(newEvent);
+    handler.onUpdate(updateEvent);
+
+    verify(newEvent).setCurrentState(eq(staleSinceProperty), any(Date.class));
+    verify(updateEvent).setCurrentState(eq(staleSinceProperty), any(Date.class));
+  }
+
   /**
    * Tests the getObservedEntities method to verify that the correct entities are returned.
    */
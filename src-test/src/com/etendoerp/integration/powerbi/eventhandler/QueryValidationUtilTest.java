@@ -1,5 +1,7 @@
 package com.etendoerp.integration.powerbi.eventhandler;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mockStatic;
@@ -151,4 +153,32 @@ public class QueryValidationUtilTest {
 
         verify(logger).info(CUSTOM_QUERY_CREATED);
     }
-}
\ No newline at end of file
+
+    /**
+     * Tests that a query followed by another statement is rejected.
+     * Verifies that an OBException is thrown.
+     */
+    @Test(expected = OBException.class)
+    public void testQueryValidationMultipleStatementsThrowsException() {
+        mockedOBMessageUtils.when(() -> OBMessageUtils.messageBD("ETPBIC_MultipleStatements"))
+            .thenReturn("The query can only have one statement");
+        when(event.getCurrentState(property)).thenReturn("SELECT 1; DROP TABLE c_order");
+
+        QueryValidationUtil.queryValidation(event, property, logger);
+    }
+
+    /**
+     * Tests that semicolons in literals, quoted identifiers, comments and a final semicolon don't
+     * count as other statements, and that the ones after them do.
+     */
+    @Test
+    public void testIsSingleStatement() {
+        assertTrue(QueryValidationUtil.isSingleStatement("SELECT 1;"));
+        assertTrue(QueryValidationUtil.isSingleStatement("SELECT 1; -- end\n/* ; */"));
+        assertTrue(QueryValidationUtil.isSingleStatement("SELECT 'a;''b' AS \"c;d\", E'\\';' FROM t"));
+        assertTrue(QueryValidationUtil.isSingleStatement("SELECT $$;$$, $tag$ ; $tag$ /* /* ; */ ; */"));
+        assertFalse(QueryValidationUtil.isSingleStatement("SELECT 'a;''b'; DELETE FROM t"));
+        assertFalse(QueryValidationUtil.isSingleStatement("SELECT $tag$;$tag$; DELETE FROM t"));
+        assertFalse(QueryValidationUtil.isSingleStatement("SELECT 'not closed; DELETE FROM t"));
+    }
+}
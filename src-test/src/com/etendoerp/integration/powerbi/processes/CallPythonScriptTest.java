@@ -16,6 +16,7 @@ import static org.mockito.Mockito.when;
 import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.List;
 import java.util.Properties;
 
 import javax.servlet.ServletContext;
@@ -455,6 +456,32 @@ public class CallPythonScriptTest extends WeldBaseTest {
     assertThrows(OBException.class, () -> callPythonScript.doExecute(processBundle));
   }
 
+  /**
+   * Tests that optional script arguments are appended as key=value pairs and skipped when empty.
+   */
+  @Test
+  public void testAppendExtraArg() {
+    StringBuilder args = new StringBuilder("url,");
+
+    CallPythonScript.appendExtraArg(args, "run_id", "ABC");
+    CallPythonScript.appendExtraArg(args, "status_webhook", "");
+    CallPythonScript.appendExtraArg(args, "name", "a,b");
+
+    assertEquals("url,run_id=ABC,name=a_b,", args.toString());
+  }
+
+  /**
+   * Tests that dataset names are encoded, so their commas and semicolons don't split the list.
+   */
+  @Test
+  public void testJoinNames() {
+    StringBuilder args = new StringBuilder();
+
+    CallPythonScript.appendExtraArg(args, "only", CallPythonScript.joinNames(List.of("Sales, 2024", "A;B", "C")));
+
+    assertEquals("only=Sales%2C+2024;A%3BB;C,", args.toString());
+  }
+
   /**
    * Cleans up resources and closes static mocks after each test.
    */
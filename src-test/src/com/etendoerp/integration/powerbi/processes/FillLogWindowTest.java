@@ -1,14 +1,29 @@
 package com.etendoerp.integration.powerbi.processes;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
 import org.junit.Before;
@@ -50,6 +65,7 @@ public class FillLogWindowTest {
     public static final String TEST_ORG = "testOrg";
     public static final String INFO = "INFO";
     public static final String LOG_CREATION_ERROR = "Log Creation Error";
+    public static final String LOG_ID = "testLogId";
 
     @Rule
     public ExpectedException thrown = ExpectedException.none();
@@ -72,6 +88,12 @@ public class FillLogWindowTest {
     @Mock
     private OBProvider mockOBProvider;
 
+    @Mock
+    private Connection mockConnection;
+
+    @Mock
+    private PreparedStatement mockStatement;
+
     private MockedStatic<OBDal> mockedOBDal;
     private MockedStatic<OBContext> mockedOBContext;
     private MockedStatic<OBProvider> mockedOBProvider;
@@ -209,4 +231,178 @@ public class FillLogWindowTest {
 
         verify(mockBiLog).setLogType("");
     }
+
+    /**
+     * Tests that a base64 encoded gzip chunk is decoded back to the original text.
+     *
+     * @throws IOException if the chunk can't be decoded
+     */
+    @Test
+    public void testDecodeChunk() throws IOException {
+        String text = "line 1\nline 2 with \u00f1\n";
+        try (Reader reader = FillLogWindow.decodeChunk(compress(text))) {
+            StringBuilder decoded = new StringBuilder();
+            char[] buffer = new char[8];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                decoded.append(buffer, 0, read);
+            }
+            assertEquals(text, decoded.toString());
+        }
+    }
+
+    /**
+     * Tests that a chunk cut in the middle of a character is rejected.
+     *
+     * @throws IOException if the chunk can't be decoded
+     */
+    @Test
+    public void testDecodeChunkCutInCharacter() throws IOException {
+        byte[] text = "line with \u00f1".getBytes(StandardCharsets.UTF_8);
+        thrown.expect(MalformedInputException.class);
+
+        try (Reader reader = FillLogWindow.decodeChunk(compress(Arrays.copyOf(text, text.length - 1)))) {
+            char[] buffer = new char[8];
+            while (reader.read(buffer) != -1) {
+                // the error is raised once the end of the chunk is reached
+            }
+        }
+    }
+
+    /**
+     * Tests that the first chunk of a log creates a new log entry, appends the chunk to it
+     * and returns the id of the entry.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testFirstChunkCreatesLog() throws Exception {
+        parameters.put(ORGANIZATION, TEST_ORG);
+        parameters.put(LOG_TYPE, "Running");
+        parameters.put("chunk", compress(TEST_MESSAGE));
+
+        when(mockBiLog.getId()).thenReturn(LOG_ID);
+        when(mockDal.getConnection(true)).thenReturn(mockConnection);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+
+        fillLogWindow.get(parameters, responseVars);
+
+        verify(mockBiLog).setMessage("");
+        verify(mockDal).save(mockBiLog);
+        verify(mockStatement).setCharacterStream(eq(1), any(Reader.class));
+        verify(mockStatement).setString(2, "Running");
+        verify(mockStatement).setString(3, LOG_ID);
+        verify(mockStatement).setNull(4, Types.BIGINT);
+        verify(mockStatement).executeUpdate();
+        assertEquals(LOG_ID, responseVars.get("logid"));
+    }
+
+    /**
+     * Tests that chunks including a log id are appended to the existing entry without
+     * creating a new one.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testChunkAppendedToExistingLog() throws Exception {
+        parameters.put("logid", LOG_ID);
+        parameters.put(LOG_TYPE, "Success");
+        parameters.put("chunk", compress(TEST_MESSAGE));
+
+        when(mockDal.get(BiLog.class, LOG_ID)).thenReturn(mockBiLog);
+        when(mockDal.getConnection(true)).thenReturn(mockConnection);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+
+        fillLogWindow.get(parameters, responseVars);
+
+        verify(mockDal, never()).save(any(BiLog.class));
+        verify(mockStatement).setString(2, "Success");
+        verify(mockStatement).setString(3, LOG_ID);
+        verify(mockStatement).executeUpdate();
+        assertEquals(LOG_ID, responseVars.get("logid"));
+    }
+
+    /**
+     * Tests that a chunk including the id of a log that doesn't exist yet creates the entry with
+     * that id, so a first chunk sent again doesn't create a second entry.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testChunkCreatesLogWithItsId() throws Exception {
+        parameters.put(ORGANIZATION, TEST_ORG);
+        parameters.put("logid", LOG_ID);
+        parameters.put(LOG_TYPE, "Running");
+        parameters.put("offset", "0");
+        parameters.put("chunk", compress(TEST_MESSAGE));
+
+        when(mockBiLog.getId()).thenReturn(LOG_ID);
+        when(mockDal.getConnection(true)).thenReturn(mockConnection);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+
+        fillLogWindow.get(parameters, responseVars);
+
+        verify(mockBiLog).setId(LOG_ID);
+        verify(mockDal).save(mockBiLog);
+        verify(mockStatement).setString(3, LOG_ID);
+        verify(mockStatement).setLong(4, 0L);
+        assertEquals(LOG_ID, responseVars.get("logid"));
+    }
+
+    /**
+     * Tests that a chunk is appended only at its offset, and a chunk sent again after it was
+     * appended is skipped without failing.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testChunkSentAgainSkipped() throws Exception {
+        parameters.put("logid", LOG_ID);
+        parameters.put(LOG_TYPE, "Running");
+        parameters.put("offset", "1024");
+        parameters.put("chunk", compress(TEST_MESSAGE));
+
+        when(mockDal.get(BiLog.class, LOG_ID)).thenReturn(mockBiLog);
+        when(mockDal.getConnection(true)).thenReturn(mockConnection);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+        when(mockStatement.executeUpdate()).thenReturn(0);
+
+        fillLogWindow.get(parameters, responseVars);
+
+        verify(mockConnection).prepareStatement(contains("octet_length(message) ="));
+        verify(mockStatement).setLong(4, 1024L);
+        verify(mockDal, never()).save(any(BiLog.class));
+        assertEquals(LOG_ID, responseVars.get("logid"));
+    }
+
+    /**
+     * Tests that a chunk with an offset that is not a number fails.
+     */
+    @Test
+    public void testChunkWithInvalidOffset() {
+        parameters.put("logid", LOG_ID);
+        parameters.put("offset", "abc");
+        parameters.put("chunk", compress(TEST_MESSAGE));
+
+        when(mockDal.get(BiLog.class, LOG_ID)).thenReturn(mockBiLog);
+
+        thrown.expect(OBException.class);
+        thrown.expectMessage(LOG_CREATION_ERROR);
+
+        fillLogWindow.get(parameters, responseVars);
+    }
+
+    private static String compress(String text) {
+        return compress(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String compress(byte[] text) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(text);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
 }
@@ -0,0 +1,92 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.etendoerp.integration.powerbi.processes.MaterializedQueryViews.ViewState;
+
+/**
+ * Test class for MaterializedQueryViews, which manages the materialized views of the BI queries.
+ */
+public class MaterializedQueryViewsTest {
+
+    private static final String QUERY = "SELECT 'x' AS id, ad_client_id AS clientid, ad_org_id AS orgid FROM ad_org";
+    private static final long NOW = 100_000_000L;
+
+    /**
+     * Tests that the name of a view matches {@code 'etpbic_mv_' || left(md5(query), 24)} in
+     * PostgreSQL, and changes with the text of the query.
+     */
+    @Test
+    public void testViewName() {
+        assertEquals("etpbic_mv_d41d8cd98f00b204e9800998", MaterializedQueryViews.viewName(""));
+        assertEquals(MaterializedQueryViews.viewName(QUERY), MaterializedQueryViews.viewName(QUERY));
+        assertNotEquals(MaterializedQueryViews.viewName(QUERY), MaterializedQueryViews.viewName(QUERY + " "));
+        assertEquals(MaterializedQueryViews.VIEW_PREFIX.length() + MaterializedQueryViews.HASH_LENGTH,
+                MaterializedQueryViews.viewName(QUERY).length());
+    }
+
+    /**
+     * Tests that the state written in the comment of a view is read back, and that a view without
+     * comment is taken as never refreshed.
+     */
+    @Test
+    public void testStateComment() {
+        ViewState state = ViewState.parse(true, false, ViewState.format(NOW, 42));
+
+        assertEquals(NOW, state.refreshed);
+        assertEquals(42, state.changes);
+
+        ViewState empty = ViewState.parse(true, false, null);
+
+        assertEquals(0, empty.refreshed);
+        assertEquals(-1, empty.changes);
+    }
+
+    /**
+     * Tests that an empty view is always due, and a filled one only when its sources changed and
+     * the refresh minutes passed.
+     */
+    @Test
+    public void testIsDue() {
+        assertTrue(new ViewState(false, false, NOW, 42).isDue(42, 60, NOW));
+
+        ViewState state = new ViewState(true, true, NOW, 42);
+        long later = NOW + TimeUnit.MINUTES.toMillis(60);
+
+        assertFalse(state.isDue(42, 0, later));
+        assertFalse(state.isDue(50, 60, later - 1));
+        assertTrue(state.isDue(50, 60, later));
+        assertTrue(state.isDue(50, 0, NOW));
+        // the statistics were reset
+        assertTrue(state.isDue(3, 0, NOW));
+    }
+
+    /**
+     * Tests that the views are owned by the configured user, or the read only one, and never by
+     * the owner of the schema.
+     */
+    @Test
+    public void testViewOwner() {
+        Properties properties = new Properties();
+        properties.setProperty("bbdd.user", "tad");
+        assertNull(MaterializedQueryViews.getViewOwner(properties));
+
+        properties.setProperty("bbdd.readonly.user", "tad");
+        assertNull(MaterializedQueryViews.getViewOwner(properties));
+
+        properties.setProperty("bbdd.readonly.user", "tad_ro");
+        assertEquals("tad_ro", MaterializedQueryViews.getViewOwner(properties));
+
+        properties.setProperty(MaterializedQueryViews.OWNER_USER_PROPERTY, "tad_bi");
+        assertEquals("tad_bi", MaterializedQueryViews.getViewOwner(properties));
+    }
+}
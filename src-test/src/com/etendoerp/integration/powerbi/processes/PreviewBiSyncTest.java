@@ -0,0 +1,84 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import com.etendoerp.integration.powerbi.processes.PreviewBiSync.Estimate;
+import com.etendoerp.integration.powerbi.processes.PreviewBiSync.Report;
+
+/**
+ * Test class for PreviewBiSync, which estimates a sync run from the report of the script.
+ */
+public class PreviewBiSyncTest {
+
+    private static Report read(String output) throws IOException {
+        return Report.read(new BufferedReader(new StringReader(output)));
+    }
+
+    /**
+     * Tests that the estimates and the errors are read from the output of the script, ignoring
+     * the rest of its lines, and added up.
+     */
+    @Test
+    public void testReadReport() throws IOException {
+        Report report = read("some warning\n"
+                + "ETPBIC_PREVIEW\tinvoices\t1200\tY\t50000\t1500\tN\n"
+                + "ETPBIC_PREVIEW\torders\t800000\tN\t90000000\t300000\tY\n"
+                + "ETPBIC_PREVIEW_ERROR\tbroken\tsyntax error at or near \"FROM\"\n");
+
+        assertEquals(2, report.estimates.size());
+        Estimate invoices = report.estimates.get(0);
+        assertEquals("invoices", invoices.dataset);
+        assertTrue(invoices.counted);
+        assertFalse(invoices.cached);
+        assertFalse(report.estimates.get(1).counted);
+        assertTrue(report.estimates.get(1).cached);
+        assertEquals("syntax error at or near \"FROM\"", report.errors.get("broken"));
+        assertEquals(801200, report.totalRows());
+        assertEquals(90050000, report.totalBytes());
+        assertEquals(301500, report.totalDatabaseMillis());
+    }
+
+    /**
+     * Tests that an error of the whole run, without dataset, is read.
+     */
+    @Test
+    public void testReadRunError() throws IOException {
+        Report report = read("ETPBIC_PREVIEW_ERROR\t\tintermediate query 'lines' not found\n");
+
+        assertTrue(report.estimates.isEmpty());
+        assertEquals("intermediate query 'lines' not found", report.errors.get("run"));
+    }
+
+    /**
+     * Tests the transfer time and the description of an estimate.
+     */
+    @Test
+    public void testDescribeEstimate() {
+        Estimate estimate = new Estimate("orders", 800000, false, 12_500_000, 300000, true);
+
+        assertEquals(1000, Estimate.transferMillis(12_500_000, 12_500_000));
+        assertEquals("orders: 800000 rows (planner estimate), 11.9 MB, more than 5m 00s of database time,"
+                + " 1.0s of transfer time (cached)", estimate.describe(12_500_000));
+    }
+
+    /**
+     * Tests the formats of the sizes and the durations.
+     */
+    @Test
+    public void testFormats() {
+        assertEquals("512 B", PreviewBiSync.formatBytes(512));
+        assertEquals("1.5 KB", PreviewBiSync.formatBytes(1536));
+        assertEquals("2.0 GB", PreviewBiSync.formatBytes(2L * 1024 * 1024 * 1024));
+        assertEquals("1.5s", PreviewBiSync.formatDuration(1500));
+        assertEquals("2m 05s", PreviewBiSync.formatDuration(125_000));
+        assertEquals("1h 01m", PreviewBiSync.formatDuration(3_660_000));
+    }
+}
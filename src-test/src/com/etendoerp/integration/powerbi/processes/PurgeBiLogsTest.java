@@ -0,0 +1,192 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockedStatic;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+
+/**
+ * Test class for the PurgeBiLogs and DecompressLogMessage processes, covering the batched
+ * deletion of log entries and the compression and restoration of their messages.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PurgeBiLogsTest {
+
+    private static final String CLIENT_ID = "testClientId";
+    private static final String ORG_ID = "testOrgId";
+    private static final String LOG_ID = "testLogId";
+    private static final String COMPRESSED_NOTICE = "Full log stored compressed";
+
+    @Mock
+    private OBDal mockDal;
+
+    @Mock
+    private Connection mockConnection;
+
+    @Mock
+    private PreparedStatement mockStatement;
+
+    @Mock
+    private PreparedStatement mockUpdate;
+
+    @Mock
+    private ResultSet mockResultSet;
+
+    private MockedStatic<OBDal> mockedOBDal;
+    private MockedStatic<OBMessageUtils> mockedOBMessageUtils;
+
+    /**
+     * Sets up the static mocks of OBDal and OBMessageUtils and a mocked database connection.
+     *
+     * @throws Exception if the connection mock fails
+     */
+    @Before
+    public void setUp() throws Exception {
+        mockedOBDal = mockStatic(OBDal.class);
+        mockedOBMessageUtils = mockStatic(OBMessageUtils.class);
+        mockedOBDal.when(OBDal::getInstance).thenReturn(mockDal);
+        when(mockDal.getConnection(true)).thenReturn(mockConnection);
+    }
+
+    /**
+     * Closes the static mocks.
+     */
+    @After
+    public void tearDown() {
+        if (mockedOBDal != null) {
+            mockedOBDal.close();
+        }
+        if (mockedOBMessageUtils != null) {
+            mockedOBMessageUtils.close();
+        }
+    }
+
+    /**
+     * Tests that deletion by age keeps deleting batches, committing each one, until a batch
+     * smaller than the batch size is deleted.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testDeleteByAgeInBatches() throws Exception {
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+        when(mockStatement.executeUpdate()).thenReturn(PurgeBiLogs.BATCH_SIZE, PurgeBiLogs.BATCH_SIZE, 10);
+
+        long deleted = PurgeBiLogs.deleteByAge(CLIENT_ID, ORG_ID, new Timestamp(0));
+
+        assertEquals(2L * PurgeBiLogs.BATCH_SIZE + 10, deleted);
+        verify(mockStatement, times(3)).executeUpdate();
+        verify(mockDal, times(3)).commitAndClose();
+    }
+
+    /**
+     * Tests that deletion by count skips the most recent entries to keep.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testDeleteByCountKeepsRecentEntries() throws Exception {
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+        when(mockStatement.executeUpdate()).thenReturn(5);
+
+        long deleted = PurgeBiLogs.deleteByCount(CLIENT_ID, ORG_ID, 50);
+
+        assertEquals(5L, deleted);
+        verify(mockStatement).setLong(3, 50L);
+        verify(mockStatement).setInt(4, PurgeBiLogs.BATCH_SIZE);
+        verify(mockDal).commitAndClose();
+    }
+
+    /**
+     * Tests that the compressed message can be restored and that the summary keeps only the
+     * last lines of the message.
+     *
+     * @throws Exception if the message can't be compressed
+     */
+    @Test
+    public void testCompressKeepsLastLinesInSummary() throws Exception {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            message.append("line ").append(i).append('\n');
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mockedOBMessageUtils.when(() -> OBMessageUtils.messageBD(anyString())).thenReturn(COMPRESSED_NOTICE);
+
+        String summary = PurgeBiLogs.compress(new StringReader(message.toString()), output);
+
+        try (Reader restored = new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(output.toByteArray())), StandardCharsets.UTF_8)) {
+            assertEquals(message.toString(), IOUtils.toString(restored));
+        }
+        assertTrue(summary.startsWith(COMPRESSED_NOTICE));
+        assertTrue(summary.contains("line 99\n"));
+        assertTrue(summary.contains("line 80\n"));
+        assertFalse(summary.contains("line 79\n"));
+    }
+
+    /**
+     * Tests that the messages of a batch are compressed and updated in a single JDBC batch.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testCompressMessages() throws Exception {
+        mockedOBMessageUtils.when(() -> OBMessageUtils.messageBD(anyString())).thenReturn(COMPRESSED_NOTICE);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement, mockUpdate);
+        when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        when(mockResultSet.next()).thenReturn(true, false);
+        when(mockResultSet.getString(1)).thenReturn(LOG_ID);
+        when(mockResultSet.getCharacterStream(2)).thenReturn(new StringReader("a long message\n"));
+
+        long compressed = PurgeBiLogs.compressMessages(CLIENT_ID, ORG_ID);
+
+        assertEquals(1L, compressed);
+        verify(mockUpdate).setBytes(eq(2), any(byte[].class));
+        verify(mockUpdate).setString(3, LOG_ID);
+        verify(mockUpdate).executeBatch();
+        verify(mockDal).commitAndClose();
+    }
+
+    /**
+     * Tests that decompressing an entry that isn't compressed does nothing.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testDecompressNotCompressedLog() throws Exception {
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+        when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        when(mockResultSet.next()).thenReturn(false);
+
+        assertFalse(DecompressLogMessage.decompress(LOG_ID));
+    }
+}
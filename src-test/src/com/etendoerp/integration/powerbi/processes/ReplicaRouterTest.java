@@ -0,0 +1,132 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.etendoerp.integration.powerbi.processes.ReplicaRouter.Endpoint;
+
+/**
+ * Test class for the ReplicaRouter, covering the choice of the replica of each run and the
+ * failover to the other replicas and the primary.
+ */
+public class ReplicaRouterTest {
+
+    private static final String PRIMARY = "jdbc:postgresql://primary:5432";
+    private static final String REPLICA_1 = "jdbc:postgresql://replica1:5432";
+    private static final String REPLICA_2 = "jdbc:postgresql://replica2:5433";
+    private static final List<String> REPLICAS = List.of(REPLICA_1, REPLICA_2);
+
+    private Map<String, Double> lags;
+    private Map<String, Integer> probes;
+    private long now;
+    private ReplicaRouter router;
+
+    /**
+     * Creates a router with two healthy replicas.
+     */
+    @Before
+    public void setUp() {
+        lags = new HashMap<>(Map.of(REPLICA_1, 0.0, REPLICA_2, 0.0));
+        probes = new HashMap<>();
+        router = new ReplicaRouter(url -> {
+            probes.merge(url, 1, Integer::sum);
+            Double lag = lags.get(url);
+            if (lag == null) {
+                throw new SQLException("Connection refused");
+            }
+            return lag;
+        }, 30, () -> now);
+    }
+
+    private List<String> route(String key) {
+        return router.route(key, REPLICAS, PRIMARY).stream().map(Endpoint::toString).collect(Collectors.toList());
+    }
+
+    /**
+     * Tests that a run gets both replicas and then the primary, and always in the same order.
+     */
+    @Test
+    public void testRouteIsSticky() {
+        List<String> first = route("client|org|conn");
+
+        assertEquals(3, first.size());
+        assertEquals(Set.of("replica1:5432", "replica2:5433"), new HashSet<>(first.subList(0, 2)));
+        assertEquals("primary:5432", first.get(2));
+        assertEquals(first, route("client|org|conn"));
+    }
+
+    /**
+     * Tests that the runs are spread among the replicas.
+     */
+    @Test
+    public void testRunsAreSpread() {
+        Map<String, Integer> chosen = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            chosen.merge(route("client|org" + i + "|conn").get(0), 1, Integer::sum);
+        }
+
+        assertEquals(2, chosen.size());
+        assertTrue(chosen.values().stream().allMatch(count -> count > 25));
+    }
+
+    /**
+     * Tests that a replica that doesn't answer or lags too much is skipped.
+     */
+    @Test
+    public void testUnhealthyReplicasAreSkipped() {
+        lags.remove(REPLICA_1);
+        lags.put(REPLICA_2, 120.0);
+
+        assertEquals(List.of("primary:5432"), route("client|org|conn"));
+    }
+
+    /**
+     * Tests that the health of the replicas is cached, and checked again once expired.
+     */
+    @Test
+    public void testHealthIsCached() {
+        route("client|org1|conn");
+        lags.remove(REPLICA_1);
+        route("client|org2|conn");
+
+        assertEquals(1, probes.get(REPLICA_1).intValue());
+
+        now += ReplicaRouter.HEALTH_TTL_SECONDS * 1000L;
+        List<String> endpoints = route("client|org2|conn");
+
+        assertEquals(2, probes.get(REPLICA_1).intValue());
+        assertEquals(List.of("replica2:5433", "primary:5432"), endpoints);
+    }
+
+    /**
+     * Tests that only the primary is used when there are no replicas.
+     */
+    @Test
+    public void testNoReplicas() {
+        List<Endpoint> endpoints = router.route("client|org|conn", ReplicaRouter.splitUrls(PRIMARY), PRIMARY);
+
+        assertEquals(1, endpoints.size());
+        assertEquals("primary", endpoints.get(0).host);
+        assertTrue(probes.isEmpty());
+    }
+
+    /**
+     * Tests the parsing of a list of replicas.
+     */
+    @Test
+    public void testSplitUrls() {
+        assertEquals(REPLICAS, ReplicaRouter.splitUrls(REPLICA_1 + ", " + REPLICA_2 + ","));
+        assertTrue(ReplicaRouter.splitUrls(null).isEmpty());
+    }
+}
@@ -0,0 +1,299 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.erpCommon.utility.SequenceIdData;
+import org.openbravo.test.base.OBBaseTest;
+
+import com.etendoerp.integration.powerbi.processes.SyncWorkUnits.WorkUnit;
+
+/**
+ * Test class for the coordination of the sync runs of the nodes of a cluster, against the
+ * database of the environment. Each node runs its statements in its own thread, so in its own
+ * connection and transaction, as if it were another JVM sharing the database.
+ */
+public class SyncLeaseClusterTest extends OBBaseTest {
+
+    private static final String KEY = SyncRunCoordinator.key(TEST_CLIENT_ID, TEST_ORG_ID, "testConnectionId");
+
+    private static final String EXPIRE_LEASES_SQL = "UPDATE etpbic_sync_lease"
+            + " SET lease_expires = now() - interval '1 second' WHERE node_name = ?";
+    private static final String EXPIRE_UNITS_SQL = "UPDATE etpbic_work_unit"
+            + " SET lease_expires = now() - interval '1 second' WHERE node_name = ?";
+    private static final String LEASE_ORG_SQL = "SELECT ad_org_id FROM etpbic_sync_lease WHERE lease_key = ?";
+    private static final String INSERT_UNIT_SQL = "INSERT INTO etpbic_work_unit (etpbic_work_unit_id, ad_client_id,"
+            + " ad_org_id, isactive, created, createdby, updated, updatedby, unit_status, attempts)"
+            + " VALUES (?, ?, ?, 'Y', now(), '100', now(), '100', 'Pending', 0)";
+    private static final String OPEN_UNITS_SQL = "SELECT ad_org_id, count(*) FROM etpbic_work_unit"
+            + " WHERE ad_client_id = ? AND unit_status IN ('Pending', 'Claimed') GROUP BY ad_org_id";
+    private static final String DELETE_LEASES_SQL = "DELETE FROM etpbic_sync_lease WHERE ad_client_id = ?";
+    private static final String DELETE_UNITS_SQL = "DELETE FROM etpbic_work_unit WHERE ad_client_id = ?";
+
+    private Node first;
+    private Node second;
+
+    /**
+     * A node of the cluster, whose statements run in its own thread. Its leases are renewed by
+     * the tests instead of a heartbeat.
+     */
+    private static class Node extends SyncLeaseManager {
+        private final ExecutorService thread = Executors.newSingleThreadExecutor();
+
+        Node(String nodeName) {
+            super(nodeName);
+        }
+
+        @Override
+        synchronized void startHeartbeat() {
+            // renewed by the tests
+        }
+
+        <T> Future<T> submit(Callable<T> call) {
+            return thread.submit(call);
+        }
+
+        <T> T call(Callable<T> call) throws Exception {
+            return submit(call).get(30, TimeUnit.SECONDS);
+        }
+
+        WorkUnit claim() throws Exception {
+            return call(() -> SyncWorkUnits.claim(getNodeName()));
+        }
+    }
+
+    /**
+     * Creates two nodes, and removes the leases and units left by previous runs of the tests.
+     *
+     * @throws Exception if the rows can't be removed
+     */
+    @Before
+    public void setUpNodes() throws Exception {
+        deleteTestRows();
+        first = new Node("testNode1");
+        second = new Node("testNode2");
+    }
+
+    /**
+     * Stops the threads of the nodes and removes the leases and units of the tests.
+     *
+     * @throws Exception if the rows can't be removed
+     */
+    @After
+    public void tearDownNodes() throws Exception {
+        first.thread.shutdownNow();
+        second.thread.shutdownNow();
+        deleteTestRows();
+    }
+
+    private void deleteTestRows() throws SQLException {
+        execute(DELETE_LEASES_SQL, TEST_CLIENT_ID);
+        execute(DELETE_UNITS_SQL, TEST_CLIENT_ID);
+    }
+
+    private void execute(String sql, String... params) throws SQLException {
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) {
+                ps.setString(i + 1, params[i]);
+            }
+            ps.executeUpdate();
+        }
+        OBDal.getInstance().commitAndClose();
+    }
+
+    private String insertUnit(String orgId) throws SQLException {
+        String id = SequenceIdData.getUUID();
+        execute(INSERT_UNIT_SQL, id, TEST_CLIENT_ID, orgId);
+        return id;
+    }
+
+    /**
+     * Tests that when two nodes take the lease of a key at the same time, only one of them gets
+     * it.
+     *
+     * @throws Exception if a node fails
+     */
+    @Test
+    public void testConcurrentAcquireSingleWinner() throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        Future<Boolean> firstAcquired = first.submit(() -> {
+            barrier.await();
+            return first.acquire(KEY);
+        });
+        Future<Boolean> secondAcquired = second.submit(() -> {
+            barrier.await();
+            return second.acquire(KEY);
+        });
+
+        assertNotEquals(firstAcquired.get(30, TimeUnit.SECONDS), secondAcquired.get(30, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that the lease stores the organization of its key.
+     *
+     * @throws Exception if a node fails
+     */
+    @Test
+    public void testLeaseStoresOrganization() throws Exception {
+        assertTrue(first.call(() -> first.acquire(KEY)));
+
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(LEASE_ORG_SQL)) {
+            ps.setString(1, KEY);
+            try (ResultSet rs = ps.executeQuery()) {
+                assertTrue(rs.next());
+                assertEquals(TEST_ORG_ID, rs.getString(1));
+            }
+        }
+        OBDal.getInstance().commitAndClose();
+    }
+
+    /**
+     * Tests that a lease held by a node is taken by another node once released or expired, but
+     * not while it is renewed.
+     *
+     * @throws Exception if a node fails
+     */
+    @Test
+    public void testLeaseTakenOverOnlyWhenFree() throws Exception {
+        assertTrue(first.call(() -> first.acquire(KEY)));
+        assertFalse(second.call(() -> second.acquire(KEY)));
+
+        first.call(() -> {
+            first.release(KEY);
+            return null;
+        });
+        assertTrue(second.call(() -> second.acquire(KEY)));
+
+        execute(EXPIRE_LEASES_SQL, second.getNodeName());
+        second.call(() -> {
+            second.renew();
+            return null;
+        });
+        assertFalse(first.call(() -> first.acquire(KEY)));
+
+        execute(EXPIRE_LEASES_SQL, second.getNodeName());
+        assertTrue(first.call(() -> first.acquire(KEY)));
+        assertFalse(second.call(() -> second.acquire(KEY)));
+    }
+
+    /**
+     * Tests that the units claimed by two nodes at the same time are different, and each unit is
+     * claimed once.
+     *
+     * @throws Exception if a node fails
+     */
+    @Test
+    public void testConcurrentClaimsTakeDifferentUnits() throws Exception {
+        insertUnit(TEST_ORG_ID);
+        insertUnit("0");
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        Future<WorkUnit> firstUnit = first.submit(() -> {
+            barrier.await();
+            return SyncWorkUnits.claim(first.getNodeName());
+        });
+        Future<WorkUnit> secondUnit = second.submit(() -> {
+            barrier.await();
+            return SyncWorkUnits.claim(second.getNodeName());
+        });
+
+        WorkUnit claimedByFirst = firstUnit.get(30, TimeUnit.SECONDS);
+        WorkUnit claimedBySecond = secondUnit.get(30, TimeUnit.SECONDS);
+        assertNotNull(claimedByFirst);
+        assertNotNull(claimedBySecond);
+        assertNotEquals(claimedByFirst.id, claimedBySecond.id);
+        assertNull(first.claim());
+    }
+
+    /**
+     * Tests that when two nodes queue a run of the same client at the same time, each organization
+     * gets a single unit.
+     *
+     * @throws Exception if a node fails
+     */
+    @Test
+    public void testConcurrentEnqueueSingleUnitPerOrg() throws Exception {
+        List<String> orgIds = List.of(TEST_ORG_ID, "0");
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        Future<Void> firstQueued = first.submit(() -> {
+            barrier.await();
+            SyncWorkUnits.enqueue(TEST_CLIENT_ID, orgIds, "100");
+            OBDal.getInstance().commitAndClose();
+            return null;
+        });
+        Future<Void> secondQueued = second.submit(() -> {
+            barrier.await();
+            SyncWorkUnits.enqueue(TEST_CLIENT_ID, orgIds, "100");
+            OBDal.getInstance().commitAndClose();
+            return null;
+        });
+        firstQueued.get(30, TimeUnit.SECONDS);
+        secondQueued.get(30, TimeUnit.SECONDS);
+
+        Map<String, Integer> units = new HashMap<>();
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(OPEN_UNITS_SQL)) {
+            ps.setString(1, TEST_CLIENT_ID);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    units.put(rs.getString(1), rs.getInt(2));
+                }
+            }
+        }
+        OBDal.getInstance().commitAndClose();
+        assertEquals(Map.of(TEST_ORG_ID, 1, "0", 1), units);
+    }
+
+    /**
+     * Tests that the unit of a node that stops renewing it is claimed by another node, and the
+     * first node can't complete it anymore.
+     *
+     * @throws Exception if a node fails
+     */
+    @Test
+    public void testUnitOfDeadNodeClaimedAgain() throws Exception {
+        String unitId = insertUnit(TEST_ORG_ID);
+        WorkUnit unit = first.claim();
+        assertEquals(unitId, unit.id);
+
+        execute(EXPIRE_UNITS_SQL, first.getNodeName());
+        first.call(() -> {
+            first.renew();
+            return null;
+        });
+        assertNull(second.claim());
+
+        execute(EXPIRE_UNITS_SQL, first.getNodeName());
+        WorkUnit takenOver = second.claim();
+        assertEquals(unitId, takenOver.id);
+
+        first.call(() -> {
+            SyncWorkUnits.complete(unit, first.getNodeName(), false);
+            return null;
+        });
+        second.call(() -> {
+            SyncWorkUnits.complete(takenOver, second.getNodeName(), true);
+            return null;
+        });
+        assertNull(first.claim());
+    }
+}
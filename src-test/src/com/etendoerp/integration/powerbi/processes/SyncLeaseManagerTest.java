@@ -0,0 +1,153 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockedStatic;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.openbravo.dal.service.OBDal;
+
+/**
+ * Test class for the SyncLeaseManager and SyncWorkUnits, which coordinate the sync runs of the
+ * nodes of a cluster through the database.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SyncLeaseManagerTest {
+
+    private static final String NODE = "testNode";
+    private static final String KEY = SyncRunCoordinator.key("testClientId", "testOrgId", "testConnectionId");
+
+    @Mock
+    private OBDal mockDal;
+
+    @Mock
+    private Connection mockConnection;
+
+    @Mock
+    private PreparedStatement mockStatement;
+
+    @Mock
+    private ResultSet mockResultSet;
+
+    private MockedStatic<OBDal> mockedOBDal;
+
+    private SyncLeaseManager leases;
+
+    /**
+     * Sets up the static mock of OBDal and a mocked database connection.
+     *
+     * @throws Exception if the connection mock fails
+     */
+    @Before
+    public void setUp() throws Exception {
+        mockedOBDal = mockStatic(OBDal.class);
+        mockedOBDal.when(OBDal::getInstance).thenReturn(mockDal);
+        when(mockDal.getConnection(true)).thenReturn(mockConnection);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+        leases = new SyncLeaseManager(NODE) {
+            @Override
+            synchronized void startHeartbeat() {
+                // no heartbeat thread in tests
+            }
+        };
+    }
+
+    /**
+     * Closes the static mock.
+     */
+    @After
+    public void tearDown() {
+        if (mockedOBDal != null) {
+            mockedOBDal.close();
+        }
+    }
+
+    /**
+     * Tests that the lease is acquired when the upsert takes the row, and the client and the
+     * organization of the key are stored in the lease.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testAcquireFreeLease() throws Exception {
+        when(mockStatement.executeUpdate()).thenReturn(1);
+
+        assertTrue(leases.acquire(KEY));
+        verify(mockStatement).setString(2, "testClientId");
+        verify(mockStatement).setString(3, "testOrgId");
+        verify(mockStatement).setString(5, NODE);
+        verify(mockDal).commitAndClose();
+    }
+
+    /**
+     * Tests that the lease is not acquired when a live lease of another node keeps the row.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testAcquireLeaseHeldByOtherNode() throws Exception {
+        when(mockStatement.executeUpdate()).thenReturn(0);
+
+        assertFalse(leases.acquire(KEY));
+    }
+
+    /**
+     * Tests that a database error is handled as a lease not acquired.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testAcquireWithDatabaseError() throws Exception {
+        when(mockStatement.executeUpdate()).thenThrow(new SQLException("connection lost"));
+
+        assertFalse(leases.acquire(KEY));
+        verify(mockDal).rollbackAndClose();
+    }
+
+    /**
+     * Tests that a claimed work unit is returned with its organization.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testClaimWorkUnit() throws Exception {
+        when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        when(mockResultSet.next()).thenReturn(true);
+        when(mockResultSet.getString(3)).thenReturn("testOrgId");
+
+        SyncWorkUnits.WorkUnit unit = SyncWorkUnits.claim(NODE);
+
+        assertEquals("testOrgId", unit.orgId);
+        verify(mockStatement).setInt(3, SyncWorkUnits.MAX_ATTEMPTS);
+        verify(mockDal).commitAndClose();
+    }
+
+    /**
+     * Tests that no work unit is returned when none is available.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testClaimWithoutWorkUnits() throws Exception {
+        when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        when(mockResultSet.next()).thenReturn(false);
+
+        assertNull(SyncWorkUnits.claim(NODE));
+    }
+}
@@ -0,0 +1,91 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Test class for the SyncLoadMonitor, covering the AIMD adjustment of the budget of the scheduler.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SyncLoadMonitorTest {
+
+    @Mock
+    private ScheduledExecutorService mockTimer;
+
+    private SyncScheduler scheduler;
+    private SyncLoadMonitor monitor;
+
+    /**
+     * Creates a monitor of a scheduler with a budget of 8 runs.
+     */
+    @Before
+    public void setUp() {
+        scheduler = new SyncScheduler(8, 8, 0, clientId -> 1, Runnable::run, mockTimer, () -> 0L);
+        monitor = new SyncLoadMonitor(scheduler, 1, 20, 30);
+    }
+
+    /**
+     * Tests that the budget is halved when there are too many active backends, down to the minimum.
+     */
+    @Test
+    public void testBusyDatabaseHalvesBudget() {
+        assertEquals(4, monitor.adjust(25, 0));
+        assertEquals(2, monitor.adjust(25, 0));
+        assertEquals(1, monitor.adjust(25, 0));
+        assertEquals(1, monitor.adjust(25, 0));
+        assertEquals(1, scheduler.getMaxRuns());
+    }
+
+    /**
+     * Tests that the budget is halved when a standby lags too much.
+     */
+    @Test
+    public void testReplicationLagHalvesBudget() {
+        assertEquals(4, monitor.adjust(0, 45.5));
+    }
+
+    /**
+     * Tests that the budget grows one run at a time while the database is not under pressure, up
+     * to its configured limit.
+     */
+    @Test
+    public void testIdleDatabaseGrowsBudget() {
+        monitor.adjust(25, 0);
+        assertEquals(5, monitor.adjust(3, 0));
+        assertEquals(6, monitor.adjust(3, 0));
+        assertEquals(7, monitor.adjust(3, 0));
+        assertEquals(8, monitor.adjust(3, 0));
+        assertEquals(8, monitor.adjust(3, 0));
+    }
+
+    /**
+     * Tests that a query much slower than usual halves the budget once.
+     */
+    @Test
+    public void testSlowQueryHalvesBudget() {
+        monitor.recordQueryLatency("client|dataset", 1000);
+        monitor.recordQueryLatency("client|dataset", 1100);
+        assertEquals(8, monitor.adjust(0, 0));
+
+        monitor.recordQueryLatency("client|dataset", 5000);
+        assertEquals(4, monitor.adjust(0, 0));
+        assertEquals(5, monitor.adjust(0, 0));
+    }
+
+    /**
+     * Tests that the latencies of different queries are not compared with each other.
+     */
+    @Test
+    public void testLatenciesArePerQuery() {
+        monitor.recordQueryLatency("client|small", 100);
+        monitor.recordQueryLatency("client|big", 60000);
+        assertEquals(8, monitor.adjust(0, 0));
+    }
+}
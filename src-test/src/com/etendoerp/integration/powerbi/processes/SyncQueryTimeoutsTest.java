@@ -0,0 +1,141 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockedStatic;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.openbravo.dal.service.OBDal;
+
+/**
+ * Test class for SyncQueryTimeouts, which keeps the datasets whose queries timed out in their BI
+ * query records.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SyncQueryTimeoutsTest {
+
+    private static final String CLIENT_ID = "testClientId";
+
+    @Mock
+    private OBDal mockDal;
+
+    @Mock
+    private Connection mockConnection;
+
+    @Mock
+    private PreparedStatement mockStatement;
+
+    @Mock
+    private ResultSet mockResultSet;
+
+    private MockedStatic<OBDal> mockedOBDal;
+
+    private SyncQueryTimeouts timeouts;
+
+    /**
+     * Sets up the static mock of OBDal and a mocked database connection, and the timeouts skipping
+     * a dataset after 3 timeouts within 60 minutes.
+     *
+     * @throws Exception if the connection mock fails
+     */
+    @Before
+    public void setUp() throws Exception {
+        mockedOBDal = mockStatic(OBDal.class);
+        mockedOBDal.when(OBDal::getInstance).thenReturn(mockDal);
+        when(mockDal.getConnection(true)).thenReturn(mockConnection);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+        timeouts = new SyncQueryTimeouts(3, 60);
+    }
+
+    /**
+     * Closes the static mock.
+     */
+    @After
+    public void tearDown() {
+        if (mockedOBDal != null) {
+            mockedOBDal.close();
+        }
+    }
+
+    /**
+     * Tests that a timeout increments the count of the query of the dataset.
+     *
+     * @throws Exception if the statement fails
+     */
+    @Test
+    public void testRecordTimeoutIncrementsCount() throws Exception {
+        timeouts.recordTimeout(CLIENT_ID, "invoices");
+
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(mockConnection).prepareStatement(sql.capture());
+        assertTrue(sql.getValue().contains("timeout_count = timeout_count + 1"));
+        verify(mockStatement).setString(1, CLIENT_ID);
+        verify(mockStatement).setString(2, "invoices");
+        verify(mockStatement).executeUpdate();
+    }
+
+    /**
+     * Tests that a query finished in time resets the count of the query of the dataset.
+     *
+     * @throws Exception if the statement fails
+     */
+    @Test
+    public void testRecordSuccessResetsCount() throws Exception {
+        timeouts.recordSuccess(CLIENT_ID, "orders");
+
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(mockConnection).prepareStatement(sql.capture());
+        assertTrue(sql.getValue().contains("timeout_count = 0"));
+        verify(mockStatement).setString(1, CLIENT_ID);
+        verify(mockStatement).setString(2, "orders");
+        verify(mockStatement).executeUpdate();
+    }
+
+    /**
+     * Tests that the deferred datasets are the ones that timed out once within the cooldown.
+     *
+     * @throws Exception if the statement fails
+     */
+    @Test
+    public void testDeferredAfterOneTimeout() throws Exception {
+        when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        when(mockResultSet.next()).thenReturn(true, true, false);
+        when(mockResultSet.getString(1)).thenReturn("invoices", "orders");
+
+        assertEquals(List.of("invoices", "orders"), timeouts.getDeferred(CLIENT_ID));
+        verify(mockStatement).setString(1, CLIENT_ID);
+        verify(mockStatement).setInt(2, 1);
+        verify(mockStatement).setInt(3, 60);
+    }
+
+    /**
+     * Tests that the skipped datasets are the ones that timed out 3 times within the cooldown.
+     *
+     * @throws Exception if the statement fails
+     */
+    @Test
+    public void testSkippedAfterThreeTimeouts() throws Exception {
+        when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        when(mockResultSet.next()).thenReturn(false);
+
+        assertEquals(List.of(), timeouts.getSkipped(CLIENT_ID));
+        verify(mockStatement).setString(1, CLIENT_ID);
+        verify(mockStatement).setInt(2, 3);
+        verify(mockStatement).setInt(3, 60);
+    }
+}
@@ -0,0 +1,172 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for the SyncRunCoordinator, covering the single-flight execution of the sync runs
+ * and the coalescing of the triggers received while a run is in progress.
+ */
+public class SyncRunCoordinatorTest {
+
+    private static final String KEY = SyncRunCoordinator.key("client", "org", "connection");
+
+    private SyncRunCoordinator coordinator;
+    private List<String> started;
+    private List<CompletableFuture<Void>> runs;
+    private TestLeases leases;
+
+    /**
+     * Leases held in memory, to simulate the other nodes of the cluster.
+     */
+    private static class TestLeases extends SyncLeaseManager {
+        private final Set<String> busy = new HashSet<>();
+        private final List<String> released = new ArrayList<>();
+
+        TestLeases() {
+            super("testNode");
+        }
+
+        @Override
+        public boolean acquire(String key) {
+            return !busy.contains(key);
+        }
+
+        @Override
+        public void release(String key) {
+            released.add(key);
+        }
+    }
+
+    /**
+     * Creates a coordinator that runs in the calling thread, with leases held in memory, and runs
+     * that end when the test completes them.
+     */
+    @Before
+    public void setUp() {
+        leases = new TestLeases();
+        coordinator = new SyncRunCoordinator(Runnable::run, leases);
+        started = new ArrayList<>();
+        runs = new ArrayList<>();
+    }
+
+    private boolean submit(String key, String name) {
+        return coordinator.submit(key, () -> {
+            started.add(name);
+            CompletableFuture<Void> run = new CompletableFuture<>();
+            runs.add(run);
+            return run;
+        });
+    }
+
+    /**
+     * Tests that triggers received during a run are coalesced into a single follow-up run, which
+     * is the last one received.
+     */
+    @Test
+    public void testTriggersCoalescedIntoOneFollowUp() {
+        assertTrue(submit(KEY, "first"));
+        assertFalse(submit(KEY, "second"));
+        assertFalse(submit(KEY, "third"));
+        assertEquals(List.of("first"), started);
+        assertTrue(coordinator.hasFollowUp(KEY));
+
+        runs.get(0).complete(null);
+
+        assertEquals(List.of("first", "third"), started);
+        assertFalse(coordinator.hasFollowUp(KEY));
+        assertTrue(coordinator.isRunning(KEY));
+
+        runs.get(1).complete(null);
+
+        assertFalse(coordinator.isRunning(KEY));
+        assertEquals(List.of(KEY), leases.released);
+    }
+
+    /**
+     * Tests that a run whose lease is held by another node doesn't start, and keeps its key busy
+     * in this node.
+     */
+    @Test
+    public void testRunWaitsForLeaseOfOtherNode() {
+        leases.busy.add(KEY);
+
+        assertTrue(submit(KEY, "first"));
+        assertFalse(submit(KEY, "second"));
+
+        assertTrue(started.isEmpty());
+        assertTrue(coordinator.isRunning(KEY));
+        assertEquals(1, coordinator.runningCount());
+    }
+
+    /**
+     * Tests that a follow-up run replaced by a later trigger is notified.
+     */
+    @Test
+    public void testReplacedFollowUpNotified() {
+        List<String> replaced = new ArrayList<>();
+        assertTrue(submit(KEY, "first"));
+        coordinator.submit(KEY, CompletableFuture::new, () -> replaced.add("second"));
+        coordinator.submit(KEY, CompletableFuture::new, () -> replaced.add("third"));
+
+        assertEquals(List.of("second"), replaced);
+    }
+
+    /**
+     * Tests that runs of different keys don't block each other.
+     */
+    @Test
+    public void testDifferentKeysRunConcurrently() {
+        assertTrue(submit(KEY, "first"));
+        assertTrue(submit(SyncRunCoordinator.key("client", "otherOrg", "connection"), "other"));
+
+        assertEquals(List.of("first", "other"), started);
+    }
+
+    /**
+     * Tests that a run submitted only if idle starts when the key is free, and is neither started
+     * nor kept as follow-up while another run of the key is in progress.
+     */
+    @Test
+    public void testSubmitIfIdle() {
+        assertTrue(submit(KEY, "first"));
+        assertFalse(coordinator.submitIfIdle(KEY, () -> {
+            started.add("targeted");
+            return CompletableFuture.completedFuture(null);
+        }));
+        assertFalse(coordinator.hasFollowUp(KEY));
+
+        runs.get(0).complete(null);
+
+        assertFalse(coordinator.isRunning(KEY));
+        assertTrue(coordinator.submitIfIdle(KEY, () -> {
+            started.add("targeted");
+            return CompletableFuture.completedFuture(null);
+        }));
+        assertEquals(List.of("first", "targeted"), started);
+        assertFalse(coordinator.isRunning(KEY));
+    }
+
+    /**
+     * Tests that a failed run releases its key.
+     */
+    @Test
+    public void testFailedRunReleasesKey() {
+        assertTrue(coordinator.submit(KEY, () -> {
+            throw new IllegalStateException("launch failed");
+        }));
+
+        assertFalse(coordinator.isRunning(KEY));
+        assertTrue(submit(KEY, "next"));
+    }
+}
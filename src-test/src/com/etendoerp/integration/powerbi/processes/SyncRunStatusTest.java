@@ -0,0 +1,304 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockedStatic;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+import org.openbravo.model.ad.system.Client;
+
+/**
+ * Test class for the SyncRunStatus webhook and the SyncRunRegistry that keeps the progress of the
+ * sync script runs.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SyncRunStatusTest {
+
+    private static final String RUN_ID = "testRunId";
+    private static final String CLIENT_ID = "testClientId";
+    private static final String ORG_ID = "testOrgId";
+    private static final String USER_ID = "testUserId";
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Mock
+    private OBDal mockDal;
+
+    @Mock
+    private OBContext mockContext;
+
+    @Mock
+    private Client mockClient;
+
+    @Mock
+    private Connection mockConnection;
+
+    @Mock
+    private PreparedStatement mockStatement;
+
+    @Mock
+    private ResultSet mockResultSet;
+
+    private MockedStatic<OBDal> mockedOBDal;
+    private MockedStatic<OBContext> mockedOBContext;
+    private MockedStatic<OBMessageUtils> mockedOBMessageUtils;
+
+    private final SyncRunRegistry registry = SyncRunRegistry.getInstance();
+
+    /**
+     * Sets up the static mocks and a mocked database connection.
+     *
+     * @throws Exception if the connection mock fails
+     */
+    @Before
+    public void setUp() throws Exception {
+        mockedOBDal = mockStatic(OBDal.class);
+        mockedOBContext = mockStatic(OBContext.class);
+        mockedOBMessageUtils = mockStatic(OBMessageUtils.class);
+        mockedOBDal.when(OBDal::getInstance).thenReturn(mockDal);
+        lenient().when(mockDal.getConnection(true)).thenReturn(mockConnection);
+        lenient().when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+        registry.clear();
+    }
+
+    /**
+     * Closes the static mocks and empties the registry.
+     */
+    @After
+    public void tearDown() {
+        registry.clear();
+        if (mockedOBDal != null) {
+            mockedOBDal.close();
+        }
+        if (mockedOBContext != null) {
+            mockedOBContext.close();
+        }
+        if (mockedOBMessageUtils != null) {
+            mockedOBMessageUtils.close();
+        }
+    }
+
+    /**
+     * Tests that events are accumulated in memory and only persisted when the run starts and ends.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testEventsPersistedOnStartAndFinish() throws Exception {
+        registry.start(RUN_ID, CLIENT_ID, ORG_ID, USER_ID);
+        registry.record(RUN_ID, event("query-done", null, "10"));
+        registry.record(RUN_ID, event("query-done", null, "5"));
+        SyncRunRegistry.RunState run = registry.record(RUN_ID, event("done", SyncRunRegistry.STATUS_SUCCESS, null));
+
+        assertEquals(15L, run.getRows());
+        assertEquals("done", run.getPhase());
+        assertEquals(SyncRunRegistry.STATUS_SUCCESS, run.getStatus());
+        verify(mockStatement, times(2)).executeUpdate();
+    }
+
+    /**
+     * Tests that finished runs are evicted from memory once their time to live has passed.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testFinishedRunsEvicted() throws Exception {
+        registry.start(RUN_ID, CLIENT_ID, ORG_ID, USER_ID);
+        registry.start("otherRunId", CLIENT_ID, ORG_ID, USER_ID);
+        registry.record(RUN_ID, event("failed", SyncRunRegistry.STATUS_ERROR, null));
+
+        registry.evictFinished(System.currentTimeMillis() + SyncRunRegistry.FINISHED_TTL_MS + 1);
+
+        assertEquals(1, registry.size());
+    }
+
+    /**
+     * Tests that the webhook returns the current state of a run kept in memory.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testStatusFromMemory() throws Exception {
+        mockCurrentClient();
+        SyncRunRegistry.RunState run = registry.start(RUN_ID, CLIENT_ID, ORG_ID, USER_ID);
+        Map<String, String> parameter = new HashMap<>();
+        parameter.put(SyncRunStatus.PARAM_RUN_ID, RUN_ID);
+        Map<String, String> responseVars = new HashMap<>();
+
+        new SyncRunStatus().get(parameter, responseVars);
+
+        assertSame(run, registry.get(RUN_ID));
+        assertEquals(SyncRunRegistry.STATUS_RUNNING, responseVars.get("status"));
+        assertEquals(SyncRunRegistry.PHASE_STARTED, responseVars.get("phase"));
+        verify(mockStatement, times(1)).executeUpdate();
+    }
+
+    /**
+     * Tests that the webhook records the events received with a phase.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testEventRecorded() throws Exception {
+        mockCurrentClient();
+        registry.start(RUN_ID, CLIENT_ID, ORG_ID, USER_ID);
+        Map<String, String> parameter = event("query-started", null, null);
+        parameter.put(SyncRunStatus.PARAM_RUN_ID, RUN_ID);
+        parameter.put("dataset", "invoices");
+        parameter.put("index", "3");
+        Map<String, String> responseVars = new HashMap<>();
+
+        new SyncRunStatus().get(parameter, responseVars);
+
+        assertEquals("query-started", responseVars.get("phase"));
+        assertEquals("invoices", responseVars.get("dataset"));
+        assertEquals("3", responseVars.get("index"));
+    }
+
+    /**
+     * Tests that cancelling a run stops its script, and that the run ends as cancelled when the
+     * script exits without finishing it.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testCancelStopsScript() throws Exception {
+        mockCurrentClient();
+        when(mockStatement.executeUpdate()).thenReturn(1);
+        registry.start(RUN_ID, CLIENT_ID, ORG_ID, USER_ID);
+        Process process = mock(Process.class);
+        when(process.isAlive()).thenReturn(true);
+        when(process.onExit()).thenReturn(new CompletableFuture<>());
+        registry.attach(RUN_ID, process);
+        Map<String, String> parameter = new HashMap<>();
+        parameter.put(SyncRunStatus.PARAM_RUN_ID, RUN_ID);
+        parameter.put(SyncRunStatus.PARAM_ACTION, SyncRunStatus.ACTION_CANCEL);
+        Map<String, String> responseVars = new HashMap<>();
+
+        new SyncRunStatus().get(parameter, responseVars);
+        registry.record(RUN_ID, event("query-started", null, null));
+        registry.exited(RUN_ID);
+
+        verify(process).destroy();
+        assertEquals(SyncRunRegistry.PHASE_CANCEL_REQUESTED, responseVars.get("phase"));
+        assertEquals(SyncRunRegistry.STATUS_CANCELLED, registry.get(RUN_ID).getStatus());
+        // start, cancel request, end of the run and closing of its BI log entry
+        verify(mockStatement, times(4)).executeUpdate();
+        verify(mockConnection).prepareStatement(argThat(query -> query.startsWith("UPDATE etpbic_log")));
+    }
+
+    /**
+     * Tests that an event of a run started in another node is applied to its row locked in the
+     * database, and that the run is not kept in memory.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testForeignRunLockedAndNotCached() throws Exception {
+        mockStoredRun(SyncRunRegistry.STATUS_RUNNING);
+
+        SyncRunRegistry.RunState run = registry.record(RUN_ID, event("query-done", null, "10"));
+
+        assertEquals(15L, run.getRows());
+        assertEquals(0, registry.size());
+        verify(mockConnection).prepareStatement(argThat(query -> query.endsWith("FOR UPDATE")));
+        verify(mockStatement, times(1)).executeUpdate();
+    }
+
+    /**
+     * Tests that a run whose end was already persisted by another node is read from the database
+     * once its script exits, instead of being ended as an error.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testRunFinishedByOtherNode() throws Exception {
+        when(mockStatement.executeUpdate()).thenReturn(1, 0);
+        registry.start(RUN_ID, CLIENT_ID, ORG_ID, USER_ID);
+        mockStoredRun(SyncRunRegistry.STATUS_SUCCESS);
+
+        registry.exited(RUN_ID);
+
+        assertEquals(0, registry.size());
+        assertEquals(SyncRunRegistry.STATUS_SUCCESS, registry.get(RUN_ID).getStatus());
+    }
+
+    /**
+     * Tests that an unknown run is looked up by its id in the database and reported as not found.
+     *
+     * @throws Exception if the statement mocks fail
+     */
+    @Test
+    public void testUnknownRun() throws Exception {
+        when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        when(mockResultSet.next()).thenReturn(false);
+        mockedOBMessageUtils.when(() -> OBMessageUtils.messageBD("ETPBIC_RunNotFound")).thenReturn("Run %s not found");
+        Map<String, String> parameter = new HashMap<>();
+        parameter.put(SyncRunStatus.PARAM_RUN_ID, RUN_ID);
+
+        thrown.expect(OBException.class);
+        thrown.expectMessage("Run " + RUN_ID + " not found");
+
+        new SyncRunStatus().get(parameter, new HashMap<>());
+    }
+
+    private void mockStoredRun(String status) throws Exception {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+        when(mockResultSet.next()).thenReturn(true);
+        when(mockResultSet.getString(1)).thenReturn(CLIENT_ID);
+        when(mockResultSet.getString(2)).thenReturn(ORG_ID);
+        when(mockResultSet.getString(3)).thenReturn(USER_ID);
+        when(mockResultSet.getTimestamp(4)).thenReturn(now);
+        when(mockResultSet.getTimestamp(5)).thenReturn(now);
+        when(mockResultSet.getString(6)).thenReturn(status);
+        when(mockResultSet.getString(7)).thenReturn("query-started");
+        when(mockResultSet.getLong(11)).thenReturn(5L);
+    }
+
+    private void mockCurrentClient() {
+        mockedOBContext.when(OBContext::getOBContext).thenReturn(mockContext);
+        when(mockContext.getCurrentClient()).thenReturn(mockClient);
+        when(mockClient.getId()).thenReturn(CLIENT_ID);
+    }
+
+    private static Map<String, String> event(String phase, String status, String rows) {
+        Map<String, String> event = new HashMap<>();
+        event.put("phase", phase);
+        if (status != null) {
+            event.put("status", status);
+        }
+        if (rows != null) {
+            event.put("rows", rows);
+        }
+        return event;
+    }
+}
@@ -0,0 +1,151 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ * Test class for the SyncScheduler, covering the global and per client budgets, the fair share of
+ * the budget between clients and the spread of the scheduled runs.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SyncSchedulerTest {
+
+    private static final long NOW = 1_000_000L;
+
+    @Mock
+    private ScheduledExecutorService mockTimer;
+
+    private List<String> started;
+    private Map<String, CompletableFuture<Void>> runs;
+
+    /**
+     * Resets the runs started by the tests.
+     */
+    @Before
+    public void setUp() {
+        started = new ArrayList<>();
+        runs = new HashMap<>();
+    }
+
+    private SyncScheduler scheduler(int maxRuns, int maxClientRuns, long spreadMillis) {
+        return new SyncScheduler(maxRuns, maxClientRuns, spreadMillis, clientId -> "weighted".equals(clientId) ? 2 : 1,
+                Runnable::run, mockTimer, () -> NOW);
+    }
+
+    private CompletableFuture<Void> schedule(SyncScheduler scheduler, String clientId, String name, boolean spread) {
+        return scheduler.schedule(clientId, SyncRunCoordinator.key(clientId, name, "connection"), spread, () -> {
+            started.add(name);
+            CompletableFuture<Void> run = new CompletableFuture<>();
+            runs.put(name, run);
+            return run;
+        });
+    }
+
+    /**
+     * Tests that no more runs than the global budget are started at the same time.
+     */
+    @Test
+    public void testGlobalBudget() {
+        SyncScheduler scheduler = scheduler(2, 2, 0);
+        schedule(scheduler, "a", "a1", false);
+        schedule(scheduler, "b", "b1", false);
+        schedule(scheduler, "c", "c1", false);
+
+        assertEquals(List.of("a1", "b1"), started);
+        assertEquals(1, scheduler.queuedCount());
+
+        runs.get("a1").complete(null);
+
+        assertEquals(List.of("a1", "b1", "c1"), started);
+        assertEquals(2, scheduler.activeCount());
+    }
+
+    /**
+     * Tests that a client can't use more than its cap even if there is global budget left.
+     */
+    @Test
+    public void testClientCap() {
+        SyncScheduler scheduler = scheduler(4, 1, 0);
+        schedule(scheduler, "a", "a1", false);
+        schedule(scheduler, "a", "a2", false);
+        schedule(scheduler, "b", "b1", false);
+
+        assertEquals(List.of("a1", "b1"), started);
+
+        runs.get("a1").complete(null);
+
+        assertEquals(List.of("a1", "b1", "a2"), started);
+    }
+
+    /**
+     * Tests that a client with many queued runs doesn't delay the runs of the other clients.
+     */
+    @Test
+    public void testFairShareBetweenClients() {
+        SyncScheduler scheduler = scheduler(1, 1, 0);
+        schedule(scheduler, "a", "a1", false);
+        schedule(scheduler, "a", "a2", false);
+        schedule(scheduler, "a", "a3", false);
+        schedule(scheduler, "b", "b1", false);
+
+        runs.get("a1").complete(null);
+        runs.get("b1").complete(null);
+        runs.get("a2").complete(null);
+
+        assertEquals(List.of("a1", "b1", "a2", "a3"), started);
+    }
+
+    /**
+     * Tests that a client with a bigger weight gets a bigger share of the budget.
+     */
+    @Test
+    public void testWeightedShare() {
+        SyncScheduler scheduler = scheduler(1, 1, 0);
+        schedule(scheduler, "b", "b1", false);
+        schedule(scheduler, "b", "b2", false);
+        schedule(scheduler, "weighted", "w1", false);
+        schedule(scheduler, "weighted", "w2", false);
+
+        runs.get("b1").complete(null);
+        runs.get("w1").complete(null);
+        runs.get("w2").complete(null);
+
+        assertEquals(List.of("b1", "w1", "w2", "b2"), started);
+    }
+
+    /**
+     * Tests that a scheduled run waits for the offset of its key, and the scheduler wakes up then.
+     */
+    @Test
+    public void testSpreadStart() {
+        SyncScheduler scheduler = scheduler(4, 4, 60_000L);
+        String key = SyncRunCoordinator.key("a", "a1", "connection");
+        long offset = scheduler.startOffset(key);
+
+        CompletableFuture<Void> done = schedule(scheduler, "a", "a1", true);
+
+        assertTrue(offset > 0 && offset < 60_000L);
+        assertTrue(started.isEmpty());
+        assertEquals(1, scheduler.queuedCount());
+        verify(mockTimer).schedule(any(Runnable.class), eq(offset), eq(TimeUnit.MILLISECONDS));
+        assertFalse(done.isDone());
+    }
+}
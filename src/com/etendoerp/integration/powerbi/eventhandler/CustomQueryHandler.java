@@ -1,24 +1,32 @@
 package com.etendoerp.integration.powerbi.eventhandler;
 
 
+import java.sql.SQLException;
+
 import javax.enterprise.event.Observes;
 
+import com.etendoerp.integration.powerbi.data.BiQuery;
 import com.etendoerp.integration.powerbi.data.BiQueryCustom;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.openbravo.base.exception.OBException;
 import org.openbravo.base.model.Entity;
 import org.openbravo.base.model.ModelProvider;
 import org.openbravo.base.model.Property;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
 import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEvent;
 import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
 
 import org.openbravo.client.kernel.event.EntityUpdateEvent;
 import com.etendoerp.integration.powerbi.eventhandler.QueryValidationUtil;
+import com.etendoerp.integration.powerbi.processes.StaleDatasets;
 
 class CustomQueryHandler extends EntityPersistenceEventObserver {
     private static Entity[] entities = {ModelProvider.getInstance().getEntity(BiQueryCustom.ENTITY_NAME)};
     private static final Logger logger = LogManager.getLogger();
     Property customQueryProp = entities[0].getProperty(BiQueryCustom.PROPERTY_QUERY);
+    Property biQueryProp = entities[0].getProperty(BiQueryCustom.PROPERTY_BIQUERY);
     @Override
     protected Entity[] getObservedEntities() {
         return entities;
@@ -29,6 +37,7 @@ class CustomQueryHandler extends EntityPersistenceEventObserver {
             return;
         }
         QueryValidationUtil.queryValidation(event, customQueryProp, logger);
+        markStale(event);
     }
 
     public void onSave(@Observes EntityNewEvent event) {
@@ -36,7 +45,30 @@ class CustomQueryHandler extends EntityPersistenceEventObserver {
             return;
         }
         QueryValidationUtil.queryValidation(event, customQueryProp, logger);
+        markStale(event);
     }
 
+    public void onDelete(@Observes EntityDeleteEvent event) {
+        if (!isValidEvent(event)) {
+            return;
+        }
+        markStale(event);
+    }
 
+    /**
+     * The custom query changes the dataset of its base query, which is re-synced on its own, see
+     * {@link StaleDatasets}.
+     */
+    private void markStale(EntityPersistenceEvent event) {
+        BiQuery biQuery = (BiQuery) event.getCurrentState(biQueryProp);
+        if (biQuery == null) {
+            return;
+        }
+        try {
+            StaleDatasets.mark(biQuery.getId());
+        } catch (SQLException e) {
+            logger.error("Error marking BI query {} as stale", biQuery.getId(), e);
+            throw new OBException(e.getMessage());
+        }
+    }
 }
\ No newline at end of file
@@ -1,8 +1,11 @@
 package com.etendoerp.integration.powerbi.eventhandler;
 
 
+import java.util.Date;
+
 import javax.enterprise.event.Observes;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.openbravo.base.exception.OBException;
@@ -10,6 +13,7 @@ import org.openbravo.base.model.Entity;
 import org.openbravo.base.model.ModelProvider;
 import org.openbravo.base.model.Property;
 import org.openbravo.client.kernel.event.*;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
 
 import com.etendoerp.integration.powerbi.data.BiQuery;
 import com.etendoerp.integration.powerbi.eventhandler.QueryValidationUtil;
@@ -18,6 +22,8 @@ class EtendoBaseQueryHandler extends EntityPersistenceEventObserver {
   private static Entity[] entities = {ModelProvider.getInstance().getEntity(BiQuery.ENTITY_NAME)};
   private static final Logger logger = LogManager.getLogger();
   Property queryProp = entities[0].getProperty(BiQuery.PROPERTY_QUERY);
+  Property materializedProp = entities[0].getProperty(BiQuery.PROPERTY_MATERIALIZED);
+  Property staleSinceProp = entities[0].getProperty(BiQuery.PROPERTY_STALESINCE);
 
   @Override
   protected Entity[] getObservedEntities() {
@@ -29,6 +35,14 @@ class EtendoBaseQueryHandler extends EntityPersistenceEventObserver {
       return;
     }
     QueryValidationUtil.queryValidation(event, queryProp, logger);
+    // the dataset is re-synced on its own, see StaleDatasets
+    event.setCurrentState(staleSinceProp, new Date());
+
+    // the views are created and dropped by RefreshMaterializedQueries, outside of this transaction
+    // and as their restricted owner
+    if (isMaterialized(event.getCurrentState(materializedProp))) {
+      checkMaterializable((String) event.getCurrentState(queryProp));
+    }
   }
 
   public void onSave(@Observes EntityNewEvent event) {
@@ -36,6 +50,11 @@ class EtendoBaseQueryHandler extends EntityPersistenceEventObserver {
       return;
     }
     QueryValidationUtil.queryValidation(event, queryProp, logger);
+    event.setCurrentState(staleSinceProp, new Date());
+
+    if (isMaterialized(event.getCurrentState(materializedProp))) {
+      checkMaterializable((String) event.getCurrentState(queryProp));
+    }
   }
 
   public void onDelete(@Observes EntityDeleteEvent event) {
@@ -51,4 +70,15 @@ class EtendoBaseQueryHandler extends EntityPersistenceEventObserver {
       throw new OBException("ETPBIC_CantDeleteEtendoQuery");
     }
   }
+
+  private static void checkMaterializable(String query) {
+    // intermediate queries are computed by each sync run, a view can't read them
+    if (StringUtils.contains(query, "{{")) {
+      throw new OBException(OBMessageUtils.messageBD("ETPBIC_MaterializedReferences"));
+    }
+  }
+
+  private static boolean isMaterialized(Object state) {
+    return Boolean.TRUE.equals(state);
+  }
 }
\ No newline at end of file
@@ -17,6 +17,116 @@ public final class QueryValidationUtil {
         if(!query.trim().toLowerCase().startsWith("select")){
             throw new OBException(OBMessageUtils.messageBD("ETPBIC_InvalidQuerySyntax"));
         }
+        if (!isSingleStatement(query)) {
+            throw new OBException(OBMessageUtils.messageBD("ETPBIC_MultipleStatements"));
+        }
         logger.info("custom query created");
     }
+
+    /**
+     * Returns whether a query is a single statement: a semicolon outside of literals, quoted
+     * identifiers and comments can only be followed by blanks and comments. A literal, identifier
+     * or comment that is not closed makes it fail, as where the statement ends can't be told.
+     */
+    public static boolean isSingleStatement(String query) {
+        int length = query.length();
+        boolean ended = false;
+        int i = 0;
+        while (i < length) {
+            char c = query.charAt(i);
+            char next = i + 1 < length ? query.charAt(i + 1) : 0;
+            if (c == '-' && next == '-') {
+                int end = query.indexOf('\n', i);
+                i = end < 0 ? length : end + 1;
+            } else if (c == '/' && next == '*') {
+                i = skipBlockComment(query, i);
+            } else if (Character.isWhitespace(c)) {
+                i++;
+            } else if (ended) {
+                return false;
+            } else if (c == ';') {
+                ended = true;
+                i++;
+            } else if (c == '\'') {
+                boolean escapes = i > 0 && (query.charAt(i - 1) == 'E' || query.charAt(i - 1) == 'e')
+                        && (i == 1 || !isIdentifierPart(query.charAt(i - 2)));
+                i = skipQuoted(query, i, '\'', escapes);
+            } else if (c == '"') {
+                i = skipQuoted(query, i, '"', false);
+            } else if (c == '$' && (i == 0 || !isIdentifierPart(query.charAt(i - 1)))) {
+                i = skipDollarQuoted(query, i);
+            } else {
+                i++;
+            }
+            if (i < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the position after the comment, or -1 if it is not closed. Comments can be nested. */
+    private static int skipBlockComment(String query, int start) {
+        int depth = 0;
+        int i = start;
+        while (i + 1 < query.length()) {
+            String pair = query.substring(i, i + 2);
+            if ("/*".equals(pair)) {
+                depth++;
+                i += 2;
+            } else if ("*/".equals(pair)) {
+                depth--;
+                i += 2;
+                if (depth == 0) {
+                    return i;
+                }
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the position after the closing quote, or -1 if it is not closed. */
+    private static int skipQuoted(String query, int start, char quote, boolean escapes) {
+        int i = start + 1;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (escapes && c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                if (i + 1 < query.length() && query.charAt(i + 1) == quote) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position after a dollar quoted literal, like {@code $$text$$} or
+     * {@code $tag$text$tag$}, the next position if the dollar doesn't start one, like {@code $1}, or
+     * -1 if it is not closed.
+     */
+    private static int skipDollarQuoted(String query, int start) {
+        int i = start + 1;
+        while (i < query.length() && isIdentifierPart(query.charAt(i)) && query.charAt(i) != '$') {
+            i++;
+        }
+        if (i >= query.length() || query.charAt(i) != '$'
+                || (i > start + 1 && Character.isDigit(query.charAt(start + 1)))) {
+            return start + 1;
+        }
+        String tag = query.substring(start, i + 1);
+        int end = query.indexOf(tag, i + 1);
+        return end < 0 ? -1 : end + tag.length();
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
 }
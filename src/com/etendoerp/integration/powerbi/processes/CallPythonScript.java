@@ -3,11 +3,13 @@ package com.etendoerp.integration.powerbi.processes;
 import com.etendoerp.integration.powerbi.data.BiConnection;
 import com.etendoerp.integration.powerbi.data.BiDataDestination;
 import com.etendoerp.integration.powerbi.data.BiExecutionVariables;
+import com.etendoerp.integration.powerbi.processes.ReplicaRouter.Endpoint;
 
 import com.etendoerp.webhookevents.data.DefinedWebHook;
 import com.etendoerp.webhookevents.data.DefinedwebhookAccess;
 import com.etendoerp.webhookevents.data.DefinedwebhookToken;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.log4j.Logger;
 import org.hibernate.criterion.Restrictions;
 import org.openbravo.base.exception.OBException;
@@ -18,6 +20,7 @@ import org.openbravo.dal.security.OrganizationStructureProvider;
 import org.openbravo.dal.service.OBCriteria;
 import org.openbravo.dal.service.OBDal;
 import org.openbravo.erpCommon.utility.OBMessageUtils;
+import org.openbravo.erpCommon.utility.SequenceIdData;
 import org.openbravo.model.common.enterprise.Organization;
 import org.openbravo.model.ad.system.Client;
 import org.openbravo.scheduling.ProcessBundle;
@@ -25,13 +28,42 @@ import org.openbravo.scheduling.ProcessLogger;
 import org.openbravo.service.db.DalBaseProcess;
 
 import java.io.File;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class CallPythonScript extends DalBaseProcess {
 
     private static final Logger log = Logger.getLogger(CallPythonScript.class);
 
+    /** Rows fetched by the script in each batch. */
+    static final String FETCH_SIZE_PROPERTY = "etpbic.sync.fetchSize";
+    /** Memory the script can use to merge a custom query, beyond it the merge spills to disk. */
+    static final String MERGE_MEMORY_PROPERTY = "etpbic.sync.mergeMemoryMb";
+    /** Seconds the checks of a destination server passed by a run are trusted by the next runs. */
+    static final String DESTINATION_CACHE_PROPERTY = "etpbic.sync.destinationCacheSeconds";
+    /** Datasets the script can have written and waiting to be uploaded. */
+    static final String UPLOAD_QUEUE_PROPERTY = "etpbic.sync.uploadQueue";
+    /** Megabytes of the datasets the script can have written and waiting to be uploaded. */
+    static final String UPLOAD_QUEUE_MB_PROPERTY = "etpbic.sync.uploadQueueMb";
+    /** Connections the script can use to extract a single large query in key ranges, 1 to disable it. */
+    static final String PARALLEL_WORKERS_PROPERTY = "etpbic.sync.parallelQueryWorkers";
+    /** Estimated rows from which a query is extracted in key ranges. */
+    static final String PARALLEL_MIN_ROWS_PROPERTY = "etpbic.sync.parallelQueryMinRows";
+    /** Seconds the query of a dataset can run in the database, 0 for no limit. */
+    static final String QUERY_TIMEOUT_PROPERTY = "etpbic.sync.queryTimeoutSeconds";
+    /** Seconds a whole run of the script can last, 0 for no limit. */
+    static final String RUN_TIMEOUT_PROPERTY = "etpbic.sync.runTimeoutSeconds";
+
     @Override
     protected void doExecute(ProcessBundle bundle) throws Exception {
         log.info("java process running");
@@ -41,143 +73,24 @@ public class CallPythonScript extends DalBaseProcess {
         try {
             OBContext.setAdminMode(true);
             Organization contextOrg = OBContext.getOBContext().getCurrentOrganization();
-            StringBuilder argsStr = new StringBuilder();
-
-            OrganizationStructureProvider orgProvider = new OrganizationStructureProvider();
-            Organization orgHavingConn = contextOrg;
-            int parentListCount = orgProvider.getParentList(contextOrg.getId(), true).size();
-            BiConnection config = getBiConnection(orgProvider, orgHavingConn, parentListCount, logger);
-
-            // get webhook name
-            OBCriteria<DefinedWebHook> dwCrit = OBDal.getInstance().createCriteria(DefinedWebHook.class);
-            dwCrit.add(Restrictions.eq(DefinedWebHook.PROPERTY_ID, config.getWebhook().getId()));
-            DefinedWebHook dw = (DefinedWebHook) dwCrit.setMaxResults(1).uniqueResult();
-
-            checkNull(dw == null, "ETPBIC_NoWebhookError");
-
-            // get webhook access
-            OBCriteria<DefinedwebhookAccess> dwaCrit = OBDal.getInstance().createCriteria(DefinedwebhookAccess.class);
-            dwaCrit.add(Restrictions.eq(DefinedwebhookAccess.PROPERTY_SMFWHEDEFINEDWEBHOOK, dw));
-            // suppose to have just 1 dw access active.
-            DefinedwebhookAccess dwa = (DefinedwebhookAccess) dwaCrit.setMaxResults(1).uniqueResult();
-
-            checkNull(dwa == null, "ETPBIC_NoWebhookAccessError");
-
-            // get webhook token
-            DefinedwebhookToken dwt = dwa.getSmfwheDefinedwebhookToken();
-
-            checkNull(dwt == null, "ETPBIC_NoWebhookTokenError");
-
             Client clientObj = OBContext.getOBContext().getCurrentClient();
-
-            String whName = dw.getName();
-            String whToken = dwt.getAPIKey();
-
-            String repoPath = config.getRepositoryPath();
-            Properties obProperties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
-
-            String bbddSid = getBbddSid(obProperties);
-
-            String bbddUrl = getBbddUrl(obProperties);
-
-            String[] parts = bbddUrl.split("://|:");
-            String bbddHost = parts[2];
-            String bbddPort = parts[3];
-
-            argsStr.append(bbddSid + ",");
-            argsStr.append(bbddHost + ",");
-            argsStr.append(bbddPort + ",");
-            argsStr.append(clientObj.getId() + ",");
-            argsStr.append(contextOrg.getId() + ",");
-            argsStr.append(whName + ",");
-            argsStr.append(whToken + ",");
-            argsStr.append(contextOrg.getName().replace(',', '_') + ",");
-
-            OBCriteria<BiDataDestination> dataDestCrit = OBDal.getInstance().createCriteria(BiDataDestination.class);
-            dataDestCrit.add(Restrictions.eq(BiDataDestination.PROPERTY_BICONNECTION, config));
-            List<BiDataDestination> dataDestList = dataDestCrit.list();
-
-            checkNull(dataDestList.isEmpty(), "ETPBIC_NoDataDestError");
-
-            for (BiDataDestination dataDest : dataDestList) {
-                OBCriteria<BiExecutionVariables> execVarCrit = OBDal.getInstance().createCriteria(BiExecutionVariables.class);
-                execVarCrit.add(Restrictions.eq(BiExecutionVariables.PROPERTY_BIDATADESTINATION, dataDest));
-                List<BiExecutionVariables> execVarList = execVarCrit.list();
-                String csvSeparator = "|";
-                String user = "";
-                String clientStr = "";
-                String ip = "";
-                String port = "";
-                String path = "";
-                String bbddUser = "";
-                String bbddPassword = "";
-                String privateKeyPath = "";
-                String url = "";
-
-                for (BiExecutionVariables execVar : execVarList) {
-                    switch (execVar.getVariable().toLowerCase()) {
-                        case "client":
-                            clientStr = execVar.getValue();
-                            break;
-                        case "user":
-                            user = execVar.getValue();
-                            break;
-                        case "ip":
-                            ip = execVar.getValue();
-                            break;
-                        case "port":
-                            port = execVar.getValue();
-                            break;
-                        case "path":
-                            path = execVar.getValue();
-                            break;
-                        case "bbdd_user":
-                            bbddUser = execVar.getValue();
-                            break;
-                        case "bbdd_password":
-                            bbddPassword = execVar.getValue();
-                            break;
-                        case "private-key-path":
-                            privateKeyPath = execVar.getValue();
-                            break;
-                        case "csv_separator":
-                            csvSeparator = execVar.getValue();
-                            break;
-                        case "application_url":
-                            url = execVar.getValue();
-                            break;
-                        default:
-                            break;
-                    }
-                }
-
-                if (StringUtils.isEmpty(clientStr) || StringUtils.isEmpty(user) || StringUtils.isEmpty(ip) || StringUtils.isEmpty(url)){
-                    throw new OBException(OBMessageUtils.messageBD("ETPBIC_VariablesNotFoundError"));
-                }
-
-                if (StringUtils.isEmpty(bbddPassword) || StringUtils.isEmpty(bbddUser)) {
-                    logger.logln("bbdd_user or bbdd_password variables not found. getting from openbravo.properties");
-                    bbddPassword = getBbddPassword(obProperties);
-                    bbddUser = getBbddUser(obProperties);
+            String userId = OBContext.getOBContext().getUser().getId();
+
+            // a client level run is split in one work unit per organization, shared by all the nodes
+            if ("0".equals(contextOrg.getId())) {
+                int queued = SyncWorkUnits.enqueueClientRun(clientObj, userId);
+                if (queued > 0) {
+                    logger.logln(String.format(OBMessageUtils.messageBD("ETPBIC_SyncWorkUnitsQueued"), queued));
+                    return;
                 }
+            }
 
-                port = resolveEmptyPort(port);
-                path = resolvePathDelimiter(path);
-
-                argsStr.append(csvSeparator + ",");
-                argsStr.append(clientStr.replace(',', '_') + ",");
-                argsStr.append(user + ",");
-                argsStr.append(ip + ",");
-                argsStr.append(port + ",");
-                argsStr.append(path + ",");
-                argsStr.append(bbddUser + ",");
-                argsStr.append(bbddPassword + ",");
-                argsStr.append(privateKeyPath + ",");
-                argsStr.append(url + ",");
-
-                log.debug("calling function to execute script");
-                callPythonScript(repoPath, dataDest.getScriptPath(), argsStr.toString());
-                logger.logln("executing " + dataDest.getScriptPath());
+            PreparedRun run = prepareRun(contextOrg, clientObj, userId, logger);
+            log.debug("calling function to execute script");
+            // scheduled runs are spread in time, a run requested by a user starts as soon as possible
+            boolean spread = bundle.getChannel() == ProcessBundle.Channel.SCHEDULED;
+            if (!SyncRunCoordinator.getInstance().submit(run.key, () -> scheduleScripts(run, clientObj.getId(), spread))) {
+                logger.logln(OBMessageUtils.messageBD("ETPBIC_SyncRunCoalesced"));
             }
 
         } catch (OBException e) {
@@ -192,6 +105,232 @@ public class CallPythonScript extends DalBaseProcess {
         }
     }
 
+    /**
+     * Resolves the BI connection of the organization and prepares the scripts of its data
+     * destinations.
+     *
+     * @param logger
+     *     the process logger, or null when the run is not started by the process
+     */
+    PreparedRun prepareRun(Organization contextOrg, Client clientObj, String userId, ProcessLogger logger) {
+        StringBuilder argsStr = new StringBuilder();
+
+        OrganizationStructureProvider orgProvider = new OrganizationStructureProvider();
+        Organization orgHavingConn = contextOrg;
+        int parentListCount = orgProvider.getParentList(contextOrg.getId(), true).size();
+        BiConnection config = getBiConnection(orgProvider, orgHavingConn, parentListCount, logger);
+
+        // get webhook name
+        OBCriteria<DefinedWebHook> dwCrit = OBDal.getInstance().createCriteria(DefinedWebHook.class);
+        dwCrit.add(Restrictions.eq(DefinedWebHook.PROPERTY_ID, config.getWebhook().getId()));
+        DefinedWebHook dw = (DefinedWebHook) dwCrit.setMaxResults(1).uniqueResult();
+
+        checkNull(dw == null, "ETPBIC_NoWebhookError");
+
+        // get webhook access
+        OBCriteria<DefinedwebhookAccess> dwaCrit = OBDal.getInstance().createCriteria(DefinedwebhookAccess.class);
+        dwaCrit.add(Restrictions.eq(DefinedwebhookAccess.PROPERTY_SMFWHEDEFINEDWEBHOOK, dw));
+        // suppose to have just 1 dw access active.
+        DefinedwebhookAccess dwa = (DefinedwebhookAccess) dwaCrit.setMaxResults(1).uniqueResult();
+
+        checkNull(dwa == null, "ETPBIC_NoWebhookAccessError");
+
+        // get webhook token
+        DefinedwebhookToken dwt = dwa.getSmfwheDefinedwebhookToken();
+
+        checkNull(dwt == null, "ETPBIC_NoWebhookTokenError");
+
+        String whName = dw.getName();
+        String whToken = dwt.getAPIKey();
+
+        String repoPath = config.getRepositoryPath();
+        Properties obProperties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+
+        String bbddSid = getBbddSid(obProperties);
+
+        String key = SyncRunCoordinator.key(clientObj.getId(), contextOrg.getId(), config.getId());
+        // the script reads from the first endpoint, and fails over to the others in order
+        List<Endpoint> endpoints = ReplicaRouter.getInstance().route(key,
+                ReplicaRouter.splitUrls(getBbddUrl(obProperties)), obProperties.getProperty("bbdd.url"));
+        Endpoint endpoint = endpoints.get(0);
+        String failover = endpoints.subList(1, endpoints.size()).stream()
+                .map(Endpoint::toString)
+                .collect(Collectors.joining(";"));
+
+        argsStr.append(bbddSid + ",");
+        argsStr.append(endpoint.host + ",");
+        argsStr.append(endpoint.port + ",");
+        argsStr.append(clientObj.getId() + ",");
+        argsStr.append(contextOrg.getId() + ",");
+        argsStr.append(whName + ",");
+        argsStr.append(whToken + ",");
+        argsStr.append(contextOrg.getName().replace(',', '_') + ",");
+
+        OBCriteria<BiDataDestination> dataDestCrit = OBDal.getInstance().createCriteria(BiDataDestination.class);
+        dataDestCrit.add(Restrictions.eq(BiDataDestination.PROPERTY_BICONNECTION, config));
+        List<BiDataDestination> dataDestList = dataDestCrit.list();
+
+        checkNull(dataDestList.isEmpty(), "ETPBIC_NoDataDestError");
+
+        List<ScriptLaunch> launches = new ArrayList<>();
+        for (BiDataDestination dataDest : dataDestList) {
+            OBCriteria<BiExecutionVariables> execVarCrit = OBDal.getInstance().createCriteria(BiExecutionVariables.class);
+            execVarCrit.add(Restrictions.eq(BiExecutionVariables.PROPERTY_BIDATADESTINATION, dataDest));
+            List<BiExecutionVariables> execVarList = execVarCrit.list();
+            String csvSeparator = "|";
+            String user = "";
+            String clientStr = "";
+            String ip = "";
+            String port = "";
+            String path = "";
+            String bbddUser = "";
+            String bbddPassword = "";
+            String privateKeyPath = "";
+            String url = "";
+            String statusWebhook = "";
+            Map<String, String> remoteVars = new LinkedHashMap<>();
+
+            for (BiExecutionVariables execVar : execVarList) {
+                switch (execVar.getVariable().toLowerCase()) {
+                    case "client":
+                        clientStr = execVar.getValue();
+                        break;
+                    case "user":
+                        user = execVar.getValue();
+                        break;
+                    case "ip":
+                        ip = execVar.getValue();
+                        break;
+                    case "port":
+                        port = execVar.getValue();
+                        break;
+                    case "path":
+                        path = execVar.getValue();
+                        break;
+                    case "bbdd_user":
+                        bbddUser = execVar.getValue();
+                        break;
+                    case "bbdd_password":
+                        bbddPassword = execVar.getValue();
+                        break;
+                    case "private-key-path":
+                        privateKeyPath = execVar.getValue();
+                        break;
+                    case "csv_separator":
+                        csvSeparator = execVar.getValue();
+                        break;
+                    case "application_url":
+                        url = execVar.getValue();
+                        break;
+                    case "status_webhook":
+                        statusWebhook = execVar.getValue();
+                        break;
+                    case "push_url":
+                    case "push_token":
+                    case "push_format":
+                    case "push_batch_rows":
+                    case "push_concurrency":
+                    case "s3_endpoint":
+                    case "s3_bucket":
+                    case "s3_prefix":
+                    case "s3_region":
+                    case "s3_access_key":
+                    case "s3_secret_key":
+                    case "s3_part_size_mb":
+                    case "s3_concurrency":
+                        remoteVars.put(execVar.getVariable().toLowerCase(), execVar.getValue());
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            // HTTP push and object storage destinations send the data to push_url or s3_bucket,
+            // without a server to rsync the files to
+            boolean remote = StringUtils.isNotEmpty(remoteVars.get("push_url"))
+                    || StringUtils.isNotEmpty(remoteVars.get("s3_bucket"));
+            if (StringUtils.isEmpty(clientStr) || StringUtils.isEmpty(url)
+                    || (!remote && (StringUtils.isEmpty(user) || StringUtils.isEmpty(ip)))) {
+                throw new OBException(OBMessageUtils.messageBD("ETPBIC_VariablesNotFoundError"));
+            }
+
+            if (StringUtils.isEmpty(bbddPassword) || StringUtils.isEmpty(bbddUser)) {
+                logln(logger, "bbdd_user or bbdd_password variables not found. getting from openbravo.properties");
+                bbddPassword = getBbddPassword(obProperties);
+                bbddUser = getBbddUser(obProperties);
+            }
+
+            port = resolveEmptyPort(port);
+            path = resolvePathDelimiter(path);
+
+            // each destination gets its own copy of the common arguments
+            StringBuilder destArgs = new StringBuilder(argsStr);
+            destArgs.append(csvSeparator + ",");
+            destArgs.append(clientStr.replace(',', '_') + ",");
+            destArgs.append(user + ",");
+            destArgs.append(ip + ",");
+            destArgs.append(port + ",");
+            destArgs.append(path + ",");
+            destArgs.append(bbddUser + ",");
+            destArgs.append(bbddPassword + ",");
+            destArgs.append(privateKeyPath + ",");
+            destArgs.append(url + ",");
+
+            appendExtraArg(destArgs, "status_webhook", statusWebhook);
+            appendExtraArg(destArgs, "failover", failover);
+            for (Map.Entry<String, String> remoteVar : remoteVars.entrySet()) {
+                appendExtraArg(destArgs, remoteVar.getKey(), remoteVar.getValue());
+            }
+            appendExtraArg(destArgs, "fetch_size", obProperties.getProperty(FETCH_SIZE_PROPERTY));
+            appendExtraArg(destArgs, "merge_memory_mb", obProperties.getProperty(MERGE_MEMORY_PROPERTY));
+            appendExtraArg(destArgs, "destination_cache_ttl", obProperties.getProperty(DESTINATION_CACHE_PROPERTY));
+            appendExtraArg(destArgs, "upload_queue", obProperties.getProperty(UPLOAD_QUEUE_PROPERTY));
+            appendExtraArg(destArgs, "upload_queue_mb", obProperties.getProperty(UPLOAD_QUEUE_MB_PROPERTY));
+            appendExtraArg(destArgs, "parallel_workers", obProperties.getProperty(PARALLEL_WORKERS_PROPERTY));
+            appendExtraArg(destArgs, "parallel_min_rows", obProperties.getProperty(PARALLEL_MIN_ROWS_PROPERTY));
+            appendExtraArg(destArgs, "query_timeout", obProperties.getProperty(QUERY_TIMEOUT_PROPERTY));
+            appendExtraArg(destArgs, "run_timeout", obProperties.getProperty(RUN_TIMEOUT_PROPERTY));
+            appendExtraArg(destArgs, "max_replica_lag",
+                    String.valueOf(SyncLoadMonitor.getMaxLagSeconds(obProperties)));
+
+            ScriptLaunch launch = prepareScript(repoPath, dataDest.getScriptPath(), destArgs.toString());
+            launches.add(launch.runBy(clientObj.getId(), contextOrg.getId(), userId));
+            logln(logger, "executing " + dataDest.getScriptPath());
+        }
+
+        // the destinations share the working directories of the organization, so they are
+        // run one after another, and only one run per organization and connection at a time
+        return new PreparedRun(key, launches);
+    }
+
+    private static void logln(ProcessLogger logger, String msg) {
+        if (logger != null) {
+            logger.logln(msg);
+        } else {
+            log.info(msg);
+        }
+    }
+
+    /**
+     * Appends an optional argument, read by the script as a {@code key=value} pair after the
+     * positional ones.
+     */
+    static void appendExtraArg(StringBuilder args, String key, String value) {
+        if (StringUtils.isNotEmpty(value)) {
+            args.append(key).append('=').append(value.replace(',', '_')).append(',');
+        }
+    }
+
+    /**
+     * Joins dataset names into the value of an argument, separated by {@code ;}. Each name is URL
+     * encoded, so names with commas, semicolons or spaces reach the script unchanged.
+     */
+    static String joinNames(Collection<String> names) {
+        return names.stream()
+                .map(name -> URLEncoder.encode(name, StandardCharsets.UTF_8))
+                .collect(Collectors.joining(";"));
+    }
+
     private static String resolvePathDelimiter(String path) {
         if (!path.endsWith("/")) {
             path += "/";
@@ -248,13 +387,112 @@ public class CallPythonScript extends DalBaseProcess {
             }
         }
         if (conf == null) {
-            logger.logln("No config found for client/organization.");
+            logln(logger, "No config found for client/organization.");
             throw new OBException(OBMessageUtils.messageBD("ETPBIC_NullConfigError")); // catch will capture
         }
         return conf;
     }
 
-    public void callPythonScript(String repositoryPath, String scriptName, String argsStr) {
+    /**
+     * Queues the scripts of a run in {@link SyncScheduler}. Returns a stage completed when the run
+     * ends.
+     */
+    CompletableFuture<Void> scheduleScripts(PreparedRun run, String clientId, boolean spread) {
+        return SyncScheduler.getInstance().schedule(clientId, run.key, spread,
+                () -> runScripts(run.launches, spread));
+    }
+
+    /**
+     * Runs the given scripts one after another. Returns a stage completed when the last one ends.
+     *
+     * @param scheduled
+     *     true for the scheduled runs, which skip the datasets that keep timing out
+     */
+    CompletableFuture<Void> runScripts(List<ScriptLaunch> launches, boolean scheduled) {
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+        for (ScriptLaunch launch : launches) {
+            chain = chain.thenCompose(previous -> runScript(launch, scheduled));
+        }
+        return chain;
+    }
+
+    /**
+     * Registers a new run of the script in {@link SyncRunRegistry} and starts it. Returns a stage
+     * completed when the script ends. As it is called outside the process request, the changes are
+     * committed here.
+     * <p>
+     * The datasets that timed out recently are extracted last, and skipped by the scheduled runs if
+     * they keep timing out, see {@link SyncQueryTimeouts}. The script stops itself when its run
+     * timeout expires; if it is still alive {@link SyncRunRegistry#KILL_GRACE_SECONDS} later, it is
+     * stopped from here.
+     */
+    CompletableFuture<Void> runScript(ScriptLaunch launch, boolean scheduled) {
+        String runId = SequenceIdData.getUUID();
+        SyncRunRegistry registry = SyncRunRegistry.getInstance();
+        try {
+            registry.start(runId, launch.clientId, launch.orgId, launch.userId);
+            StringBuilder args = new StringBuilder(launch.args);
+            appendExtraArg(args, "run_id", runId);
+            SyncQueryTimeouts timeouts = SyncQueryTimeouts.getInstance();
+            appendExtraArg(args, "deferred", joinNames(timeouts.getDeferred(launch.clientId)));
+            if (scheduled) {
+                appendExtraArg(args, "skip", joinNames(timeouts.getSkipped(launch.clientId)));
+            }
+            if (launch.datasets != null) {
+                appendExtraArg(args, "only", joinNames(launch.datasets));
+            }
+            // nobody reads the output, so it must not fill the pipe while the script is running
+            Process process = startScript(launch, args.toString(), ProcessBuilder.Redirect.DISCARD);
+            registry.attach(runId, process);
+            long runTimeout = NumberUtils.toLong(OBPropertiesProvider.getInstance().getOpenbravoProperties()
+                    .getProperty(RUN_TIMEOUT_PROPERTY), 0);
+            if (runTimeout > 0) {
+                process.onExit()
+                        .completeOnTimeout(process, runTimeout + SyncRunRegistry.KILL_GRACE_SECONDS, TimeUnit.SECONDS)
+                        .thenAccept(p -> registry.stop(runId, p));
+            }
+            return process.onExit().thenApply(p -> {
+                registry.exited(runId);
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("Error executing python script " + launch.scriptName, e);
+            try {
+                registry.record(runId,
+                        Map.of("phase", "launch-failed", "status", SyncRunRegistry.STATUS_ERROR));
+            } catch (SQLException e1) {
+                log.error("Error updating run " + runId, e1);
+            }
+            return CompletableFuture.completedFuture(null);
+        } finally {
+            OBDal.getInstance().commitAndClose();
+        }
+    }
+
+    public Process callPythonScript(String repositoryPath, String scriptName, String argsStr) {
+        ScriptLaunch launch = prepareScript(repositoryPath, scriptName, argsStr);
+        return startScript(launch, launch.args, ProcessBuilder.Redirect.DISCARD);
+    }
+
+    /**
+     * Starts the script of a destination in dry run mode: it estimates the datasets of the run
+     * without extracting nor uploading them, and writes the estimates to its output, see
+     * {@link PreviewBiSync}.
+     *
+     * @param cacheSeconds
+     *     seconds the script reuses the estimates of a query, or null for its default
+     */
+    Process startDryRun(ScriptLaunch launch, String cacheSeconds) {
+        StringBuilder args = new StringBuilder(launch.args);
+        appendExtraArg(args, "dry_run", "Y");
+        appendExtraArg(args, "preview_cache_ttl", cacheSeconds);
+        return startScript(launch, args.toString(), ProcessBuilder.Redirect.PIPE);
+    }
+
+    /**
+     * Resolves and validates the path of a script, without running it.
+     */
+    ScriptLaunch prepareScript(String repositoryPath, String scriptName, String argsStr) {
         // repositoryPath is supposed to be a directory
         StringBuilder repoPath = new StringBuilder(repositoryPath);
         StringBuilder scriptPath = new StringBuilder(scriptName);
@@ -268,13 +506,18 @@ public class CallPythonScript extends DalBaseProcess {
         if (!file.exists()) {
             throw new OBException(OBMessageUtils.messageBD("ETPBIC_ScriptNotFound"));
         }
+        return new ScriptLaunch(scriptName, finalScriptPath, getWebContentPath(repoPath.toString()), argsStr);
+    }
+
+    private static Process startScript(ScriptLaunch launch, String argsStr, ProcessBuilder.Redirect output) {
         try {
-            ProcessBuilder pb = new ProcessBuilder("python3", finalScriptPath,
+            ProcessBuilder pb = new ProcessBuilder("python3", launch.scriptPath,
                     argsStr);
-            pb.directory(new File(getWebContentPath(repoPath.toString())));
+            pb.directory(new File(launch.workDir));
             pb.redirectErrorStream(true);
-            log.debug("executing python script: " + scriptName);
-            pb.start();
+            pb.redirectOutput(output);
+            log.debug("executing python script: " + launch.scriptName);
+            return pb.start();
         } catch (Exception e) {
             throw new OBException(OBMessageUtils.messageBD("ETPBIC_ExecutePythonError"));
         }
@@ -284,4 +527,57 @@ public class CallPythonScript extends DalBaseProcess {
         return DalContextListener.getServletContext().getRealPath(pathToScript);
     }
 
+    /**
+     * The scripts of a run and its key in {@link SyncRunCoordinator}.
+     */
+    static class PreparedRun {
+        final String key;
+        final List<ScriptLaunch> launches;
+
+        PreparedRun(String key, List<ScriptLaunch> launches) {
+            this.key = key;
+            this.launches = launches;
+        }
+
+        /**
+         * Restricts the run to the given datasets, the rest keep their last published files. See
+         * {@link StaleDatasets}.
+         */
+        PreparedRun only(Collection<String> datasets) {
+            for (ScriptLaunch launch : launches) {
+                launch.datasets = datasets;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * A script ready to be run for a data destination.
+     */
+    static class ScriptLaunch {
+        private final String scriptName;
+        private final String scriptPath;
+        private final String workDir;
+        private final String args;
+        private String clientId;
+        private String orgId;
+        private String userId;
+        /** The datasets extracted by the run, or null for all of them. */
+        private Collection<String> datasets;
+
+        ScriptLaunch(String scriptName, String scriptPath, String workDir, String args) {
+            this.scriptName = scriptName;
+            this.scriptPath = scriptPath;
+            this.workDir = workDir;
+            this.args = args;
+        }
+
+        ScriptLaunch runBy(String clientId, String orgId, String userId) {
+            this.clientId = clientId;
+            this.orgId = orgId;
+            this.userId = userId;
+            return this;
+        }
+    }
+
 }
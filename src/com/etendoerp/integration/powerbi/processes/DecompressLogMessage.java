@@ -0,0 +1,83 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.erpCommon.utility.OBError;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+import org.openbravo.scheduling.ProcessBundle;
+import org.openbravo.service.db.DalBaseProcess;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Button process of the BI Logs Monitor window that restores the full message of a log entry
+ * compressed by {@link PurgeBiLogs}. The message is only decompressed when it is requested, and it
+ * is streamed from the compressed column into the message column.
+ */
+public class DecompressLogMessage extends DalBaseProcess {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final String LOG_ID_PARAM = "Etpbic_Log_ID";
+
+    private static final String COMPRESSED_MESSAGE_SQL = "SELECT message_compressed FROM etpbic_log"
+            + " WHERE etpbic_log_id = ? AND iscompressed = 'Y'";
+    private static final String RESTORE_MESSAGE_SQL = "UPDATE etpbic_log SET message = ?, message_compressed = NULL,"
+            + " iscompressed = 'N' WHERE etpbic_log_id = ?";
+
+    @Override
+    protected void doExecute(ProcessBundle bundle) throws Exception {
+        String logId = (String) bundle.getParams().get(LOG_ID_PARAM);
+        OBError result = new OBError();
+        try {
+            OBContext.setAdminMode(true);
+            if (decompress(logId)) {
+                result.setType("Success");
+                result.setTitle(OBMessageUtils.messageBD("Success"));
+            } else {
+                result.setType("Warning");
+                result.setTitle(OBMessageUtils.messageBD("Warning"));
+                result.setMessage(OBMessageUtils.messageBD("ETPBIC_LogNotCompressed"));
+            }
+            bundle.setResult(result);
+        } catch (Exception e) {
+            log.error("Error decompressing BI log {}", logId, e);
+            throw new OBException(e.getMessage());
+        } finally {
+            OBContext.restorePreviousMode();
+        }
+    }
+
+    /**
+     * Restores the message of the given log entry. Returns false if the entry is not compressed.
+     */
+    static boolean decompress(String logId) throws Exception {
+        Connection conn = OBDal.getInstance().getConnection(true);
+        try (PreparedStatement select = conn.prepareStatement(COMPRESSED_MESSAGE_SQL)) {
+            select.setString(1, logId);
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next() || rs.getBinaryStream(1) == null) {
+                    return false;
+                }
+                try (InputStream compressed = rs.getBinaryStream(1);
+                     Reader message = new InputStreamReader(new GZIPInputStream(compressed), StandardCharsets.UTF_8);
+                     PreparedStatement update = conn.prepareStatement(RESTORE_MESSAGE_SQL)) {
+                    update.setCharacterStream(1, message);
+                    update.setString(2, logId);
+                    update.executeUpdate();
+                }
+            }
+        }
+        return true;
+    }
+}
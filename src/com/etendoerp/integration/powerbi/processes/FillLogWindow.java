@@ -2,29 +2,71 @@ package com.etendoerp.integration.powerbi.processes;
 
 import com.etendoerp.integration.powerbi.data.BiLog;
 import com.etendoerp.webhookevents.services.BaseWebhookService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.openbravo.base.exception.OBException;
 import org.openbravo.base.provider.OBProvider;
+import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBDal;
 import org.openbravo.erpCommon.utility.OBMessageUtils;
 import org.openbravo.model.ad.system.Client;
 import org.openbravo.model.common.enterprise.Organization;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Base64;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * Webhook used by the sync scripts to write their execution log into the BI Logs Monitor window.
+ * <p>
+ * Two modes are supported:
+ * <ul>
+ * <li>Legacy: the whole log is received in the {@code description} parameter and stored in a new
+ * {@link BiLog}.</li>
+ * <li>Chunked: the log is received in pieces in the {@code chunk} parameter, as a base64 encoded
+ * gzip stream, usually in the body of a POST request. The first chunk creates the log entry and
+ * returns its id in the {@code logid} response variable; following chunks including that
+ * {@code logid} are appended to the same entry. Each chunk is decompressed while it is streamed
+ * into the database, so the full log never has to be held in memory.</li>
+ * </ul>
+ * The scripts send the chunks again when they don't get the response, so the chunked mode is
+ * idempotent. A script sends the {@code logid} of the entry from the first chunk, the id of its
+ * run, and the entry is created with that id if it doesn't exist yet. Each chunk carries its byte
+ * {@code offset} in the log, and it is appended only if the stored message has that length, so a
+ * chunk already appended is skipped.
+ */
 public class FillLogWindow extends BaseWebhookService {
 
+    private static final Logger logger = LogManager.getLogger();
+
+    static final String PARAM_CHUNK = "chunk";
+    static final String PARAM_LOG_ID = "logid";
+    static final String PARAM_LOG_TYPE = "logtype";
+    static final String PARAM_OFFSET = "offset";
+
+    private static final String APPEND_MESSAGE_SQL = "UPDATE etpbic_log SET message = message || ?,"
+            + " type = COALESCE(?, type), updated = now() WHERE etpbic_log_id = ?"
+            + " AND octet_length(message) = COALESCE(?, octet_length(message))";
+
     @Override
     public void get(Map<String, String> parameter, Map<String, String> responseVars) {
+        if (parameter.containsKey(PARAM_CHUNK) || parameter.containsKey(PARAM_LOG_ID)) {
+            appendLog(parameter, responseVars);
+            return;
+        }
         try {
-            String orgId = parameter.get("organization");
-            Organization org = OBDal.getInstance().get(Organization.class, orgId);
-            String clientId = parameter.get("client");
-            Client client = OBDal.getInstance().get(Client.class, clientId);
-            BiLog log = OBProvider.getInstance().get(BiLog.class);
-            log.setNewOBObject(true);
-            log.setClient(client);
-            log.setOrganization(org);
-            log.setLogType(parameter.get("logtype"));
+            BiLog log = createLog(parameter);
             log.setMessage(parameter.get("description"));
             OBDal.getInstance().save(log);
             OBDal.getInstance().flush();
@@ -32,4 +74,82 @@ public class FillLogWindow extends BaseWebhookService {
             throw new OBException(OBMessageUtils.messageBD("ETPBIC_LogCreationError"));
         }
     }
+
+    private void appendLog(Map<String, String> parameter, Map<String, String> responseVars) {
+        try {
+            OBContext.setAdminMode(true);
+            String logId = parameter.get(PARAM_LOG_ID);
+            if (StringUtils.isEmpty(logId) || OBDal.getInstance().get(BiLog.class, logId) == null) {
+                BiLog biLog = createLog(parameter);
+                if (StringUtils.isNotEmpty(logId)) {
+                    biLog.setId(logId);
+                }
+                biLog.setMessage("");
+                OBDal.getInstance().save(biLog);
+                OBDal.getInstance().flush();
+                logId = biLog.getId();
+            }
+            Long offset = StringUtils.isEmpty(parameter.get(PARAM_OFFSET)) ? null
+                    : Long.valueOf(parameter.get(PARAM_OFFSET).trim());
+            if (!appendChunk(logId, parameter.get(PARAM_CHUNK),
+                    StringUtils.trimToNull(parameter.get(PARAM_LOG_TYPE)), offset)) {
+                logger.debug("Chunk at offset {} of BI log {} already appended, skipped", offset, logId);
+            }
+            responseVars.put(PARAM_LOG_ID, logId);
+        } catch (Exception e) {
+            logger.error("Error appending to BI log: {}", e.getMessage(), e);
+            throw new OBException(OBMessageUtils.messageBD("ETPBIC_LogCreationError"));
+        } finally {
+            OBContext.restorePreviousMode();
+        }
+    }
+
+    private static BiLog createLog(Map<String, String> parameter) {
+        Organization org = OBDal.getInstance().get(Organization.class, parameter.get("organization"));
+        Client client = OBDal.getInstance().get(Client.class, parameter.get("client"));
+        BiLog log = OBProvider.getInstance().get(BiLog.class);
+        log.setNewOBObject(true);
+        log.setClient(client);
+        log.setOrganization(org);
+        log.setLogType(parameter.get(PARAM_LOG_TYPE));
+        return log;
+    }
+
+    /**
+     * Appends a compressed chunk to the message of an existing log. The concatenation is done by the
+     * database, so the message already stored is never loaded. With an offset, the chunk is only
+     * appended if the message has that length in bytes. Returns whether it was appended.
+     */
+    static boolean appendChunk(String logId, String chunk, String logType, Long offset)
+            throws SQLException, IOException {
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(APPEND_MESSAGE_SQL);
+             Reader reader = decodeChunk(chunk)) {
+            ps.setCharacterStream(1, reader);
+            ps.setString(2, logType);
+            ps.setString(3, logId);
+            if (offset == null) {
+                ps.setNull(4, Types.BIGINT);
+            } else {
+                ps.setLong(4, offset);
+            }
+            return ps.executeUpdate() > 0;
+        }
+    }
+
+    /**
+     * Returns a reader over the text of a base64 encoded gzip chunk. Decoding and decompression are
+     * done lazily while the reader is consumed. The scripts end their chunks at a line break or, for
+     * a longer line, at a character boundary, so a chunk that doesn't hold whole characters is
+     * rejected instead of storing replacement characters in the log.
+     */
+    static Reader decodeChunk(String chunk) throws IOException {
+        if (StringUtils.isEmpty(chunk)) {
+            return Reader.nullReader();
+        }
+        InputStream decoded = Base64.getDecoder()
+                .wrap(new ByteArrayInputStream(chunk.getBytes(StandardCharsets.US_ASCII)));
+        return new InputStreamReader(new GZIPInputStream(decoded), StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT));
+    }
 }
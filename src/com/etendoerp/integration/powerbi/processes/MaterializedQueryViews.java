@@ -0,0 +1,266 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import com.etendoerp.integration.powerbi.eventhandler.QueryValidationUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manages the materialized views of the BI queries marked as materialized.
+ * <p>
+ * The view of a query is named after the hash of its text, so the queries with the same text, like
+ * the Etendo base queries of every client, share a single view, and a query whose text changes
+ * gets a new one. {@link RefreshMaterializedQueries} creates the views, with an index on
+ * {@code clientid} and {@code orgid}, fills and refreshes them, and drops the views no materialized
+ * query uses anymore; the sync script only reads the views already filled.
+ * <p>
+ * The text of the queries is written by the users, so the views are never created nor refreshed by
+ * the owner of the application schema, nor in the transactions of the application. They are owned
+ * by a restricted database user, {@code etpbic.materialized.user} in Openbravo.properties, or
+ * {@code bbdd.readonly.user} if it is not set, which must be different from {@code bbdd.user} and
+ * have the CREATE privilege on the schema, see {@link #connect(String)}. The queries with more than
+ * one statement are rejected.
+ * <p>
+ * Dropping a view takes an exclusive lock on it, so it is never done in the transaction that saves
+ * a query: it would wait for the syncs reading the view and block them meanwhile. The background
+ * process drops it with a short {@link #DROP_LOCK_TIMEOUT_SECONDS lock timeout}, and retries in its
+ * next run if a sync is still reading it.
+ * <p>
+ * After the first refresh, a unique index on the first column of the view is tried, so the next
+ * refreshes run {@code CONCURRENTLY}, without blocking the syncs reading the view. The refreshes
+ * that are not concurrent lock the view until they end:
+ * <ul>
+ * <li>the first refresh, which is harmless, as the syncs don't read a view until it is filled,</li>
+ * <li>every refresh of a view whose first column repeats values. The queries materialized should
+ * have a unique key as first column, or refresh minutes long enough for the syncs to be rarely
+ * blocked.</li>
+ * </ul>
+ * The changes of the source tables and the time of the last refresh are kept in the comment of the
+ * view.
+ */
+public final class MaterializedQueryViews {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final String VIEW_PREFIX = "etpbic_mv_";
+    /** Hex characters of the hash of the query in the name of its view. */
+    static final int HASH_LENGTH = 24;
+
+    static final String OWNER_USER_PROPERTY = "etpbic.materialized.user";
+    static final String OWNER_PASSWORD_PROPERTY = "etpbic.materialized.password";
+    /** Seconds dropping a view waits for the syncs reading it. */
+    static final int DROP_LOCK_TIMEOUT_SECONDS = 5;
+
+    private static final String VIEW_STATE_SQL = "SELECT c.relispopulated, obj_description(c.oid, 'pg_class'),"
+            + " EXISTS (SELECT 1 FROM pg_index i WHERE i.indrelid = c.oid AND i.indisunique)"
+            + " FROM pg_class c WHERE c.relname = ? AND c.relkind = 'm' AND pg_table_is_visible(c.oid)";
+    /** Rows inserted, updated and deleted in the tables a view reads, directly or through other views. */
+    private static final String SOURCE_CHANGES_SQL = "WITH RECURSIVE sources(relid) AS ("
+            + " SELECT c.oid FROM pg_class c WHERE c.relname = ? AND pg_table_is_visible(c.oid)"
+            + " UNION SELECT d.refobjid FROM sources s JOIN pg_rewrite r ON r.ev_class = s.relid"
+            + " JOIN pg_depend d ON d.classid = 'pg_rewrite'::regclass AND d.objid = r.oid"
+            + " AND d.refclassid = 'pg_class'::regclass AND d.refobjid <> s.relid)"
+            + " SELECT COALESCE(sum(t.n_tup_ins + t.n_tup_upd + t.n_tup_del), 0) FROM pg_stat_all_tables t"
+            + " JOIN sources s ON s.relid = t.relid WHERE t.relkind <> 'm'";
+
+    private MaterializedQueryViews() {
+    }
+
+    /**
+     * Returns the name of the view of a query.
+     */
+    public static String viewName(String query) {
+        return VIEW_PREFIX + DigestUtils.md5Hex(StringUtils.defaultString(query)).substring(0, HASH_LENGTH);
+    }
+
+    /**
+     * Opens a connection to the main database as the restricted user that owns the views, with the
+     * schema of the application as search path. The queries of the views run with the privileges of
+     * this user, which can read the tables, and not with the ones of the owner of the schema.
+     */
+    static Connection connect(String schema) throws SQLException {
+        Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+        String user = getViewOwner(properties);
+        if (user == null) {
+            throw new OBException(OBMessageUtils.messageBD("ETPBIC_MaterializedNoRole"));
+        }
+        String password = StringUtils.defaultIfEmpty(properties.getProperty(OWNER_PASSWORD_PROPERTY),
+                properties.getProperty("bbdd.readonly.password"));
+        Connection conn = DriverManager.getConnection(
+                properties.getProperty("bbdd.url") + "/" + properties.getProperty("bbdd.sid"), user, password);
+        try {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT set_config('search_path', quote_ident(?), false)")) {
+                ps.setString(1, schema);
+                ps.execute();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    /**
+     * Returns the user that owns the views, or null if there is no user other than the owner of the
+     * schema.
+     */
+    static String getViewOwner(Properties properties) {
+        String user = StringUtils.defaultIfEmpty(properties.getProperty(OWNER_USER_PROPERTY),
+                properties.getProperty("bbdd.readonly.user"));
+        return StringUtils.isEmpty(user) || StringUtils.equals(user, properties.getProperty("bbdd.user")) ? null : user;
+    }
+
+    /**
+     * Creates the view of a query, empty, if it doesn't exist yet, in the transaction of the given
+     * connection of the owner of the views.
+     */
+    static void create(Connection conn, String query) throws SQLException {
+        if (!QueryValidationUtil.isSingleStatement(query)) {
+            throw new SQLException("the query has more than one statement");
+        }
+        String view = viewName(query);
+        try (Statement st = conn.createStatement()) {
+            st.execute("CREATE MATERIALIZED VIEW IF NOT EXISTS " + view + " AS "
+                    + StringUtils.removeEnd(query.trim(), ";") + "\n WITH NO DATA");
+            st.execute("CREATE INDEX IF NOT EXISTS " + view + "_org ON " + view + " (clientid, orgid)");
+            // the sync script reads the views as the read only user
+            Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+            String readOnlyUser = properties.getProperty("bbdd.readonly.user");
+            if (StringUtils.isNotEmpty(readOnlyUser) && !StringUtils.equals(readOnlyUser, getViewOwner(properties))) {
+                st.execute("GRANT SELECT ON " + view + " TO \"" + readOnlyUser.replace("\"", "\"\"") + "\"");
+            }
+        }
+    }
+
+    /**
+     * Drops a view, in the transaction of the caller. Fails if a sync reading the view doesn't end
+     * within {@link #DROP_LOCK_TIMEOUT_SECONDS}.
+     */
+    static void drop(Connection conn, String view) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("SET LOCAL lock_timeout = '" + DROP_LOCK_TIMEOUT_SECONDS + "s'");
+            st.execute("DROP MATERIALIZED VIEW IF EXISTS " + view);
+        }
+        log.info("Dropped materialized view {}", view);
+    }
+
+    /**
+     * Refreshes a view if it is empty, or if its source tables changed and at least the given
+     * minutes passed since its last refresh. Returns whether it was refreshed, or null if the view
+     * doesn't exist.
+     */
+    static Boolean refresh(Connection conn, String view, long refreshMinutes, long now) throws SQLException {
+        ViewState state = getState(conn, view);
+        if (state == null) {
+            return null;
+        }
+        // counted before the refresh, so the changes made while it runs trigger the next one
+        long changes = getSourceChanges(conn, view);
+        if (!state.isDue(changes, refreshMinutes, now)) {
+            return false;
+        }
+        try (Statement st = conn.createStatement()) {
+            st.execute("REFRESH MATERIALIZED VIEW " + (state.populated && state.unique ? "CONCURRENTLY " : "") + view);
+            if (!state.unique) {
+                tryUniqueIndex(conn, st, view);
+            }
+            st.execute("COMMENT ON MATERIALIZED VIEW " + view + " IS '" + ViewState.format(now, changes) + "'");
+        }
+        return true;
+    }
+
+    private static void tryUniqueIndex(Connection conn, Statement st, String view) throws SQLException {
+        String firstColumn;
+        try (ResultSet rs = st.executeQuery("SELECT attname FROM pg_attribute WHERE attrelid = '" + view
+                + "'::regclass AND attnum = 1")) {
+            rs.next();
+            firstColumn = rs.getString(1);
+        }
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+            st.execute("CREATE UNIQUE INDEX " + view + "_key ON " + view + " (\""
+                    + firstColumn.replace("\"", "\"\"") + "\")");
+            conn.releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            // the first column repeats values: the view is refreshed without CONCURRENTLY
+            log.info("Materialized view {} has no unique first column, it can't be refreshed concurrently", view);
+            conn.rollback(savepoint);
+        }
+    }
+
+    private static ViewState getState(Connection conn, String view) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(VIEW_STATE_SQL)) {
+            ps.setString(1, view);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? ViewState.parse(rs.getBoolean(1), rs.getBoolean(3), rs.getString(2)) : null;
+            }
+        }
+    }
+
+    private static long getSourceChanges(Connection conn, String view) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(SOURCE_CHANGES_SQL)) {
+            ps.setString(1, view);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * State of a view: whether it is filled, whether it has a unique index, and the time and the
+     * changes of the source tables of its last refresh, from its comment.
+     */
+    static class ViewState {
+        final boolean populated;
+        final boolean unique;
+        final long refreshed;
+        final long changes;
+
+        ViewState(boolean populated, boolean unique, long refreshed, long changes) {
+            this.populated = populated;
+            this.unique = unique;
+            this.refreshed = refreshed;
+            this.changes = changes;
+        }
+
+        static ViewState parse(boolean populated, boolean unique, String comment) {
+            String[] values = StringUtils.split(StringUtils.defaultString(comment), ';');
+            return new ViewState(populated, unique,
+                    values.length == 2 ? NumberUtils.toLong(StringUtils.substringAfter(values[0], "="), 0) : 0,
+                    values.length == 2 ? NumberUtils.toLong(StringUtils.substringAfter(values[1], "="), -1) : -1);
+        }
+
+        static String format(long refreshed, long changes) {
+            return "refreshed=" + refreshed + ";changes=" + changes;
+        }
+
+        /**
+         * A view is due when it is empty, or when the changes of its sources differ from the ones of
+         * its last refresh, which includes a reset of the statistics, and the minimum time between
+         * refreshes has passed.
+         */
+        boolean isDue(long currentChanges, long refreshMinutes, long now) {
+            return !populated || (currentChanges != changes
+                    && now - refreshed >= TimeUnit.MINUTES.toMillis(Math.max(0, refreshMinutes)));
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import com.etendoerp.integration.powerbi.processes.CallPythonScript.PreparedRun;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.erpCommon.utility.OBError;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+import org.openbravo.model.ad.system.Client;
+import org.openbravo.model.common.enterprise.Organization;
+import org.openbravo.scheduling.ProcessBundle;
+import org.openbravo.scheduling.ProcessLogger;
+import org.openbravo.service.db.DalBaseProcess;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process that estimates a sync run of the organization without running it, to size the
+ * schedules of a new BI Connection or organization before enabling them.
+ * <p>
+ * The configuration is resolved like {@link CallPythonScript} does, and the script of the first
+ * data destination is run in dry run mode. For every dataset the script counts the rows of its
+ * query, or takes the estimate of the planner when counting takes longer than the query timeout,
+ * measures the size of its rows in a sample, and reports them with the time the database took to
+ * count them. The queries are estimated concurrently and their estimates are cached by the script
+ * for {@code etpbic.sync.previewCacheSeconds} (3600 by default).
+ * <p>
+ * The transfer time is the size of the files at {@code etpbic.sync.previewUploadMbps} (100 by
+ * default). The script is stopped if it takes more than {@code etpbic.sync.previewTimeoutSeconds}
+ * (900 by default).
+ */
+public class PreviewBiSync extends DalBaseProcess {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final String CACHE_PROPERTY = "etpbic.sync.previewCacheSeconds";
+    static final String UPLOAD_MBPS_PROPERTY = "etpbic.sync.previewUploadMbps";
+    static final String TIMEOUT_PROPERTY = "etpbic.sync.previewTimeoutSeconds";
+    static final double DEFAULT_UPLOAD_MBPS = 100;
+    static final long DEFAULT_TIMEOUT_SECONDS = 900;
+    /** Prefix of the lines of the output of the script with the estimate of a dataset. */
+    static final String REPORT_LINE = "ETPBIC_PREVIEW\t";
+    /** Prefix of the lines of the output of the script with an error, of a dataset or of the run. */
+    static final String ERROR_LINE = "ETPBIC_PREVIEW_ERROR\t";
+
+    @Override
+    protected void doExecute(ProcessBundle bundle) throws Exception {
+        ProcessLogger logger = bundle.getLogger();
+        Process process = null;
+        try {
+            OBContext.setAdminMode(true);
+            Organization org = OBContext.getOBContext().getCurrentOrganization();
+            Client client = OBContext.getOBContext().getCurrentClient();
+            String userId = OBContext.getOBContext().getUser().getId();
+            Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+
+            CallPythonScript script = new CallPythonScript();
+            PreparedRun run = script.prepareRun(org, client, userId, logger);
+            // the datasets are the same for all the destinations
+            process = script.startDryRun(run.launches.get(0), properties.getProperty(CACHE_PROPERTY));
+            Process started = process;
+            long timeout = NumberUtils.toLong(properties.getProperty(TIMEOUT_PROPERTY), DEFAULT_TIMEOUT_SECONDS);
+            process.onExit()
+                    .completeOnTimeout(null, timeout, TimeUnit.SECONDS)
+                    .thenAccept(exited -> {
+                        if (exited == null) {
+                            log.warn("Sync preview took more than {}s, stopping it", timeout);
+                            started.destroyForcibly();
+                        }
+                    });
+            Report report;
+            try (BufferedReader output = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                report = Report.read(output);
+            }
+            if (report.estimates.isEmpty() && !report.errors.isEmpty()) {
+                throw new OBException(String.format(OBMessageUtils.messageBD("ETPBIC_SyncPreviewError"),
+                        String.join("; ", report.errors.values())));
+            }
+
+            double bytesPerSecond = NumberUtils.toDouble(properties.getProperty(UPLOAD_MBPS_PROPERTY),
+                    DEFAULT_UPLOAD_MBPS) * 1_000_000 / 8;
+            for (Estimate estimate : report.estimates) {
+                logger.logln(estimate.describe(bytesPerSecond));
+            }
+            for (Map.Entry<String, String> error : report.errors.entrySet()) {
+                logger.logln(error.getKey() + ": " + error.getValue());
+            }
+            String msg = String.format(OBMessageUtils.messageBD("ETPBIC_SyncPreview"), report.estimates.size(),
+                    report.totalRows(), formatBytes(report.totalBytes()),
+                    formatDuration(report.totalDatabaseMillis()),
+                    formatDuration(Estimate.transferMillis(report.totalBytes(), bytesPerSecond)));
+            logger.logln(msg);
+            boolean complete = report.errors.isEmpty();
+            OBError result = new OBError();
+            result.setType(complete ? "Success" : "Warning");
+            result.setTitle(OBMessageUtils.messageBD(complete ? "Success" : "Warning"));
+            result.setMessage(msg);
+            bundle.setResult(result);
+        } catch (OBException e) {
+            logger.logln(e.getMessage());
+            throw e;
+        } catch (Exception e) {
+            log.error("Error previewing the BI sync", e);
+            logger.logln(e.getMessage());
+            throw new OBException(e.getMessage());
+        } finally {
+            if (process != null) {
+                process.destroy();
+            }
+            OBContext.restorePreviousMode();
+        }
+    }
+
+    static String formatBytes(long bytes) {
+        String[] units = { "B", "KB", "MB", "GB", "TB" };
+        double value = bytes;
+        int unit = 0;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return unit == 0 ? bytes + " B" : String.format(Locale.ROOT, "%.1f %s", value, units[unit]);
+    }
+
+    static String formatDuration(long millis) {
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(millis);
+        if (seconds < 60) {
+            return String.format(Locale.ROOT, "%.1fs", millis / 1000.0);
+        }
+        if (seconds < 3600) {
+            return String.format(Locale.ROOT, "%dm %02ds", seconds / 60, seconds % 60);
+        }
+        return String.format(Locale.ROOT, "%dh %02dm", seconds / 3600, seconds % 3600 / 60);
+    }
+
+    /**
+     * The estimates and the errors written by the script.
+     */
+    static class Report {
+        final List<Estimate> estimates = new ArrayList<>();
+        /** Errors by dataset, the errors of the whole run have no dataset. */
+        final Map<String, String> errors = new LinkedHashMap<>();
+
+        /**
+         * Reads the output of the script. The lines other than the report, like the warnings of
+         * python, are ignored.
+         */
+        static Report read(BufferedReader output) throws IOException {
+            Report report = new Report();
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith(REPORT_LINE)) {
+                    report.estimates.add(Estimate.parse(line.substring(REPORT_LINE.length())));
+                } else if (line.startsWith(ERROR_LINE)) {
+                    String[] values = line.substring(ERROR_LINE.length()).split("\t", 2);
+                    report.errors.put(StringUtils.defaultIfEmpty(values[0], "run"),
+                            values.length > 1 ? values[1] : "");
+                }
+            }
+            return report;
+        }
+
+        long totalRows() {
+            return estimates.stream().mapToLong(estimate -> estimate.rows).sum();
+        }
+
+        long totalBytes() {
+            return estimates.stream().mapToLong(estimate -> estimate.bytes).sum();
+        }
+
+        /** The datasets of a run are extracted one after another. */
+        long totalDatabaseMillis() {
+            return estimates.stream().mapToLong(estimate -> estimate.databaseMillis).sum();
+        }
+    }
+
+    /**
+     * The estimate of a dataset.
+     */
+    static class Estimate {
+        final String dataset;
+        final long rows;
+        /** False when the rows are the estimate of the planner, and the database time a minimum. */
+        final boolean counted;
+        final long bytes;
+        final long databaseMillis;
+        final boolean cached;
+
+        Estimate(String dataset, long rows, boolean counted, long bytes, long databaseMillis, boolean cached) {
+            this.dataset = dataset;
+            this.rows = rows;
+            this.counted = counted;
+            this.bytes = bytes;
+            this.databaseMillis = databaseMillis;
+            this.cached = cached;
+        }
+
+        /**
+         * Parses a line of the report: the dataset, the rows, whether they were counted, the bytes,
+         * the database milliseconds and whether the estimate was cached, separated by tabs.
+         */
+        static Estimate parse(String line) {
+            String[] values = line.split("\t");
+            return new Estimate(values[0], NumberUtils.toLong(values[1]), "Y".equals(values[2]),
+                    NumberUtils.toLong(values[3]), NumberUtils.toLong(values[4]), "Y".equals(values[5]));
+        }
+
+        static long transferMillis(long bytes, double bytesPerSecond) {
+            return bytesPerSecond > 0 ? (long) (bytes * 1000 / bytesPerSecond) : 0;
+        }
+
+        String describe(double bytesPerSecond) {
+            return String.format(Locale.ROOT, "%s: %d rows%s, %s, %s%s of database time, %s of transfer time%s",
+                    dataset, rows, counted ? "" : " (planner estimate)", formatBytes(bytes),
+                    counted ? "" : "more than ", formatDuration(databaseMillis),
+                    formatDuration(transferMillis(bytes, bytesPerSecond)), cached ? " (cached)" : "");
+        }
+    }
+}
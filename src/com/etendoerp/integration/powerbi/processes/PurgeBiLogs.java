@@ -0,0 +1,254 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import com.etendoerp.integration.powerbi.data.BiConnection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.criterion.Restrictions;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.security.OrganizationStructureProvider;
+import org.openbravo.dal.service.OBCriteria;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.erpCommon.utility.OBError;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+import org.openbravo.model.common.enterprise.Organization;
+import org.openbravo.scheduling.ProcessBundle;
+import org.openbravo.scheduling.ProcessLogger;
+import org.openbravo.service.db.DalBaseProcess;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Background process that applies the log retention configured in each {@link BiConnection} to
+ * the BI Logs Monitor window.
+ * <p>
+ * For every organization with log entries of the current client, the nearest BI Connection in its
+ * parent tree is used to:
+ * <ul>
+ * <li>delete the entries older than the configured retention days,</li>
+ * <li>delete the entries beyond the configured retention count, keeping the most recent ones,</li>
+ * <li>compress the message of finished entries, when compression is enabled.</li>
+ * </ul>
+ * All the work is done in batches committed one by one, so big purges don't hold long
+ * transactions nor load the purged messages in memory.
+ */
+public class PurgeBiLogs extends DalBaseProcess {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final int BATCH_SIZE = 1000;
+    static final int COMPRESS_BATCH_SIZE = 100;
+    /** Messages shorter than this are not worth compressing. */
+    static final int MIN_COMPRESS_LENGTH = 4000;
+    /** Lines of the original message kept in the summary of compressed entries. */
+    static final int SUMMARY_LINES = 20;
+
+    private static final String LOG_ORGS_SQL = "SELECT DISTINCT ad_org_id FROM etpbic_log WHERE ad_client_id = ?";
+    private static final String DELETE_BY_AGE_SQL = "DELETE FROM etpbic_log WHERE etpbic_log_id IN ("
+            + " SELECT etpbic_log_id FROM etpbic_log WHERE ad_client_id = ? AND ad_org_id = ? AND created < ?"
+            + " ORDER BY created LIMIT ?)";
+    private static final String DELETE_BY_COUNT_SQL = "DELETE FROM etpbic_log WHERE etpbic_log_id IN ("
+            + " SELECT etpbic_log_id FROM etpbic_log WHERE ad_client_id = ? AND ad_org_id = ?"
+            + " ORDER BY created DESC OFFSET ? LIMIT ?)";
+    private static final String UNCOMPRESSED_SQL = "SELECT etpbic_log_id, message FROM etpbic_log"
+            + " WHERE ad_client_id = ? AND ad_org_id = ? AND iscompressed = 'N' AND type <> 'Running'"
+            + " AND length(message) > ? ORDER BY created LIMIT ?";
+    private static final String COMPRESS_SQL = "UPDATE etpbic_log SET message = ?, message_compressed = ?,"
+            + " iscompressed = 'Y' WHERE etpbic_log_id = ?";
+
+    @Override
+    protected void doExecute(ProcessBundle bundle) throws Exception {
+        ProcessLogger logger = bundle.getLogger();
+        try {
+            OBContext.setAdminMode(true);
+            String clientId = OBContext.getOBContext().getCurrentClient().getId();
+            OrganizationStructureProvider orgProvider = new OrganizationStructureProvider();
+            Map<String, BiConnection> connectionByOrg = new HashMap<>();
+            long deleted = 0;
+            long compressed = 0;
+
+            for (String orgId : getLogOrganizations(clientId)) {
+                BiConnection config = findConnection(orgProvider, orgId, connectionByOrg);
+                if (config == null) {
+                    continue;
+                }
+                if (config.getLogRetentionDays() != null) {
+                    Instant limit = Instant.now().minus(Duration.ofDays(config.getLogRetentionDays()));
+                    deleted += deleteByAge(clientId, orgId, Timestamp.from(limit));
+                }
+                if (config.getLogRetentionCount() != null) {
+                    deleted += deleteByCount(clientId, orgId, config.getLogRetentionCount());
+                }
+                if (Boolean.TRUE.equals(config.isCompressLogs())) {
+                    compressed += compressMessages(clientId, orgId);
+                }
+            }
+
+            String msg = String.format(OBMessageUtils.messageBD("ETPBIC_LogsPurged"), deleted, compressed);
+            logger.logln(msg);
+            OBError result = new OBError();
+            result.setType("Success");
+            result.setTitle(OBMessageUtils.messageBD("Success"));
+            result.setMessage(msg);
+            bundle.setResult(result);
+        } catch (Exception e) {
+            log.error("Error purging BI logs", e);
+            logger.logln(e.getMessage());
+            throw new OBException(e.getMessage());
+        } finally {
+            OBContext.restorePreviousMode();
+        }
+    }
+
+    private static List<String> getLogOrganizations(String clientId) throws SQLException {
+        List<String> orgIds = new ArrayList<>();
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(LOG_ORGS_SQL)) {
+            ps.setString(1, clientId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    orgIds.add(rs.getString(1));
+                }
+            }
+        }
+        return orgIds;
+    }
+
+    /**
+     * Returns the BI Connection that applies to the given organization: the one defined in the
+     * organization itself or in its nearest parent.
+     */
+    static BiConnection findConnection(OrganizationStructureProvider orgProvider, String orgId,
+            Map<String, BiConnection> cache) {
+        if (cache.containsKey(orgId)) {
+            return cache.get(orgId);
+        }
+        BiConnection config = null;
+        Organization org = OBDal.getInstance().get(Organization.class, orgId);
+        while (config == null && org != null) {
+            OBCriteria<BiConnection> configCrit = OBDal.getInstance().createCriteria(BiConnection.class);
+            configCrit.add(Restrictions.eq(BiConnection.PROPERTY_ORGANIZATION, org));
+            configCrit.setMaxResults(1);
+            config = (BiConnection) configCrit.uniqueResult();
+            org = "0".equals(org.getId()) ? null : orgProvider.getParentOrg(org);
+        }
+        cache.put(orgId, config);
+        return config;
+    }
+
+    static long deleteByAge(String clientId, String orgId, Timestamp limit) throws SQLException {
+        long total = 0;
+        int deleted;
+        do {
+            try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(DELETE_BY_AGE_SQL)) {
+                ps.setString(1, clientId);
+                ps.setString(2, orgId);
+                ps.setTimestamp(3, limit);
+                ps.setInt(4, BATCH_SIZE);
+                deleted = ps.executeUpdate();
+            }
+            OBDal.getInstance().commitAndClose();
+            total += deleted;
+        } while (deleted == BATCH_SIZE);
+        return total;
+    }
+
+    static long deleteByCount(String clientId, String orgId, long keep) throws SQLException {
+        long total = 0;
+        int deleted;
+        do {
+            try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(DELETE_BY_COUNT_SQL)) {
+                ps.setString(1, clientId);
+                ps.setString(2, orgId);
+                ps.setLong(3, keep);
+                ps.setInt(4, BATCH_SIZE);
+                deleted = ps.executeUpdate();
+            }
+            OBDal.getInstance().commitAndClose();
+            total += deleted;
+        } while (deleted == BATCH_SIZE);
+        return total;
+    }
+
+    static long compressMessages(String clientId, String orgId) throws SQLException, IOException {
+        long total = 0;
+        int compressed;
+        do {
+            compressed = 0;
+            Connection conn = OBDal.getInstance().getConnection(true);
+            try (PreparedStatement select = conn.prepareStatement(UNCOMPRESSED_SQL);
+                 PreparedStatement update = conn.prepareStatement(COMPRESS_SQL)) {
+                select.setString(1, clientId);
+                select.setString(2, orgId);
+                select.setInt(3, MIN_COMPRESS_LENGTH);
+                select.setInt(4, COMPRESS_BATCH_SIZE);
+                // stream the messages instead of fetching the whole batch at once
+                select.setFetchSize(1);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+                        String summary;
+                        try (Reader message = rs.getCharacterStream(2)) {
+                            summary = compress(message, gzipped);
+                        }
+                        update.setString(1, summary);
+                        update.setBytes(2, gzipped.toByteArray());
+                        update.setString(3, rs.getString(1));
+                        update.addBatch();
+                        compressed++;
+                    }
+                }
+                if (compressed > 0) {
+                    update.executeBatch();
+                }
+            }
+            OBDal.getInstance().commitAndClose();
+            total += compressed;
+        } while (compressed == COMPRESS_BATCH_SIZE);
+        return total;
+    }
+
+    /**
+     * Writes the gzip compressed message into the given output and returns the summary stored in
+     * place of the message: a notice followed by its last lines, where the result of the run is.
+     */
+    static String compress(Reader message, ByteArrayOutputStream output) throws IOException {
+        Deque<String> lastLines = new ArrayDeque<>(SUMMARY_LINES);
+        try (BufferedReader reader = new BufferedReader(message);
+             Writer writer = new OutputStreamWriter(new GZIPOutputStream(output), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                writer.write(line);
+                writer.write('\n');
+                if (lastLines.size() == SUMMARY_LINES) {
+                    lastLines.removeFirst();
+                }
+                lastLines.addLast(line);
+            }
+        }
+        StringBuilder summary = new StringBuilder(OBMessageUtils.messageBD("ETPBIC_LogCompressed")).append('\n');
+        for (String line : lastLines) {
+            summary.append(line).append('\n');
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,175 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.erpCommon.utility.OBError;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+import org.openbravo.scheduling.ProcessBundle;
+import org.openbravo.scheduling.ProcessLogger;
+import org.openbravo.service.db.DalBaseProcess;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Background process that keeps the materialized views of the BI queries up to date, see
+ * {@link MaterializedQueryViews}.
+ * <p>
+ * The views are shared by all the clients, so a single schedule of the process covers them all.
+ * They are managed through a connection of their restricted owner, see
+ * {@link MaterializedQueryViews#connect(String)}. For every view used by an active materialized
+ * query it:
+ * <ul>
+ * <li>creates the view if it is missing, because its query is new, changed or was just
+ * materialized,</li>
+ * <li>fills it if it is empty, or refreshes it if its source tables changed since the last refresh
+ * and the refresh minutes of its queries passed,</li>
+ * <li>drops the views no materialized query uses anymore, because their queries changed, stopped
+ * being materialized or were deleted.</li>
+ * </ul>
+ * Each view is refreshed and committed on its own, so a failing query doesn't stop the rest.
+ */
+public class RefreshMaterializedQueries extends DalBaseProcess {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final String VIEWS_SQL = "SELECT '" + MaterializedQueryViews.VIEW_PREFIX + "'"
+            + " || left(md5(query), " + MaterializedQueryViews.HASH_LENGTH + "), min(query),"
+            + " min(COALESCE(refresh_minutes, 0)) FROM etpbic_query WHERE ismaterialized = 'Y' AND isactive = 'Y'"
+            + " GROUP BY 1";
+    /** The views of the owner of the views, the ones created by other users can't be dropped. */
+    private static final String EXISTING_VIEWS_SQL = "SELECT relname FROM pg_class WHERE relkind = 'm'"
+            + " AND relname LIKE ? AND pg_table_is_visible(oid) AND relowner = (SELECT oid FROM pg_roles"
+            + " WHERE rolname = current_user)";
+
+    @Override
+    protected void doExecute(ProcessBundle bundle) throws Exception {
+        ProcessLogger logger = bundle.getLogger();
+        try {
+            OBContext.setAdminMode(true);
+            Map<String, ViewQuery> views = getViews();
+            long now = System.currentTimeMillis();
+            int refreshed = 0;
+            int upToDate = 0;
+            int failed = 0;
+
+            // the views are managed as their restricted owner, never as the owner of the schema
+            try (Connection conn = MaterializedQueryViews.connect(getSchema())) {
+                for (Map.Entry<String, ViewQuery> entry : views.entrySet()) {
+                    String view = entry.getKey();
+                    try {
+                        Boolean done = MaterializedQueryViews.refresh(conn, view, entry.getValue().refreshMinutes, now);
+                        if (done == null) {
+                            MaterializedQueryViews.create(conn, entry.getValue().query);
+                            done = MaterializedQueryViews.refresh(conn, view, entry.getValue().refreshMinutes, now);
+                        }
+                        conn.commit();
+                        if (Boolean.TRUE.equals(done)) {
+                            refreshed++;
+                        } else {
+                            upToDate++;
+                        }
+                    } catch (SQLException e) {
+                        log.error("Error refreshing materialized view {}: {}", view, e.getMessage(), e);
+                        logger.logln(view + ": " + e.getMessage());
+                        conn.rollback();
+                        failed++;
+                    }
+                }
+                failed += dropOrphanViews(conn, views, logger);
+            }
+
+            String msg = String.format(OBMessageUtils.messageBD("ETPBIC_MaterializedViewsRefreshed"), refreshed,
+                    upToDate, failed);
+            logger.logln(msg);
+            OBError result = new OBError();
+            result.setType(failed == 0 ? "Success" : "Warning");
+            result.setTitle(OBMessageUtils.messageBD(failed == 0 ? "Success" : "Warning"));
+            result.setMessage(msg);
+            bundle.setResult(result);
+        } catch (Exception e) {
+            log.error("Error refreshing BI materialized queries", e);
+            logger.logln(e.getMessage());
+            OBDal.getInstance().rollbackAndClose();
+            throw new OBException(e.getMessage());
+        } finally {
+            OBContext.restorePreviousMode();
+        }
+    }
+
+    private static Map<String, ViewQuery> getViews() throws SQLException {
+        Map<String, ViewQuery> views = new LinkedHashMap<>();
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(VIEWS_SQL);
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                views.put(rs.getString(1), new ViewQuery(rs.getString(2), rs.getLong(3)));
+            }
+        }
+        OBDal.getInstance().commitAndClose();
+        return views;
+    }
+
+    private static String getSchema() throws SQLException {
+        String schema;
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement("SELECT current_schema()");
+             ResultSet rs = ps.executeQuery()) {
+            rs.next();
+            schema = rs.getString(1);
+        }
+        OBDal.getInstance().commitAndClose();
+        return schema;
+    }
+
+    /**
+     * Drops the views no materialized query uses anymore, each one committed on its own. Returns
+     * the views that couldn't be dropped, they are retried in the next run.
+     */
+    private static int dropOrphanViews(Connection conn, Map<String, ViewQuery> views, ProcessLogger logger)
+            throws SQLException {
+        List<String> orphans = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(EXISTING_VIEWS_SQL)) {
+            ps.setString(1, MaterializedQueryViews.VIEW_PREFIX.replace("_", "\\_") + "%");
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (!views.containsKey(rs.getString(1))) {
+                        orphans.add(rs.getString(1));
+                    }
+                }
+            }
+        }
+        conn.commit();
+        int failed = 0;
+        for (String view : orphans) {
+            try {
+                MaterializedQueryViews.drop(conn, view);
+                conn.commit();
+            } catch (SQLException e) {
+                // usually a sync still reading the view
+                log.warn("Materialized view {} not dropped, retrying in the next run: {}", view, e.getMessage());
+                logger.logln(view + ": " + e.getMessage());
+                conn.rollback();
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private static class ViewQuery {
+        private final String query;
+        private final long refreshMinutes;
+
+        ViewQuery(String query, long refreshMinutes) {
+            this.query = query;
+            this.refreshMinutes = refreshMinutes;
+        }
+    }
+}
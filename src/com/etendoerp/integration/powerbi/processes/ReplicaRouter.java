@@ -0,0 +1,209 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.session.OBPropertiesProvider;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Chooses the database the sync scripts read from among the read-only replicas.
+ * <p>
+ * {@code bbdd.readonly.url} accepts a comma separated list of replicas. The health and the replay
+ * lag of each replica are checked at most every {@link #HEALTH_TTL_SECONDS}. A run is routed to
+ * the replicas that answer and lag less than {@code etpbic.sync.maxReplicationLagSeconds}, ranked
+ * by rendezvous hashing of its key: each key sticks to the same replica while it is healthy, the
+ * keys are spread evenly among the replicas, and when a replica fails only its keys move. The
+ * primary is always the last option.
+ * <p>
+ * A script reads everything through a single connection, so the work bound to a snapshot never
+ * spans replicas; the rest of the ranking is only used to fail over when the script connects.
+ */
+public class ReplicaRouter {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final int HEALTH_TTL_SECONDS = 30;
+    static final int CONNECT_TIMEOUT_SECONDS = 5;
+    /** Lag of a replica that doesn't answer, so it is never chosen. */
+    static final double UNAVAILABLE = Double.MAX_VALUE;
+
+    private static final String LAG_SQL = "SELECT CASE WHEN NOT pg_is_in_recovery()"
+            + " OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0"
+            + " ELSE COALESCE(extract(epoch FROM clock_timestamp() - pg_last_xact_replay_timestamp()), 0) END";
+
+    private static ReplicaRouter instance;
+
+    private final LagProbe probe;
+    private final double maxLagSeconds;
+    private final LongSupplier clock;
+    private final Map<String, Health> health = new ConcurrentHashMap<>();
+
+    ReplicaRouter(LagProbe probe, double maxLagSeconds, LongSupplier clock) {
+        this.probe = probe;
+        this.maxLagSeconds = maxLagSeconds;
+        this.clock = clock;
+    }
+
+    public static synchronized ReplicaRouter getInstance() {
+        if (instance == null) {
+            Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+            instance = new ReplicaRouter(ReplicaRouter::probeLag, SyncLoadMonitor.getMaxLagSeconds(properties),
+                    System::currentTimeMillis);
+        }
+        return instance;
+    }
+
+    /**
+     * Splits a comma separated list of JDBC urls.
+     */
+    public static List<String> splitUrls(String urls) {
+        List<String> result = new ArrayList<>();
+        for (String url : StringUtils.split(StringUtils.defaultString(urls), ',')) {
+            if (StringUtils.isNotBlank(url)) {
+                result.add(url.trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the endpoints a run should read from, in order of preference: the healthy replicas
+     * ranked for the key, then the primary.
+     *
+     * @param key
+     *     the {@link SyncRunCoordinator} key of the run
+     * @param replicaUrls
+     *     the JDBC urls of the replicas, may include the primary
+     * @param primaryUrl
+     *     the JDBC url of the primary
+     */
+    public List<Endpoint> route(String key, List<String> replicaUrls, String primaryUrl) {
+        List<String> replicas = replicaUrls.stream()
+                .filter(url -> !StringUtils.equals(url, primaryUrl))
+                .collect(Collectors.toList());
+        List<String> candidates = replicas.stream()
+                .filter(url -> getLag(url) <= maxLagSeconds)
+                .sorted(Comparator.comparingLong((String url) -> score(key, url)).reversed())
+                .collect(Collectors.toList());
+        if (candidates.size() < replicas.size()) {
+            log.warn("Some read-only replicas are down or lag behind, sync run {} uses {}", key,
+                    candidates.isEmpty() ? "the primary" : candidates.get(0));
+        }
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String url : candidates) {
+            endpoints.add(Endpoint.parse(url));
+        }
+        if (StringUtils.isNotEmpty(primaryUrl)) {
+            endpoints.add(Endpoint.parse(primaryUrl));
+        }
+        return endpoints;
+    }
+
+    private double getLag(String url) {
+        long now = clock.getAsLong();
+        Health current = health.get(url);
+        if (current == null || now - current.checkedAt >= TimeUnit.SECONDS.toMillis(HEALTH_TTL_SECONDS)) {
+            double lag;
+            try {
+                lag = probe.lag(url);
+            } catch (SQLException | RuntimeException e) {
+                log.warn("Read-only replica {} is not available: {}", url, e.getMessage());
+                lag = UNAVAILABLE;
+            }
+            current = new Health(lag, now);
+            health.put(url, current);
+        }
+        return current.lagSeconds;
+    }
+
+    /**
+     * Rendezvous hashing score of a key in a replica: the replica with the highest score is the
+     * preferred one.
+     */
+    static long score(String key, String url) {
+        // mix the bits so similar keys and urls don't get similar scores
+        long h = (key + "|" + url).hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 29);
+    }
+
+    private static double probeLag(String url) throws SQLException {
+        Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+        Properties connProps = new Properties();
+        connProps.setProperty("user", properties.getProperty("bbdd.readonly.user",
+                properties.getProperty("bbdd.user")));
+        connProps.setProperty("password", properties.getProperty("bbdd.readonly.password",
+                properties.getProperty("bbdd.password")));
+        connProps.setProperty("connectTimeout", String.valueOf(CONNECT_TIMEOUT_SECONDS));
+        connProps.setProperty("socketTimeout", String.valueOf(CONNECT_TIMEOUT_SECONDS));
+        connProps.setProperty("ApplicationName", SyncLoadMonitor.SCRIPT_APPLICATION_NAME);
+        String sid = properties.getProperty("bbdd.readonly.sid",
+                properties.getProperty("bbdd.sid"));
+        try (Connection conn = DriverManager.getConnection(url + "/" + sid, connProps);
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery(LAG_SQL)) {
+            rs.next();
+            return rs.getDouble(1);
+        }
+    }
+
+    /**
+     * Checks the replay lag of a replica, in seconds.
+     */
+    @FunctionalInterface
+    interface LagProbe {
+        double lag(String url) throws SQLException;
+    }
+
+    private static class Health {
+        private final double lagSeconds;
+        private final long checkedAt;
+
+        Health(double lagSeconds, long checkedAt) {
+            this.lagSeconds = lagSeconds;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    /**
+     * The host and port of a database.
+     */
+    public static class Endpoint {
+        final String host;
+        final String port;
+
+        Endpoint(String host, String port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Parses a JDBC url like {@code jdbc:postgresql://host:port}.
+         */
+        static Endpoint parse(String url) {
+            String[] parts = url.split("://|:");
+            return new Endpoint(parts[2], StringUtils.substringBefore(parts[3], "/"));
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.dal.service.OBDal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Datasets whose queries were edited after their last sync, kept in the STALE_SINCE column of
+ * ETPBIC_QUERY.
+ * <p>
+ * Saving a BI query, or adding, changing or removing its custom query, marks the query stale, see
+ * {@code EtendoBaseQueryHandler} and {@code CustomQueryHandler}. The {@link SyncWorker} of any node
+ * claims the queries not edited in the last {@link #QUIET_SECONDS}, so a burst of saves results in
+ * a single re-sync, and runs the script of every organization that published them with only these
+ * datasets: the other datasets of the organization keep their last published files.
+ * <p>
+ * The organizations are the ones with a successful run in ETPBIC_RUN whose tree includes the
+ * organization of the query, and the organization 0 of the clients synced as a whole. The re-sync
+ * of an organization with a run in progress is not queued: its queries are marked stale again and
+ * retried in the next poll.
+ */
+public class StaleDatasets {
+
+    private static final Logger log = LogManager.getLogger();
+
+    /** Seconds a query must be left unchanged before it is re-synced. */
+    static final int QUIET_SECONDS = 10;
+
+    private static final String MARK_SQL = "UPDATE etpbic_query SET stale_since = now()"
+            + " WHERE etpbic_query_id = ?";
+    private static final String CLAIM_SQL = "UPDATE etpbic_query SET stale_since = NULL"
+            + " WHERE etpbic_query_id IN (SELECT etpbic_query_id FROM etpbic_query"
+            + " WHERE stale_since < now() - ? * interval '1 second' FOR UPDATE SKIP LOCKED)"
+            + " RETURNING etpbic_query_id, ad_client_id, ad_org_id, name, updatedby";
+    private static final String PUBLISHED_ORGS_SQL = "SELECT DISTINCT ad_org_id FROM etpbic_run"
+            + " WHERE ad_client_id = ? AND run_status = '" + SyncRunRegistry.STATUS_SUCCESS + "'"
+            + " AND (? = '0' OR ad_org_id = '0' OR ad_isorgincluded(?, ad_org_id, ad_client_id) <> -1)";
+    private static final String RESTORE_SQL = "UPDATE etpbic_query SET stale_since = COALESCE(stale_since, now())"
+            + " WHERE etpbic_query_id = ?";
+
+    private StaleDatasets() {
+    }
+
+    /**
+     * Marks a query stale. It runs in the transaction of the caller, so it is undone if the change
+     * of the query is not saved.
+     */
+    public static void mark(String queryId) throws SQLException {
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(false).prepareStatement(MARK_SQL)) {
+            ps.setString(1, queryId);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Claims the stale queries, and commits the claim. Returns the re-syncs they need, one per
+     * organization that published them.
+     */
+    public static Collection<Resync> claim() throws SQLException {
+        Map<String, Resync> resyncs = new LinkedHashMap<>();
+        Connection conn = OBDal.getInstance().getConnection(true);
+        List<String[]> queries = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(CLAIM_SQL)) {
+            ps.setInt(1, QUIET_SECONDS);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    queries.add(new String[] { rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                            rs.getString(5) });
+                }
+            }
+        }
+        try (PreparedStatement ps = conn.prepareStatement(PUBLISHED_ORGS_SQL)) {
+            for (String[] query : queries) {
+                ps.setString(1, query[1]);
+                ps.setString(2, query[2]);
+                ps.setString(3, query[2]);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String orgId = rs.getString(1);
+                        resyncs.computeIfAbsent(query[1] + "|" + orgId, key -> new Resync(query[1], orgId, query[4]))
+                                .add(query[0], query[3]);
+                    }
+                }
+            }
+        }
+        OBDal.getInstance().commitAndClose();
+        if (!queries.isEmpty()) {
+            log.debug("Claimed {} stale BI queries, re-syncing {} organizations", queries.size(), resyncs.size());
+        }
+        return resyncs.values();
+    }
+
+    /**
+     * Marks again as stale the queries of a re-sync that couldn't be started, and commits it. The
+     * queries edited in the meantime keep the time of their last edit.
+     */
+    public static void restore(Resync resync) {
+        try {
+            try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(RESTORE_SQL)) {
+                for (String queryId : resync.queryIds) {
+                    ps.setString(1, queryId);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            OBDal.getInstance().commitAndClose();
+        } catch (Exception e) {
+            log.error("Error marking the BI queries of organization {} as stale: {}", resync.orgId, e.getMessage(), e);
+            OBDal.getInstance().rollbackAndClose();
+        }
+    }
+
+    /**
+     * The datasets of an organization to re-sync, run by the user that edited the first of them.
+     */
+    public static class Resync {
+        final String clientId;
+        final String orgId;
+        final String userId;
+        final Set<String> queryIds = new LinkedHashSet<>();
+        final Set<String> datasets = new LinkedHashSet<>();
+
+        Resync(String clientId, String orgId, String userId) {
+            this.clientId = clientId;
+            this.orgId = orgId;
+            this.userId = userId;
+        }
+
+        Resync add(String queryId, String dataset) {
+            queryIds.add(queryId);
+            datasets.add(dataset);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.dal.service.OBDal;
+
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Database backed leases that coordinate the sync runs of all the Etendo nodes sharing the
+ * database.
+ * <p>
+ * A node must hold the lease of a run key in ETPBIC_SYNC_LEASE to run it, which guarantees a
+ * single active run per key in the whole cluster. Leases expire after {@link #LEASE_TTL_SECONDS}
+ * unless they are renewed; a heartbeat of each node renews its leases and the work units it has
+ * claimed in ETPBIC_WORK_UNIT, so the work of a node that dies is taken over by another one once
+ * its leases expire. All the times are taken from the database, so the clocks of the nodes don't
+ * need to be in sync.
+ * <p>
+ * Every statement is committed right away, so the leases are visible to the other nodes.
+ */
+public class SyncLeaseManager {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final int LEASE_TTL_SECONDS = 60;
+    static final int HEARTBEAT_SECONDS = LEASE_TTL_SECONDS / 3;
+
+    private static final String ACQUIRE_SQL = "INSERT INTO etpbic_sync_lease (etpbic_sync_lease_id, ad_client_id,"
+            + " ad_org_id, isactive, created, createdby, updated, updatedby, lease_key, node_name, lease_expires)"
+            + " VALUES (upper(md5(?)), ?, ?, 'Y', now(), '0', now(), '0', ?, ?, now() + ? * interval '1 second')"
+            + " ON CONFLICT (etpbic_sync_lease_id) DO UPDATE SET node_name = EXCLUDED.node_name,"
+            + " lease_expires = EXCLUDED.lease_expires, updated = now()"
+            + " WHERE etpbic_sync_lease.lease_expires < now() OR etpbic_sync_lease.node_name = EXCLUDED.node_name";
+    private static final String RELEASE_SQL = "DELETE FROM etpbic_sync_lease"
+            + " WHERE etpbic_sync_lease_id = upper(md5(?)) AND node_name = ?";
+    private static final String RENEW_LEASES_SQL = "UPDATE etpbic_sync_lease"
+            + " SET lease_expires = now() + ? * interval '1 second', updated = now() WHERE node_name = ?";
+    private static final String RENEW_UNITS_SQL = "UPDATE etpbic_work_unit"
+            + " SET lease_expires = now() + ? * interval '1 second', updated = now()"
+            + " WHERE node_name = ? AND unit_status = 'Claimed'";
+
+    private static final SyncLeaseManager INSTANCE = new SyncLeaseManager(createNodeName());
+
+    private final String nodeName;
+    private ScheduledExecutorService heartbeat;
+
+    SyncLeaseManager(String nodeName) {
+        this.nodeName = nodeName;
+    }
+
+    public static SyncLeaseManager getInstance() {
+        return INSTANCE;
+    }
+
+    private static String createNodeName() {
+        // pid@host identifies the JVM, the suffix tells apart restarts reusing the same pid
+        String name = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID().toString().substring(0, 8);
+        return StringUtils.left(name, 100);
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    /**
+     * Tries to take the lease of a run key. The lease is taken if it's free, expired or already
+     * held by this node.
+     *
+     * @param key
+     *     a {@link SyncRunCoordinator} key, which starts with the client and organization ids
+     * @return true if this node holds the lease
+     */
+    public boolean acquire(String key) {
+        try {
+            int updated;
+            try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(ACQUIRE_SQL)) {
+                ps.setString(1, key);
+                ps.setString(2, StringUtils.substringBefore(key, "|"));
+                ps.setString(3, StringUtils.substringBetween(key, "|"));
+                ps.setString(4, key);
+                ps.setString(5, nodeName);
+                ps.setInt(6, LEASE_TTL_SECONDS);
+                updated = ps.executeUpdate();
+            }
+            OBDal.getInstance().commitAndClose();
+            startHeartbeat();
+            return updated > 0;
+        } catch (Exception e) {
+            log.error("Error acquiring sync lease {}: {}", key, e.getMessage(), e);
+            OBDal.getInstance().rollbackAndClose();
+            return false;
+        }
+    }
+
+    /**
+     * Releases the lease of a run key held by this node.
+     */
+    public void release(String key) {
+        try {
+            try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(RELEASE_SQL)) {
+                ps.setString(1, key);
+                ps.setString(2, nodeName);
+                ps.executeUpdate();
+            }
+            OBDal.getInstance().commitAndClose();
+        } catch (Exception e) {
+            // the lease will expire by itself
+            log.error("Error releasing sync lease {}: {}", key, e.getMessage(), e);
+            OBDal.getInstance().rollbackAndClose();
+        }
+    }
+
+    synchronized void startHeartbeat() {
+        if (heartbeat != null) {
+            return;
+        }
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "etpbic-sync-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::renew, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Extends the expiration of all the leases and work units held by this node.
+     */
+    void renew() {
+        try {
+            renew(RENEW_LEASES_SQL);
+            renew(RENEW_UNITS_SQL);
+            OBDal.getInstance().commitAndClose();
+        } catch (Exception e) {
+            log.error("Error renewing sync leases of node {}: {}", nodeName, e.getMessage(), e);
+            OBDal.getInstance().rollbackAndClose();
+        }
+    }
+
+    private void renew(String sql) throws SQLException {
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(sql)) {
+            ps.setInt(1, LEASE_TTL_SECONDS);
+            ps.setString(2, nodeName);
+            ps.executeUpdate();
+        }
+    }
+}
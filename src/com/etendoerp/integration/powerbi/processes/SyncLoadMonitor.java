@@ -0,0 +1,174 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.service.OBDal;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the number of sync runs in progress in the node to the load of the database, AIMD style.
+ * <p>
+ * Every {@code etpbic.sync.loadSampleSeconds} (15 by default) it samples the backends running a
+ * statement in {@code pg_stat_activity}, other than the sync scripts, and the replay lag of the
+ * standbys in {@code pg_stat_replication}, and checks the latencies of the queries reported by the
+ * scripts. The database is considered under pressure when:
+ * <ul>
+ * <li>there are more active backends than {@code etpbic.sync.maxActiveBackends} (20 by default),</li>
+ * <li>a standby lags more than {@code etpbic.sync.maxReplicationLagSeconds} (30 by default), or</li>
+ * <li>a query took more than {@link #SLOW_QUERY_FACTOR} times its usual time.</li>
+ * </ul>
+ * Under pressure the budget of {@link SyncScheduler} is halved, down to
+ * {@code etpbic.sync.minConcurrentRuns} (1 by default); otherwise it grows by one run per sample,
+ * up to its configured limit.
+ * <p>
+ * The lag of {@code pg_stat_replication} is only visible to superusers and members of
+ * {@code pg_monitor}; without those privileges it is taken as 0. The scripts also pace their own
+ * transactions following the lag of the standby they read from, pausing between datasets and
+ * between the keyset pages of a query, never while a snapshot is open.
+ */
+public class SyncLoadMonitor {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final String SAMPLE_SECONDS_PROPERTY = "etpbic.sync.loadSampleSeconds";
+    static final String MIN_RUNS_PROPERTY = "etpbic.sync.minConcurrentRuns";
+    static final String MAX_ACTIVE_BACKENDS_PROPERTY = "etpbic.sync.maxActiveBackends";
+    static final String MAX_LAG_PROPERTY = "etpbic.sync.maxReplicationLagSeconds";
+    static final int DEFAULT_SAMPLE_SECONDS = 15;
+    static final int DEFAULT_MIN_RUNS = 1;
+    static final int DEFAULT_MAX_ACTIVE_BACKENDS = 20;
+    static final int DEFAULT_MAX_LAG_SECONDS = 30;
+    /** The application name of the connections of the sync scripts. */
+    static final String SCRIPT_APPLICATION_NAME = "etpbic-sync";
+    static final double SLOW_QUERY_FACTOR = 2;
+    /** Weight of a new latency in the usual time of a query. */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private static final String SAMPLE_SQL = "SELECT (SELECT count(*) FROM pg_stat_activity"
+            + " WHERE state = 'active' AND datname = current_database() AND pid <> pg_backend_pid()"
+            + " AND backend_type = 'client backend' AND application_name <> ?),"
+            + " (SELECT COALESCE(max(extract(epoch FROM replay_lag)), 0) FROM pg_stat_replication)";
+
+    private static SyncLoadMonitor instance;
+
+    private final SyncScheduler scheduler;
+    private final int minRuns;
+    private final int maxActiveBackends;
+    private final double maxLagSeconds;
+    private final Map<String, Double> usualLatencies = new ConcurrentHashMap<>();
+    private volatile boolean slowQueries;
+    private ScheduledExecutorService sampler;
+
+    SyncLoadMonitor(SyncScheduler scheduler, int minRuns, int maxActiveBackends, double maxLagSeconds) {
+        this.scheduler = scheduler;
+        this.minRuns = Math.max(1, minRuns);
+        this.maxActiveBackends = maxActiveBackends;
+        this.maxLagSeconds = maxLagSeconds;
+    }
+
+    public static synchronized SyncLoadMonitor getInstance() {
+        if (instance == null) {
+            Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+            instance = new SyncLoadMonitor(SyncScheduler.getInstance(),
+                    NumberUtils.toInt(properties.getProperty(MIN_RUNS_PROPERTY), DEFAULT_MIN_RUNS),
+                    NumberUtils.toInt(properties.getProperty(MAX_ACTIVE_BACKENDS_PROPERTY), DEFAULT_MAX_ACTIVE_BACKENDS),
+                    getMaxLagSeconds(properties));
+        }
+        return instance;
+    }
+
+    static int getMaxLagSeconds(Properties properties) {
+        return NumberUtils.toInt(properties.getProperty(MAX_LAG_PROPERTY), DEFAULT_MAX_LAG_SECONDS);
+    }
+
+    /**
+     * Starts sampling the load of the database, if it is not started yet.
+     */
+    public synchronized void start() {
+        if (sampler != null) {
+            return;
+        }
+        int seconds = NumberUtils.toInt(OBPropertiesProvider.getInstance().getOpenbravoProperties()
+                .getProperty(SAMPLE_SECONDS_PROPERTY), DEFAULT_SAMPLE_SECONDS);
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "etpbic-sync-load");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleWithFixedDelay(this::sample, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records the time a query of a sync script took, compared with the usual time of the same
+     * query to detect the slowdowns of the database.
+     *
+     * @param key
+     *     identifies the query, for example the client and the dataset name
+     */
+    public void recordQueryLatency(String key, long millis) {
+        usualLatencies.compute(key, (k, usual) -> {
+            if (usual == null) {
+                return (double) millis;
+            }
+            if (millis > SLOW_QUERY_FACTOR * usual) {
+                slowQueries = true;
+            }
+            return usual + LATENCY_SMOOTHING * (millis - usual);
+        });
+    }
+
+    void sample() {
+        try {
+            long activeBackends;
+            double lagSeconds;
+            try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(SAMPLE_SQL)) {
+                ps.setString(1, SCRIPT_APPLICATION_NAME);
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    activeBackends = rs.getLong(1);
+                    lagSeconds = rs.getDouble(2);
+                }
+            }
+            OBDal.getInstance().commitAndClose();
+            adjust(activeBackends, lagSeconds);
+        } catch (SQLException | RuntimeException e) {
+            // without a sample the budget is left as it is
+            log.error("Error sampling the database load: {}", e.getMessage(), e);
+            OBDal.getInstance().rollbackAndClose();
+        }
+    }
+
+    /**
+     * Adjusts the budget of the scheduler to a sample of the load. Returns the new budget.
+     */
+    int adjust(long activeBackends, double lagSeconds) {
+        boolean slow = slowQueries;
+        slowQueries = false;
+        int current = scheduler.getMaxRuns();
+        int next;
+        if (activeBackends > maxActiveBackends || lagSeconds > maxLagSeconds || slow) {
+            next = Math.max(Math.min(minRuns, scheduler.getMaxRunsLimit()), current / 2);
+            if (next < current) {
+                log.info("Database under pressure ({} active backends, {}s of replication lag, slow queries: {}),"
+                        + " sync runs reduced to {}", activeBackends, lagSeconds, slow, next);
+            }
+        } else {
+            next = Math.min(scheduler.getMaxRunsLimit(), current + 1);
+        }
+        if (next != current) {
+            scheduler.setMaxRuns(next);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,113 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.service.OBDal;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Remembers the datasets whose queries timed out, so the next runs don't let them stall the rest.
+ * <p>
+ * A dataset that timed out in one of its last runs is extracted last, after the other datasets of
+ * the run. After {@code etpbic.sync.skipAfterTimeouts} (3 by default) timeouts in a row it is
+ * skipped by the scheduled runs; runs requested by a user always try it. Both last while its last
+ * timeout is more recent than {@code etpbic.sync.timeoutCooldownMinutes} (360 by default), and end
+ * as soon as the query finishes in time.
+ * <p>
+ * The timeouts are kept in the TIMEOUT_COUNT and LAST_TIMEOUT columns of ETPBIC_QUERY, so every
+ * node sees the timeouts reported to any of them, and they outlive a restart. The statements run
+ * in the transaction of the caller.
+ */
+public class SyncQueryTimeouts {
+
+    static final String SKIP_AFTER_PROPERTY = "etpbic.sync.skipAfterTimeouts";
+    static final String COOLDOWN_PROPERTY = "etpbic.sync.timeoutCooldownMinutes";
+    static final int DEFAULT_SKIP_AFTER = 3;
+    static final int DEFAULT_COOLDOWN_MINUTES = 360;
+
+    private static final String TIMEOUT_SQL = "UPDATE etpbic_query SET timeout_count = timeout_count + 1,"
+            + " last_timeout = now() WHERE ad_client_id = ? AND name = ?";
+    private static final String SUCCESS_SQL = "UPDATE etpbic_query SET timeout_count = 0, last_timeout = NULL"
+            + " WHERE ad_client_id = ? AND name = ? AND timeout_count > 0";
+    private static final String SELECT_SQL = "SELECT DISTINCT name FROM etpbic_query"
+            + " WHERE ad_client_id = ? AND timeout_count >= ? AND last_timeout > now() - ? * interval '1 minute'"
+            + " ORDER BY name";
+
+    private static SyncQueryTimeouts instance;
+
+    private final int skipAfter;
+    private final int cooldownMinutes;
+
+    SyncQueryTimeouts(int skipAfter, int cooldownMinutes) {
+        this.skipAfter = Math.max(1, skipAfter);
+        this.cooldownMinutes = cooldownMinutes;
+    }
+
+    public static synchronized SyncQueryTimeouts getInstance() {
+        if (instance == null) {
+            Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+            instance = new SyncQueryTimeouts(
+                    NumberUtils.toInt(properties.getProperty(SKIP_AFTER_PROPERTY), DEFAULT_SKIP_AFTER),
+                    NumberUtils.toInt(properties.getProperty(COOLDOWN_PROPERTY), DEFAULT_COOLDOWN_MINUTES));
+        }
+        return instance;
+    }
+
+    /**
+     * Records that the query of a dataset timed out.
+     */
+    public void recordTimeout(String clientId, String dataset) throws SQLException {
+        update(TIMEOUT_SQL, clientId, dataset);
+    }
+
+    /**
+     * Records that the query of a dataset finished in time.
+     */
+    public void recordSuccess(String clientId, String dataset) throws SQLException {
+        update(SUCCESS_SQL, clientId, dataset);
+    }
+
+    /**
+     * Returns the datasets of a client that timed out recently, to be extracted last.
+     */
+    public List<String> getDeferred(String clientId) throws SQLException {
+        return select(clientId, 1);
+    }
+
+    /**
+     * Returns the datasets of a client that timed out too many times in a row, to be skipped by
+     * the scheduled runs.
+     */
+    public List<String> getSkipped(String clientId) throws SQLException {
+        return select(clientId, skipAfter);
+    }
+
+    private static void update(String sql, String clientId, String dataset) throws SQLException {
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(sql)) {
+            ps.setString(1, clientId);
+            ps.setString(2, dataset);
+            ps.executeUpdate();
+        }
+    }
+
+    private List<String> select(String clientId, int minTimeouts) throws SQLException {
+        List<String> datasets = new ArrayList<>();
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(SELECT_SQL)) {
+            ps.setString(1, clientId);
+            ps.setInt(2, minTimeouts);
+            ps.setInt(3, cooldownMinutes);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    datasets.add(rs.getString(1));
+                }
+            }
+        }
+        return datasets;
+    }
+}
@@ -0,0 +1,213 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Gives single-flight semantics to the sync runs of each (client, organization, connection).
+ * <p>
+ * Only one run per key is in progress at a time. A trigger received while a run is in progress
+ * is not queued: it is kept as the follow-up run of the key, replacing any previous follow-up, so
+ * any number of triggers received during a run result in at most one more run, which uses the
+ * configuration of the last trigger.
+ * <p>
+ * Runs are also coordinated with the other nodes of the cluster: a run only starts once this node
+ * holds the lease of its key in {@link SyncLeaseManager}. While another node holds it, the run is
+ * retried every {@link #LEASE_RETRY_SECONDS}, and new triggers keep being coalesced into it.
+ */
+public class SyncRunCoordinator {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final long LEASE_RETRY_SECONDS = 30;
+
+    private static final SyncRunCoordinator INSTANCE = new SyncRunCoordinator(createExecutor(),
+            SyncLeaseManager.getInstance());
+
+    private final Executor executor;
+    private final Executor retryExecutor;
+    private final SyncLeaseManager leases;
+    private final Set<String> running = new HashSet<>();
+    private final Map<String, PendingRun> followUps = new HashMap<>();
+
+    SyncRunCoordinator(Executor executor, SyncLeaseManager leases) {
+        this.executor = executor;
+        this.retryExecutor = CompletableFuture.delayedExecutor(LEASE_RETRY_SECONDS, TimeUnit.SECONDS, executor);
+        this.leases = leases;
+    }
+
+    public static SyncRunCoordinator getInstance() {
+        return INSTANCE;
+    }
+
+    private static ExecutorService createExecutor() {
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "etpbic-sync-run");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Builds the key of the runs of an organization with a BI connection.
+     */
+    public static String key(String clientId, String orgId, String connectionId) {
+        return clientId + "|" + orgId + "|" + connectionId;
+    }
+
+    /**
+     * Submits a run. The run is started if no other run of the key is in progress; otherwise it
+     * becomes the follow-up run of the key.
+     *
+     * @param run
+     *     starts the run and returns a stage completed when the run ends
+     * @return true if the run was started, false if it was coalesced into the follow-up run
+     */
+    public boolean submit(String key, Supplier<? extends CompletionStage<?>> run) {
+        return submit(key, run, null);
+    }
+
+    /**
+     * Submits a run, like {@link #submit(String, Supplier)}.
+     *
+     * @param onReplaced
+     *     called if the run is never started because a later trigger replaces it
+     */
+    public boolean submit(String key, Supplier<? extends CompletionStage<?>> run, Runnable onReplaced) {
+        PendingRun pending = new PendingRun(run, onReplaced);
+        PendingRun replaced;
+        synchronized (this) {
+            if (!running.contains(key)) {
+                running.add(key);
+                replaced = null;
+            } else {
+                replaced = followUps.put(key, pending);
+                pending = null;
+            }
+        }
+        if (pending == null) {
+            log.debug("Sync run {} in progress, trigger coalesced into its follow-up", key);
+            notifyReplaced(replaced);
+            return false;
+        }
+        PendingRun started = pending;
+        executor.execute(() -> execute(key, started));
+        return true;
+    }
+
+    /**
+     * Starts a run only if no other run of the key is in progress in this node. Unlike
+     * {@link #submit(String, Supplier)}, it never becomes the follow-up run of the key, so it can't
+     * replace a run that covers more than it does.
+     *
+     * @return true if the run was started, false if the key is busy
+     */
+    public boolean submitIfIdle(String key, Supplier<? extends CompletionStage<?>> run) {
+        synchronized (this) {
+            if (running.contains(key)) {
+                return false;
+            }
+            running.add(key);
+        }
+        PendingRun started = new PendingRun(run, null);
+        executor.execute(() -> execute(key, started));
+        return true;
+    }
+
+    public synchronized boolean isRunning(String key) {
+        return running.contains(key);
+    }
+
+    public synchronized boolean hasFollowUp(String key) {
+        return followUps.containsKey(key);
+    }
+
+    /**
+     * Returns the number of keys with a run in progress in this node, or waiting for its lease.
+     */
+    public synchronized int runningCount() {
+        return running.size();
+    }
+
+    private void execute(String key, PendingRun run) {
+        if (!leases.acquire(key)) {
+            log.debug("Sync run {} is in progress in another node, retrying later", key);
+            retryExecutor.execute(() -> retry(key, run));
+            return;
+        }
+        CompletionStage<?> stage;
+        try {
+            stage = run.run.get();
+        } catch (RuntimeException e) {
+            stage = CompletableFuture.failedFuture(e);
+        }
+        stage.whenComplete((result, error) -> {
+            if (error != null) {
+                log.error("Sync run {} failed: {}", key, error.getMessage(), error);
+            }
+            finish(key);
+        });
+    }
+
+    private void retry(String key, PendingRun run) {
+        PendingRun latest;
+        synchronized (this) {
+            // a trigger received while waiting replaces the pending run
+            latest = followUps.remove(key);
+        }
+        if (latest == null) {
+            execute(key, run);
+        } else {
+            notifyReplaced(run);
+            execute(key, latest);
+        }
+    }
+
+    private static void notifyReplaced(PendingRun run) {
+        if (run != null && run.onReplaced != null) {
+            try {
+                run.onReplaced.run();
+            } catch (RuntimeException e) {
+                log.error("Error notifying a replaced sync run: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private void finish(String key) {
+        PendingRun next;
+        synchronized (this) {
+            next = followUps.remove(key);
+            if (next == null) {
+                running.remove(key);
+            }
+        }
+        if (next == null) {
+            leases.release(key);
+            return;
+        }
+        // the follow-up keeps the lease of the key
+        executor.execute(() -> execute(key, next));
+    }
+
+    private static class PendingRun {
+        private final Supplier<? extends CompletionStage<?>> run;
+        private final Runnable onReplaced;
+
+        PendingRun(Supplier<? extends CompletionStage<?>> run, Runnable onReplaced) {
+            this.run = run;
+            this.onReplaced = onReplaced;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.dal.service.OBDal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the progress of the sync script runs.
+ * <p>
+ * Every run is identified by the run id generated by {@link CallPythonScript} and receives phase
+ * events from the script through the {@link SyncRunStatus} webhook. The current state of the runs
+ * started in this node is kept in memory, so their events and status requests are answered without
+ * touching the database. The state is persisted in ETPBIC_RUN when the run starts and ends, and in
+ * between at most once every {@link #PERSIST_INTERVAL_MS}, so it survives restarts and is visible
+ * from other nodes.
+ * <p>
+ * The runs of other nodes are never kept in memory: they are read from ETPBIC_RUN on each request,
+ * and the events and cancel requests received for them are applied to their row locked with
+ * {@code SELECT ... FOR UPDATE}, in the transaction of the request. Once a run is finished, by
+ * any node, its row is not changed again.
+ * <p>
+ * The scripts running in the node are attached to their runs, so they can be cancelled. A cancel
+ * request is persisted as the {@link #PHASE_CANCEL_REQUESTED} phase of the run, and the node running
+ * its script stops it right away or, if it is another node, in its next poll of {@link SyncWorker}.
+ * The script is asked to stop with SIGTERM, so it cancels its statements in the database and ends
+ * its transfers, and killed if it is still alive after {@link #KILL_GRACE_SECONDS}.
+ * <p>
+ * The script writes its log in the BI log entry with the id of its run, see {@link FillLogWindow}.
+ * A script killed or crashed can't send its last chunk, so the entry is closed with the status of
+ * the run once the script exits.
+ */
+public class SyncRunRegistry {
+
+    private static final Logger log = LogManager.getLogger();
+
+    public static final String STATUS_RUNNING = "Running";
+    public static final String STATUS_SUCCESS = "Success";
+    public static final String STATUS_ERROR = "Error";
+    public static final String STATUS_CANCELLED = "Cancelled";
+
+    static final String PHASE_STARTED = "started";
+    static final String PHASE_CANCEL_REQUESTED = "cancel-requested";
+    static final String PHASE_EXITED = "exited";
+    static final long KILL_GRACE_SECONDS = 30;
+
+    static final long PERSIST_INTERVAL_MS = 10_000L;
+    /** Finished runs are kept in memory for this time, then they are read from the database. */
+    static final long FINISHED_TTL_MS = 3_600_000L;
+
+    private static final String UPSERT_RUN_SQL = "INSERT INTO etpbic_run (etpbic_run_id, ad_client_id,"
+            + " ad_org_id, isactive, created, createdby, updated, updatedby, run_status, run_phase, dataset_name,"
+            + " query_index, query_count, rows_processed) VALUES (?, ?, ?, 'Y', ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+            + " ON CONFLICT (etpbic_run_id) DO UPDATE SET updated = EXCLUDED.updated,"
+            // a cancel requested from another node is kept until the run ends
+            + " run_status = EXCLUDED.run_status, run_phase = CASE WHEN etpbic_run.run_phase = '"
+            + PHASE_CANCEL_REQUESTED + "' AND EXCLUDED.run_status = '" + STATUS_RUNNING
+            + "' THEN etpbic_run.run_phase ELSE EXCLUDED.run_phase END,"
+            + " dataset_name = EXCLUDED.dataset_name, query_index = EXCLUDED.query_index,"
+            + " query_count = EXCLUDED.query_count, rows_processed = EXCLUDED.rows_processed"
+            // a run finished by another node is not changed again
+            + " WHERE etpbic_run.run_status = '" + STATUS_RUNNING + "'";
+    private static final String SELECT_RUN_SQL = "SELECT ad_client_id, ad_org_id, createdby, created, updated,"
+            + " run_status, run_phase, dataset_name, query_index, query_count, rows_processed FROM etpbic_run"
+            + " WHERE etpbic_run_id = ?";
+    private static final String LOCK_RUN_SQL = SELECT_RUN_SQL + " FOR UPDATE";
+
+    private static final String CLOSE_LOG_SQL = "UPDATE etpbic_log SET type = r.run_status, updated = now()"
+            + " FROM etpbic_run r WHERE etpbic_log.etpbic_log_id = ? AND r.etpbic_run_id = ?"
+            + " AND etpbic_log.type = '" + STATUS_RUNNING + "' AND r.run_status <> '" + STATUS_RUNNING + "'";
+
+    private static final String SELECT_CANCEL_REQUESTED_SQL = "SELECT etpbic_run_id FROM etpbic_run"
+            + " WHERE run_phase = '" + PHASE_CANCEL_REQUESTED + "' AND run_status = '" + STATUS_RUNNING + "'"
+            + " AND etpbic_run_id = ANY (?)";
+
+    private static final SyncRunRegistry INSTANCE = new SyncRunRegistry();
+
+    private final Map<String, RunState> runs = new ConcurrentHashMap<>();
+    private final Map<String, Process> processes = new ConcurrentHashMap<>();
+
+    SyncRunRegistry() {
+    }
+
+    public static SyncRunRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers a new run and persists it, before the script is launched.
+     */
+    public RunState start(String runId, String clientId, String orgId, String userId) throws SQLException {
+        evictFinished(System.currentTimeMillis());
+        RunState run = new RunState(runId, clientId, orgId, userId, System.currentTimeMillis());
+        runs.put(runId, run);
+        persist(run);
+        return run;
+    }
+
+    /**
+     * Applies a phase event sent by the script to its run. Returns null if the run is unknown.
+     *
+     * @param event
+     *     the event values: phase and optionally status, dataset, index, count and rows
+     */
+    public RunState record(String runId, Map<String, String> event) throws SQLException {
+        RunState run = runs.get(runId);
+        boolean foreign = run == null;
+        if (foreign) {
+            run = lock(runId);
+            if (run == null) {
+                return null;
+            }
+        }
+        long now = System.currentTimeMillis();
+        boolean mustPersist;
+        synchronized (run) {
+            run.apply(event, now);
+            mustPersist = foreign || run.isFinished() || now - run.persisted >= PERSIST_INTERVAL_MS;
+        }
+        if (mustPersist) {
+            persist(run);
+        }
+        return run;
+    }
+
+    /**
+     * Returns the current state of a run, from memory if it was started in this node or, for the
+     * runs of other nodes and the ones no longer in memory, by its primary key. Returns null if the
+     * run doesn't exist.
+     */
+    public RunState get(String runId) throws SQLException {
+        if (StringUtils.isEmpty(runId)) {
+            return null;
+        }
+        RunState run = runs.get(runId);
+        return run != null ? run : load(runId, SELECT_RUN_SQL);
+    }
+
+    /**
+     * Returns the state of a run of another node, locking its row until the transaction ends.
+     */
+    private static RunState lock(String runId) throws SQLException {
+        return StringUtils.isEmpty(runId) ? null : load(runId, LOCK_RUN_SQL);
+    }
+
+    /**
+     * Attaches the script of a run started in this node, until it ends.
+     */
+    public void attach(String runId, Process process) {
+        processes.put(runId, process);
+    }
+
+    /**
+     * Requests the cancellation of a run. The script is stopped if it runs in this node; otherwise
+     * the request is left for the node running it. Returns null if the run doesn't exist.
+     */
+    public RunState cancel(String runId) throws SQLException {
+        RunState run = runs.get(runId);
+        if (run == null) {
+            run = lock(runId);
+            if (run == null) {
+                return null;
+            }
+        }
+        synchronized (run) {
+            if (run.isFinished()) {
+                return run;
+            }
+            run.phase = PHASE_CANCEL_REQUESTED;
+            run.cancelRequested = true;
+            run.updated = System.currentTimeMillis();
+        }
+        persist(run);
+        Process process = processes.get(runId);
+        if (process != null) {
+            stop(runId, process);
+        }
+        return run;
+    }
+
+    /**
+     * Stops the scripts of this node whose runs were cancelled from other nodes.
+     */
+    public void stopCancelled() throws SQLException {
+        if (processes.isEmpty()) {
+            return;
+        }
+        Connection conn = OBDal.getInstance().getConnection(true);
+        try (PreparedStatement ps = conn.prepareStatement(SELECT_CANCEL_REQUESTED_SQL)) {
+            ps.setArray(1, conn.createArrayOf("varchar", processes.keySet().toArray()));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String runId = rs.getString(1);
+                    RunState run = runs.get(runId);
+                    if (run != null) {
+                        synchronized (run) {
+                            run.cancelRequested = true;
+                        }
+                    }
+                    Process process = processes.get(runId);
+                    if (process != null) {
+                        stop(runId, process);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Asks the script of a run to stop, and kills it if it doesn't in {@link #KILL_GRACE_SECONDS}.
+     */
+    void stop(String runId, Process process) {
+        if (!process.isAlive()) {
+            return;
+        }
+        log.info("Stopping the script of sync run {}", runId);
+        // SIGTERM: the script cancels its statements and ends its transfers
+        process.destroy();
+        process.onExit().completeOnTimeout(process, KILL_GRACE_SECONDS, TimeUnit.SECONDS).thenAccept(p -> {
+            if (p.isAlive()) {
+                log.warn("The script of sync run {} didn't stop, killing it", runId);
+                p.destroyForcibly();
+            }
+        });
+    }
+
+    /**
+     * Detaches the script of a run when it ends. A run the script didn't finish, because it was
+     * killed or crashed, ends as cancelled if it was requested or as an error otherwise, and so does
+     * its BI log entry.
+     */
+    public void exited(String runId) {
+        processes.remove(runId);
+        RunState run = runs.get(runId);
+        if (run == null) {
+            return;
+        }
+        boolean mustPersist;
+        synchronized (run) {
+            mustPersist = !run.isFinished();
+            if (mustPersist) {
+                run.status = run.cancelRequested ? STATUS_CANCELLED : STATUS_ERROR;
+                run.phase = PHASE_EXITED;
+                run.updated = System.currentTimeMillis();
+            }
+        }
+        if (mustPersist) {
+            try {
+                if (!persist(run)) {
+                    // finished by another node, its state is read from the database
+                    runs.remove(runId);
+                }
+                closeLog(runId);
+                OBDal.getInstance().commitAndClose();
+            } catch (SQLException | RuntimeException e) {
+                log.error("Error finishing run {}: {}", runId, e.getMessage(), e);
+                OBDal.getInstance().rollbackAndClose();
+            }
+        }
+    }
+
+    void evictFinished(long now) {
+        runs.values().removeIf(run -> run.isFinished() && now - run.updated > FINISHED_TTL_MS);
+    }
+
+    int size() {
+        return runs.size();
+    }
+
+    void clear() {
+        runs.clear();
+        processes.clear();
+    }
+
+    /**
+     * Persists the state of a run. Returns false if the run was already finished in the database,
+     * so it was left as it is.
+     */
+    static boolean persist(RunState run) throws SQLException {
+        boolean updated;
+        synchronized (run) {
+            try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(UPSERT_RUN_SQL)) {
+                ps.setString(1, run.runId);
+                ps.setString(2, run.clientId);
+                ps.setString(3, run.orgId);
+                ps.setTimestamp(4, new Timestamp(run.started));
+                ps.setString(5, run.userId);
+                ps.setTimestamp(6, new Timestamp(run.updated));
+                ps.setString(7, run.userId);
+                ps.setString(8, run.status);
+                ps.setString(9, run.phase);
+                ps.setString(10, run.dataset);
+                ps.setLong(11, run.queryIndex);
+                ps.setLong(12, run.queryCount);
+                ps.setLong(13, run.rows);
+                updated = ps.executeUpdate() > 0;
+            }
+            run.persisted = run.updated;
+        }
+        log.debug("Persisted run {} in phase {}", run.runId, run.phase);
+        return updated;
+    }
+
+    /**
+     * Sets the type of the BI log entry of a finished run to the status of the run, if the script
+     * left it running.
+     */
+    static void closeLog(String runId) throws SQLException {
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(CLOSE_LOG_SQL)) {
+            ps.setString(1, runId);
+            ps.setString(2, runId);
+            ps.executeUpdate();
+        }
+    }
+
+    private static RunState load(String runId, String query) throws SQLException {
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(query)) {
+            ps.setString(1, runId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                RunState run = new RunState(runId, rs.getString(1), rs.getString(2), rs.getString(3),
+                        rs.getTimestamp(4).getTime());
+                run.updated = rs.getTimestamp(5).getTime();
+                run.persisted = run.updated;
+                run.status = rs.getString(6);
+                run.phase = rs.getString(7);
+                run.dataset = rs.getString(8);
+                run.queryIndex = rs.getLong(9);
+                run.queryCount = rs.getLong(10);
+                run.rows = rs.getLong(11);
+                return run;
+            }
+        }
+    }
+
+    /**
+     * Progress of a single run.
+     */
+    public static class RunState {
+        private final String runId;
+        private final String clientId;
+        private final String orgId;
+        private final String userId;
+        private final long started;
+        private long updated;
+        private long persisted;
+        private String status = STATUS_RUNNING;
+        private String phase = PHASE_STARTED;
+        private String dataset;
+        private long queryIndex;
+        private long queryCount;
+        private long rows;
+        private boolean cancelRequested;
+
+        RunState(String runId, String clientId, String orgId, String userId, long started) {
+            this.runId = runId;
+            this.clientId = clientId;
+            this.orgId = orgId;
+            this.userId = userId;
+            this.started = started;
+            this.updated = started;
+        }
+
+        void apply(Map<String, String> event, long now) {
+            // the events of the script don't hide a cancel request until the run ends
+            if (!PHASE_CANCEL_REQUESTED.equals(phase) || StringUtils.isNotEmpty(event.get("status"))) {
+                phase = StringUtils.defaultIfEmpty(event.get("phase"), phase);
+            }
+            status = StringUtils.defaultIfEmpty(event.get("status"), status);
+            if (event.containsKey("dataset")) {
+                dataset = event.get("dataset");
+            }
+            queryIndex = parseLong(event.get("index"), queryIndex);
+            queryCount = parseLong(event.get("count"), queryCount);
+            rows += parseLong(event.get("rows"), 0);
+            updated = now;
+        }
+
+        private static long parseLong(String value, long defaultValue) {
+            try {
+                return StringUtils.isEmpty(value) ? defaultValue : Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        public synchronized boolean isFinished() {
+            return !STATUS_RUNNING.equals(status);
+        }
+
+        /**
+         * Copies the state into the response variables of the status webhook.
+         */
+        public synchronized void fill(Map<String, String> responseVars) {
+            responseVars.put("runid", runId);
+            responseVars.put("status", status);
+            responseVars.put("phase", phase);
+            responseVars.put("dataset", StringUtils.defaultString(dataset));
+            responseVars.put("index", String.valueOf(queryIndex));
+            responseVars.put("count", String.valueOf(queryCount));
+            responseVars.put("rows", String.valueOf(rows));
+            responseVars.put("started", new Timestamp(started).toInstant().toString());
+            responseVars.put("updated", new Timestamp(updated).toInstant().toString());
+        }
+
+        public String getRunId() {
+            return runId;
+        }
+
+        public String getClientId() {
+            return clientId;
+        }
+
+        public synchronized String getStatus() {
+            return status;
+        }
+
+        public synchronized String getPhase() {
+            return phase;
+        }
+
+        public synchronized long getRows() {
+            return rows;
+        }
+    }
+}
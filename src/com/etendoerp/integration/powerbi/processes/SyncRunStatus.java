@@ -0,0 +1,90 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import com.etendoerp.integration.powerbi.processes.SyncRunRegistry.RunState;
+import com.etendoerp.webhookevents.services.BaseWebhookService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.erpCommon.utility.OBMessageUtils;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Webhook that tracks the progress of the sync script runs, kept by {@link SyncRunRegistry}.
+ * <p>
+ * Called with a {@code runid} and a {@code phase}, it records a progress event sent by the script
+ * ({@code config-resolved}, {@code query-started}, {@code query-done}, {@code upload-started},
+ * {@code done}...). The optional {@code status}, {@code dataset}, {@code index}, {@code count} and
+ * {@code rows} parameters complete the event. The {@code elapsed} milliseconds of a
+ * {@code query-done} event feed {@link SyncLoadMonitor}, and the {@code query-timeout} and
+ * {@code query-done} events of each dataset feed {@link SyncQueryTimeouts}.
+ * <p>
+ * Called with a {@code runid} and {@code action=cancel}, it requests the cancellation of the run.
+ * <p>
+ * Called with just a {@code runid}, it returns the current state of the run in the response
+ * variables, without reading the BI logs.
+ */
+public class SyncRunStatus extends BaseWebhookService {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final String PARAM_RUN_ID = "runid";
+    static final String PARAM_PHASE = "phase";
+    static final String PARAM_ELAPSED = "elapsed";
+    static final String PARAM_ACTION = "action";
+    static final String ACTION_CANCEL = "cancel";
+    static final String PHASE_QUERY_DONE = "query-done";
+    static final String PHASE_QUERY_TIMEOUT = "query-timeout";
+
+    @Override
+    public void get(Map<String, String> parameter, Map<String, String> responseVars) {
+        String runId = parameter.get(PARAM_RUN_ID);
+        RunState run;
+        try {
+            SyncRunRegistry registry = SyncRunRegistry.getInstance();
+            run = registry.get(runId);
+            if (run == null || !StringUtils.equals(run.getClientId(),
+                    OBContext.getOBContext().getCurrentClient().getId())) {
+                run = null;
+            } else if (StringUtils.equals(ACTION_CANCEL, parameter.get(PARAM_ACTION))) {
+                run = registry.cancel(runId);
+            } else if (StringUtils.isNotEmpty(parameter.get(PARAM_PHASE))) {
+                run = registry.record(runId, parameter);
+                recordLatency(run.getClientId(), parameter);
+                recordTimeout(run.getClientId(), parameter);
+            }
+        } catch (Exception e) {
+            log.error("Error tracking sync run {}: {}", runId, e.getMessage(), e);
+            throw new OBException(e.getMessage());
+        }
+        if (run == null) {
+            throw new OBException(String.format(OBMessageUtils.messageBD("ETPBIC_RunNotFound"), runId));
+        }
+        run.fill(responseVars);
+    }
+
+    private static void recordLatency(String clientId, Map<String, String> parameter) {
+        long elapsed = NumberUtils.toLong(parameter.get(PARAM_ELAPSED), -1);
+        String dataset = parameter.get("dataset");
+        if (elapsed >= 0 && StringUtils.isNotEmpty(dataset)) {
+            SyncLoadMonitor.getInstance().recordQueryLatency(clientId + "|" + dataset, elapsed);
+        }
+    }
+
+    private static void recordTimeout(String clientId, Map<String, String> parameter) throws SQLException {
+        String dataset = parameter.get("dataset");
+        if (StringUtils.isEmpty(dataset)) {
+            return;
+        }
+        String phase = parameter.get(PARAM_PHASE);
+        if (PHASE_QUERY_TIMEOUT.equals(phase)) {
+            SyncQueryTimeouts.getInstance().recordTimeout(clientId, dataset);
+        } else if (PHASE_QUERY_DONE.equals(phase)) {
+            SyncQueryTimeouts.getInstance().recordSuccess(clientId, dataset);
+        }
+    }
+}
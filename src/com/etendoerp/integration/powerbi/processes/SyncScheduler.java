@@ -0,0 +1,264 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.session.OBPropertiesProvider;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Admission control of the sync runs of a node, so they don't overload the database.
+ * <p>
+ * Runs are queued per client and started under a global budget of concurrent runs
+ * ({@code etpbic.sync.maxConcurrentRuns}, 4 by default) and a cap per client
+ * ({@code etpbic.sync.maxRunsPerClient}, 2 by default). When there is budget, the next run is
+ * taken from the client with the lowest virtual time, which grows by {@code 1 / weight} with every
+ * run started, so clients share the budget in proportion to their weight
+ * ({@code etpbic.sync.weight.<clientId>}, 1 by default) whatever the number of runs they queue.
+ * <p>
+ * Scheduled runs are not started right away but after an offset derived from their key, between
+ * 0 and {@code etpbic.sync.startSpreadSeconds} (60 by default), so the runs scheduled at the same
+ * time don't all hit the database at once.
+ * <p>
+ * The global budget is the upper limit: {@link SyncLoadMonitor} lowers and raises the budget in
+ * use between 1 and that limit following the load of the database.
+ */
+public class SyncScheduler {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final String MAX_RUNS_PROPERTY = "etpbic.sync.maxConcurrentRuns";
+    static final String MAX_CLIENT_RUNS_PROPERTY = "etpbic.sync.maxRunsPerClient";
+    static final String START_SPREAD_PROPERTY = "etpbic.sync.startSpreadSeconds";
+    static final String WEIGHT_PROPERTY_PREFIX = "etpbic.sync.weight.";
+    static final int DEFAULT_MAX_RUNS = 4;
+    static final int DEFAULT_MAX_CLIENT_RUNS = 2;
+    static final int DEFAULT_START_SPREAD_SECONDS = 60;
+
+    private static SyncScheduler instance;
+
+    private final int maxRunsLimit;
+    private final int maxClientRuns;
+    private final long startSpreadMillis;
+    private final ToIntFunction<String> weights;
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final LongSupplier clock;
+
+    private final Map<String, ClientQueue> queues = new LinkedHashMap<>();
+    private int maxRuns;
+    private int active;
+    private double virtualTime;
+    private ScheduledFuture<?> wakeUp;
+    private long wakeUpAt = Long.MAX_VALUE;
+
+    SyncScheduler(int maxRuns, int maxClientRuns, long startSpreadMillis, ToIntFunction<String> weights,
+            Executor executor, ScheduledExecutorService timer, LongSupplier clock) {
+        this.maxRunsLimit = Math.max(1, maxRuns);
+        this.maxRuns = this.maxRunsLimit;
+        this.maxClientRuns = Math.max(1, maxClientRuns);
+        this.startSpreadMillis = Math.max(0, startSpreadMillis);
+        this.weights = weights;
+        this.executor = executor;
+        this.timer = timer;
+        this.clock = clock;
+    }
+
+    public static synchronized SyncScheduler getInstance() {
+        if (instance == null) {
+            Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "etpbic-sync-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            instance = new SyncScheduler(
+                    NumberUtils.toInt(properties.getProperty(MAX_RUNS_PROPERTY), DEFAULT_MAX_RUNS),
+                    NumberUtils.toInt(properties.getProperty(MAX_CLIENT_RUNS_PROPERTY), DEFAULT_MAX_CLIENT_RUNS),
+                    TimeUnit.SECONDS.toMillis(NumberUtils.toInt(properties.getProperty(START_SPREAD_PROPERTY),
+                            DEFAULT_START_SPREAD_SECONDS)),
+                    clientId -> Math.max(1, NumberUtils.toInt(properties.getProperty(WEIGHT_PROPERTY_PREFIX + clientId), 1)),
+                    timer, timer, System::currentTimeMillis);
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a run of a client.
+     *
+     * @param key
+     *     the {@link SyncRunCoordinator} key of the run
+     * @param spread
+     *     true to delay the start of the run by the offset of its key
+     * @param run
+     *     starts the run and returns a stage completed when the run ends
+     * @return a stage completed when the run ends
+     */
+    public CompletableFuture<Void> schedule(String clientId, String key, boolean spread,
+            Supplier<? extends CompletionStage<?>> run) {
+        QueuedRun queued = new QueuedRun(run, spread ? clock.getAsLong() + startOffset(key) : 0);
+        synchronized (this) {
+            queues.computeIfAbsent(clientId, id -> new ClientQueue(weights.applyAsInt(id))).runs.add(queued);
+        }
+        dispatch();
+        return queued.done;
+    }
+
+    /**
+     * Returns the start offset of a key, stable for each key so its runs always start at the same
+     * point of the spread window.
+     */
+    long startOffset(String key) {
+        return startSpreadMillis == 0 ? 0 : Math.floorMod(key.hashCode(), startSpreadMillis);
+    }
+
+    /**
+     * Changes the number of runs that can be in progress at the same time, up to the configured
+     * global budget. Runs in progress are never interrupted: a lower budget only delays the start
+     * of the queued ones.
+     */
+    public void setMaxRuns(int runs) {
+        synchronized (this) {
+            maxRuns = Math.max(1, Math.min(maxRunsLimit, runs));
+        }
+        dispatch();
+    }
+
+    public synchronized int getMaxRuns() {
+        return maxRuns;
+    }
+
+    public int getMaxRunsLimit() {
+        return maxRunsLimit;
+    }
+
+    synchronized int activeCount() {
+        return active;
+    }
+
+    synchronized int queuedCount() {
+        return queues.values().stream().mapToInt(queue -> queue.runs.size()).sum();
+    }
+
+    private void dispatch() {
+        while (true) {
+            QueuedRun next;
+            ClientQueue queue;
+            synchronized (this) {
+                if (active >= maxRuns) {
+                    return;
+                }
+                long now = clock.getAsLong();
+                queue = nextQueue(now);
+                if (queue == null) {
+                    scheduleWakeUp(now);
+                    return;
+                }
+                next = queue.runs.poll();
+                active++;
+                queue.active++;
+                // an idle client doesn't accumulate credit: it restarts from the current virtual time
+                double startTag = Math.max(queue.virtualTime, virtualTime);
+                queue.virtualTime = startTag + 1.0 / queue.weight;
+                virtualTime = startTag;
+            }
+            ClientQueue started = queue;
+            executor.execute(() -> start(started, next));
+        }
+    }
+
+    /**
+     * Returns the queue whose next run would finish first in virtual time, among the ones with a
+     * run ready to start and below the cap per client.
+     */
+    private ClientQueue nextQueue(long now) {
+        ClientQueue next = null;
+        double nextFinish = Double.MAX_VALUE;
+        for (ClientQueue queue : queues.values()) {
+            QueuedRun head = queue.runs.peek();
+            if (head == null || head.notBefore > now || queue.active >= maxClientRuns) {
+                continue;
+            }
+            double finish = Math.max(queue.virtualTime, virtualTime) + 1.0 / queue.weight;
+            if (finish < nextFinish) {
+                next = queue;
+                nextFinish = finish;
+            }
+        }
+        return next;
+    }
+
+    private void scheduleWakeUp(long now) {
+        long earliest = Long.MAX_VALUE;
+        for (ClientQueue queue : queues.values()) {
+            QueuedRun head = queue.runs.peek();
+            if (head != null && head.notBefore > now) {
+                earliest = Math.min(earliest, head.notBefore);
+            }
+        }
+        if (earliest == Long.MAX_VALUE || (wakeUp != null && !wakeUp.isDone() && wakeUpAt <= earliest)) {
+            return;
+        }
+        wakeUpAt = earliest;
+        wakeUp = timer.schedule(this::dispatch, earliest - now, TimeUnit.MILLISECONDS);
+    }
+
+    private void start(ClientQueue queue, QueuedRun queued) {
+        CompletionStage<?> stage;
+        try {
+            stage = queued.run.get();
+        } catch (RuntimeException e) {
+            stage = CompletableFuture.failedFuture(e);
+        }
+        stage.whenComplete((result, error) -> {
+            synchronized (this) {
+                active--;
+                queue.active--;
+            }
+            if (error != null) {
+                log.error("Scheduled sync run failed: {}", error.getMessage(), error);
+                queued.done.completeExceptionally(error);
+            } else {
+                queued.done.complete(null);
+            }
+            dispatch();
+        });
+    }
+
+    private static class ClientQueue {
+        private final int weight;
+        private final Deque<QueuedRun> runs = new ArrayDeque<>();
+        private int active;
+        private double virtualTime;
+
+        ClientQueue(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static class QueuedRun {
+        private final Supplier<? extends CompletionStage<?>> run;
+        private final long notBefore;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        QueuedRun(Supplier<? extends CompletionStage<?>> run, long notBefore) {
+            this.run = run;
+            this.notBefore = notBefore;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import com.etendoerp.integration.powerbi.data.BiConnection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.criterion.Restrictions;
+import org.openbravo.dal.service.OBCriteria;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.erpCommon.utility.SequenceIdData;
+import org.openbravo.model.ad.system.Client;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Work units of the client level sync runs, stored in ETPBIC_WORK_UNIT.
+ * <p>
+ * A client level run is split in one unit per organization with a BI connection. The organization 0
+ * gets its own unit if it has a connection, so its script keeps extracting the datasets of all the
+ * organizations to its own destinations, as the client level runs did before. The units are
+ * claimed by the {@link SyncWorker} of any node with free capacity, so the extraction work is
+ * spread across the cluster. A claimed unit is leased to its node: if the node dies and the lease
+ * expires, the unit is claimed again by another node, up to {@link #MAX_ATTEMPTS} times.
+ * <p>
+ * An organization has at most one unit waiting or running, enforced by the unique index
+ * ETPBIC_WORK_UNIT_ORG_OPEN, so runs of the same client queued at the same time by several nodes
+ * don't extract its organizations twice.
+ */
+public class SyncWorkUnits {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final String STATUS_PENDING = "Pending";
+    static final String STATUS_DONE = "Done";
+    static final String STATUS_ERROR = "Error";
+    static final int MAX_ATTEMPTS = 3;
+    /** Finished units are kept this time for auditing. */
+    static final int RETENTION_HOURS = 24;
+
+    private static final String ENQUEUE_SQL = "INSERT INTO etpbic_work_unit (etpbic_work_unit_id, ad_client_id,"
+            + " ad_org_id, isactive, created, createdby, updated, updatedby, unit_status, attempts)"
+            + " VALUES (?, ?, ?, 'Y', now(), ?, now(), ?, 'Pending', 0) ON CONFLICT DO NOTHING";
+    private static final String CLAIM_SQL = "UPDATE etpbic_work_unit SET unit_status = 'Claimed', node_name = ?,"
+            + " lease_expires = now() + ? * interval '1 second', attempts = attempts + 1, updated = now()"
+            + " WHERE etpbic_work_unit_id = (SELECT etpbic_work_unit_id FROM etpbic_work_unit"
+            + " WHERE (unit_status = 'Pending' OR (unit_status = 'Claimed' AND lease_expires < now()))"
+            + " AND attempts < ? ORDER BY created LIMIT 1 FOR UPDATE SKIP LOCKED)"
+            + " RETURNING etpbic_work_unit_id, ad_client_id, ad_org_id, createdby";
+    private static final String COMPLETE_SQL = "UPDATE etpbic_work_unit SET unit_status = ?, updated = now()"
+            + " WHERE etpbic_work_unit_id = ? AND node_name = ?";
+    private static final String PURGE_SQL = "DELETE FROM etpbic_work_unit"
+            + " WHERE updated < now() - ? * interval '1 hour'";
+
+    private SyncWorkUnits() {
+    }
+
+    /**
+     * Queues a unit for each organization of the client with a BI connection, unless it already
+     * has a unit waiting or running. Returns the number of organizations of the run.
+     */
+    public static int enqueueClientRun(Client client, String userId) throws SQLException {
+        OBCriteria<BiConnection> configCrit = OBDal.getInstance().createCriteria(BiConnection.class);
+        configCrit.add(Restrictions.eq(BiConnection.PROPERTY_CLIENT, client));
+        Set<String> orgIds = new LinkedHashSet<>();
+        for (BiConnection config : configCrit.list()) {
+            orgIds.add(config.getOrganization().getId());
+        }
+        enqueue(client.getId(), orgIds, userId);
+        return orgIds.size();
+    }
+
+    /**
+     * Queues a unit for each of the given organizations of a client, skipping the ones that have a
+     * unit waiting or running.
+     * <p>
+     * The units are inserted in the transaction of the caller. An insert that conflicts with a
+     * unit queued by another transaction still in progress waits for it, and is skipped once it
+     * commits.
+     */
+    static void enqueue(String clientId, Collection<String> orgIds, String userId) throws SQLException {
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(ENQUEUE_SQL)) {
+            for (String orgId : orgIds) {
+                ps.setString(1, SequenceIdData.getUUID());
+                ps.setString(2, clientId);
+                ps.setString(3, orgId);
+                ps.setString(4, userId);
+                ps.setString(5, userId);
+                ps.addBatch();
+            }
+            if (!orgIds.isEmpty()) {
+                ps.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Claims the oldest unit available for this node, and commits the claim. Returns null if there
+     * are no units available.
+     */
+    public static WorkUnit claim(String nodeName) throws SQLException {
+        WorkUnit unit = null;
+        Connection conn = OBDal.getInstance().getConnection(true);
+        try (PreparedStatement ps = conn.prepareStatement(CLAIM_SQL)) {
+            ps.setString(1, nodeName);
+            ps.setInt(2, SyncLeaseManager.LEASE_TTL_SECONDS);
+            ps.setInt(3, MAX_ATTEMPTS);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    unit = new WorkUnit(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4));
+                }
+            }
+        }
+        OBDal.getInstance().commitAndClose();
+        return unit;
+    }
+
+    /**
+     * Marks a unit claimed by this node as finished, and commits it.
+     */
+    public static void complete(WorkUnit unit, String nodeName, boolean success) {
+        try {
+            try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(COMPLETE_SQL)) {
+                ps.setString(1, success ? STATUS_DONE : STATUS_ERROR);
+                ps.setString(2, unit.id);
+                ps.setString(3, nodeName);
+                ps.executeUpdate();
+            }
+            OBDal.getInstance().commitAndClose();
+        } catch (Exception e) {
+            log.error("Error completing sync work unit {}: {}", unit.id, e.getMessage(), e);
+            OBDal.getInstance().rollbackAndClose();
+        }
+    }
+
+    /**
+     * Deletes the units not updated in {@link #RETENTION_HOURS}, and commits it.
+     */
+    public static void purge() throws SQLException {
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(PURGE_SQL)) {
+            ps.setInt(1, RETENTION_HOURS);
+            ps.executeUpdate();
+        }
+        OBDal.getInstance().commitAndClose();
+    }
+
+    /**
+     * A unit claimed by this node: the sync run of an organization.
+     */
+    public static class WorkUnit {
+        final String id;
+        final String clientId;
+        final String orgId;
+        final String userId;
+
+        WorkUnit(String id, String clientId, String orgId, String userId) {
+            this.id = id;
+            this.clientId = clientId;
+            this.orgId = orgId;
+            this.userId = userId;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.etendoerp.integration.powerbi.processes;
+
+import com.etendoerp.integration.powerbi.processes.CallPythonScript.PreparedRun;
+import com.etendoerp.integration.powerbi.processes.StaleDatasets.Resync;
+import com.etendoerp.integration.powerbi.processes.SyncWorkUnits.WorkUnit;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.client.kernel.ApplicationInitializer;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.ad.system.Client;
+import org.openbravo.model.common.enterprise.Organization;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs on every node the work units of the client level sync runs queued in
+ * {@link SyncWorkUnits}.
+ * <p>
+ * Every {@link #POLL_SECONDS} the worker claims units while the node runs less syncs than the
+ * {@code etpbic.sync.maxLocalRuns} property of Openbravo.properties (2 by default), so the units
+ * of a run are spread across all the nodes with spare capacity. Each poll also stops the scripts
+ * of the node whose runs were cancelled from other nodes, and re-syncs the datasets whose queries
+ * were edited, see {@link StaleDatasets}.
+ */
+@ApplicationScoped
+public class SyncWorker implements ApplicationInitializer {
+
+    private static final Logger log = LogManager.getLogger();
+
+    static final int POLL_SECONDS = 15;
+    static final String MAX_LOCAL_RUNS_PROPERTY = "etpbic.sync.maxLocalRuns";
+    static final int DEFAULT_MAX_LOCAL_RUNS = 2;
+    /** Polls between purges of the finished units, about an hour. */
+    private static final int PURGE_EVERY_POLLS = 240;
+    private static final String USER_ROLE_SQL = "SELECT ur.ad_role_id FROM ad_user_roles ur"
+            + " JOIN ad_role r ON r.ad_role_id = ur.ad_role_id JOIN ad_user u ON u.ad_user_id = ur.ad_user_id"
+            + " WHERE ur.ad_user_id = ? AND r.ad_client_id = ? AND ur.isactive = 'Y' AND r.isactive = 'Y'"
+            + " ORDER BY CASE WHEN ur.ad_role_id = u.default_ad_role_id THEN 0 ELSE 1 END, ur.created";
+
+    private ScheduledExecutorService poller;
+    private int polls;
+
+    @Override
+    public synchronized void initialize() {
+        if (poller != null) {
+            return;
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "etpbic-sync-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::poll, POLL_SECONDS, POLL_SECONDS, TimeUnit.SECONDS);
+        SyncLoadMonitor.getInstance().start();
+    }
+
+    void poll() {
+        SyncRunCoordinator coordinator = SyncRunCoordinator.getInstance();
+        String nodeName = SyncLeaseManager.getInstance().getNodeName();
+        try {
+            if (polls++ % PURGE_EVERY_POLLS == 0) {
+                SyncWorkUnits.purge();
+            }
+            SyncRunRegistry.getInstance().stopCancelled();
+            OBDal.getInstance().commitAndClose();
+            for (Resync resync : StaleDatasets.claim()) {
+                runResync(coordinator, resync);
+            }
+            int maxLocalRuns = getMaxLocalRuns();
+            while (coordinator.runningCount() < maxLocalRuns) {
+                WorkUnit unit = SyncWorkUnits.claim(nodeName);
+                if (unit == null) {
+                    break;
+                }
+                SyncLeaseManager.getInstance().startHeartbeat();
+                runUnit(coordinator, unit, nodeName);
+            }
+        } catch (Exception e) {
+            log.error("Error polling sync work units: {}", e.getMessage(), e);
+            OBDal.getInstance().rollbackAndClose();
+        }
+    }
+
+    private void runUnit(SyncRunCoordinator coordinator, WorkUnit unit, String nodeName) {
+        try {
+            CallPythonScript script = new CallPythonScript();
+            PreparedRun run = prepareRun(script, unit.userId, unit.clientId, unit.orgId);
+            // if a later trigger replaces this run, that run covers the unit
+            coordinator.submit(run.key, () -> script.scheduleScripts(run, unit.clientId, true)
+                    .whenComplete((result, error) -> SyncWorkUnits.complete(unit, nodeName, error == null)),
+                    () -> SyncWorkUnits.complete(unit, nodeName, true));
+        } catch (Exception e) {
+            log.error("Error running sync work unit of organization {}: {}", unit.orgId, e.getMessage(), e);
+            OBDal.getInstance().rollbackAndClose();
+            SyncWorkUnits.complete(unit, nodeName, false);
+        }
+    }
+
+    /**
+     * Runs the script of an organization with only the datasets of its edited queries. The re-sync
+     * is small, so it starts right away instead of waiting for capacity, but never replaces or
+     * waits behind another run of the organization.
+     */
+    private void runResync(SyncRunCoordinator coordinator, Resync resync) {
+        try {
+            CallPythonScript script = new CallPythonScript();
+            PreparedRun run = prepareRun(script, resync.userId, resync.clientId, resync.orgId)
+                    .only(resync.datasets);
+            if (!coordinator.submitIfIdle(run.key, () -> script.scheduleScripts(run, resync.clientId, false))) {
+                log.debug("Sync run of organization {} in progress, re-syncing {} later", resync.orgId,
+                        resync.datasets);
+                StaleDatasets.restore(resync);
+            }
+        } catch (Exception e) {
+            // the datasets are published by the next full run of the organization
+            log.error("Error re-syncing datasets {} of organization {}: {}", resync.datasets, resync.orgId,
+                    e.getMessage(), e);
+            OBDal.getInstance().rollbackAndClose();
+        }
+    }
+
+    /**
+     * Prepares the run of an organization as the user that requested it, with a role of the user
+     * in the client. The context is set on the poller thread only while the run is prepared.
+     */
+    static PreparedRun prepareRun(CallPythonScript script, String userId, String clientId, String orgId)
+            throws SQLException {
+        String roleId = getUserRole(userId, clientId);
+        if (roleId == null) {
+            throw new OBException("User " + userId + " has no active role in client " + clientId);
+        }
+        OBContext.setOBContext(userId, roleId, clientId, orgId);
+        OBContext.setAdminMode(true);
+        try {
+            Organization org = OBDal.getInstance().get(Organization.class, orgId);
+            Client client = OBDal.getInstance().get(Client.class, clientId);
+            return script.prepareRun(org, client, userId, null);
+        } finally {
+            OBContext.restorePreviousMode();
+            OBDal.getInstance().commitAndClose();
+            OBContext.setOBContext((OBContext) null);
+        }
+    }
+
+    /** Returns the default role of the user if it belongs to the client, or else its first role. */
+    private static String getUserRole(String userId, String clientId) throws SQLException {
+        try (PreparedStatement ps = OBDal.getInstance().getConnection(true).prepareStatement(USER_ROLE_SQL)) {
+            ps.setString(1, userId);
+            ps.setString(2, clientId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    private static int getMaxLocalRuns() {
+        return NumberUtils.toInt(OBPropertiesProvider.getInstance().getOpenbravoProperties()
+                .getProperty(MAX_LOCAL_RUNS_PROPERTY), DEFAULT_MAX_LOCAL_RUNS);
+    }
+}
@@ -1,13 +1,39 @@
 import sys # get Java parameters
 import subprocess # bash commands
 import psycopg2 # connect to db
+from psycopg2 import sql # compose queries
 import os # handle dirs
-import pandas as pd # merge dataframes
+import csv # write datasets
+from operator import itemgetter # project rows
 import logging # log
 from logging.handlers import TimedRotatingFileHandler
 import requests # make get req
 import shutil # rm output dir
-from datetime import datetime
+import gzip # compress log chunks
+import base64 # encode log chunks
+import time # pace fetches
+import pickle # spill merges to disk
+import tempfile # spill merges to disk
+import json # cache destination checks
+import queue # pipeline uploads
+import threading # pipeline uploads
+import shlex # quote file names
+from contextlib import ExitStack # close csv files
+from datetime import date, datetime, timezone
+from decimal import Decimal # push numeric values
+from email.utils import parsedate_to_datetime # read Retry-After dates
+from urllib.parse import quote, unquote_plus # push dataset names, S3 keys, dataset names of the arguments
+from concurrent.futures import ThreadPoolExecutor # push requests in flight
+import io # push csv batches
+import random # jitter push retries
+import multiprocessing # extract key ranges in parallel
+import hashlib # sign S3 requests, skip unchanged objects
+import re # find the references to intermediate queries
+import hmac # sign S3 requests
+from urllib.parse import urlsplit # S3 endpoint
+from xml.etree import ElementTree # S3 responses
+import signal # cancel the run
+import uuid # id of the BI log entry of a run without id
 
 argsStr = sys.argv[1]
 args = argsStr.split(",")
@@ -30,6 +56,15 @@ BBDD_USER = args[14]
 BBDD_PASSWORD = args[15]
 PRIVATE_KEY_PATH = args[16]
 URL = args[17]
+# optional arguments, sent as key=value after the positional ones
+EXTRA_ARGS = dict(arg.split('=', 1) for arg in args[18:] if '=' in arg)
+RUN_ID = EXTRA_ARGS.get('run_id')
+DRY_RUN = EXTRA_ARGS.get('dry_run') == 'Y' # estimate the datasets instead of extracting them, see preview()
+STATUS_WEBHOOK = EXTRA_ARGS.get('status_webhook')
+FETCH_SIZE = int(EXTRA_ARGS.get('fetch_size') or 10000) # rows fetched in each batch
+MAX_REPLICA_LAG = float(EXTRA_ARGS.get('max_replica_lag') or 30) # seconds
+# host:port of the databases to try, in order, if BBDD_HOST is not available
+FAILOVER = [endpoint.rsplit(':', 1) for endpoint in EXTRA_ARGS.get('failover', '').split(';') if ':' in endpoint]
 CLIENT_PREFIX = client[:3]
 CLIENT_FILTER = 'ad_client_id as clientid'
 ORG_FILTER = 'ad_org_id as orgid'
@@ -46,6 +81,7 @@ CURRENT_DIR = os.getcwd()
 FOLDER_DIR = os.path.join(CURRENT_DIR, f'{client}');
 OUTPUT_DIR = os.path.join(FOLDER_DIR, f'{org_name}_output')
 TMP_DIR = os.path.join(FOLDER_DIR, f'{org_name}_tmp')
+CHECKPOINT_DIR = os.path.join(FOLDER_DIR, f'{org_name}_checkpoints') # paged exports in progress, kept between runs
 LOG_DIR = os.path.join(FOLDER_DIR, f'{org_name}_logs')
 LOG_FILE = os.path.join(LOG_DIR, f'syncScript.log.{datetime.now()}')
 
@@ -55,21 +91,1857 @@ os.makedirs(LOG_DIR, exist_ok=True)
 logging.basicConfig(filename=LOG_FILE, format='%(asctime)s %(message)s', level=logging.DEBUG)
 LOGGER = logging.getLogger()
 
-# set output/ directory
-if not os.path.exists(OUTPUT_DIR):
-    LOGGER.debug(f"creating {org_name}_output directory")
-    os.makedirs(OUTPUT_DIR)
+# set output/ directory, a dry run doesn't write files and must not touch the ones of a real run
+if not DRY_RUN:
+    if not os.path.exists(OUTPUT_DIR):
+        LOGGER.debug(f"creating {org_name}_output directory")
+        os.makedirs(OUTPUT_DIR)
 
-LOGGER.debug(f"creating {org_name}_tmp directory")
-shutil.rmtree(TMP_DIR, ignore_errors=True)
-os.makedirs(TMP_DIR)
+    LOGGER.debug(f"creating {org_name}_tmp directory")
+    shutil.rmtree(TMP_DIR, ignore_errors=True)
+    os.makedirs(TMP_DIR)
+    os.makedirs(CHECKPOINT_DIR, exist_ok=True)
 
 WEBHOOKS_URL = URL + "/webhooks/"
+LOG_CHUNK_SIZE = 256 * 1024 # max bytes of log sent in each request
+LOG_STATE = {'id': RUN_ID or uuid.uuid4().hex.upper(), 'offset': 0} # the BI log entry has the id of the run
+RUN_EVENT_TIMEOUT = 10 # seconds, progress events must never slow down the sync
+APPLICATION_NAME = 'etpbic-sync' # tells the sync connections apart from the users' ones
+LAG_CHECK_SECONDS = 10 # seconds between checks of the lag of the standby
+SLOW_BATCH_FACTOR = 2 # a batch is slow if it takes this times the usual time
+PACING_STEP = 0.05 # seconds of delay removed per batch while the database is not under pressure
+MAX_PACING_DELAY = 5 # seconds
+CURSORS = {'opened': 0}
+ORGS = [] # organizations of the run, see org_closure(), known once the queries are loaded
+MERGE_MEMORY_BYTES = int(EXTRA_ARGS.get('merge_memory_mb') or 256) * 1024 * 1024 # custom rows kept in memory by a merge
+MERGE_PARTITIONS = 64 # partitions of a merge spilled to disk
+TEXT_TYPES = {19, 25, 1042, 1043} # oids of name, text, char and varchar, keys merged as text
+NUMBER_TYPES = {20, 21, 23, 700, 701, 1700} # oids of the integer, float and numeric types
+SESSIONS = [] # connections of the run other than CONN, whose statements are cancelled with it
+OUTPUT_BUFFER = 1024 * 1024 # bytes buffered by each csv file
+DICTIONARY_MAX_RATIO = 0.5 # distinct strings per row of a column under which its strings are shared
+DICTIONARY_MAX_SIZE = 100000 # entries of the dictionary of a column
+PARALLEL_WORKERS = int(EXTRA_ARGS.get('parallel_workers') or 1) # connections extracting a large query in key ranges
+PARALLEL_MIN_ROWS = int(EXTRA_ARGS.get('parallel_min_rows') or 1000000) # estimated rows of a query extracted in ranges
+RANGES = {'pool': None} # workers extracting key ranges, see start_ranges()
+RANGE_STOP_SECONDS = 5 # seconds the workers of a stopped dataset have to stop by themselves
+CHECKPOINT_TTL = 24 * 3600 # seconds a paged export can be resumed after it failed
+DESTINATION_CACHE_TTL = int(EXTRA_ARGS.get('destination_cache_ttl') or 600) # seconds the checks of a server are valid
+DESTINATION_CACHE_FILE = os.path.join(CURRENT_DIR, '.etpbic_destinations.json')
+PREVIEW_CACHE_TTL = int(EXTRA_ARGS.get('preview_cache_ttl') or 3600) # seconds the estimates of a query are reused
+PREVIEW_CACHE_FILE = os.path.join(CURRENT_DIR, '.etpbic_previews.json')
+PREVIEW_CONCURRENCY = 4 # queries estimated at the same time, each one with its own connection
+PREVIEW_COUNT_TIMEOUT = 300 # seconds counting the rows of a query can take, without a query timeout
+PREVIEW_SAMPLE_ROWS = 1000 # rows fetched to measure the size of the rows of a query
+PREVIEW_LINE = 'ETPBIC_PREVIEW' # prefix of the lines of the report of a dry run
+DESTINATION_KEY = f'{USER}@{IP}:{PORT}'
+DESTINATION_DIR = f'{PATH}{client}/{org_name}'
+VERSIONS_DIR = f'{PATH}{client}/.{org_name}_versions' # files uploaded by each run, DESTINATION_DIR links to the published one
+STAGING_DIR = f"{VERSIONS_DIR}/{RUN_ID or datetime.now().strftime('%Y%m%dT%H%M%S')}" # files uploaded by the run
+PUSH_URL = EXTRA_ARGS.get('push_url') # HTTP push destination, instead of the server of the files
+PUSH_TOKEN = EXTRA_ARGS.get('push_token')
+PUSH_FORMAT = (EXTRA_ARGS.get('push_format') or 'json').lower() # json or csv
+PUSH_BATCH_ROWS = int(EXTRA_ARGS.get('push_batch_rows') or 10000)
+PUSH_CONCURRENCY = int(EXTRA_ARGS.get('push_concurrency') or 4) # requests in flight
+PUSHER = None
+S3_BUCKET = EXTRA_ARGS.get('s3_bucket') # S3 compatible object storage destination, instead of the server of the files
+S3_REGION = EXTRA_ARGS.get('s3_region') or 'us-east-1'
+S3_ENDPOINT = EXTRA_ARGS.get('s3_endpoint') or f'https://s3.{S3_REGION}.amazonaws.com'
+S3_PREFIX = (EXTRA_ARGS.get('s3_prefix') or f'{client}/{org_name}').strip('/') + '/'
+S3_ACCESS_KEY = EXTRA_ARGS.get('s3_access_key')
+S3_SECRET_KEY = EXTRA_ARGS.get('s3_secret_key')
+S3_PART_SIZE = max(5, int(EXTRA_ARGS.get('s3_part_size_mb') or 16)) * 1024 * 1024 # 5MB is the minimum of S3
+S3_CONCURRENCY = int(EXTRA_ARGS.get('s3_concurrency') or 4) # parts in flight
+S3_MANIFEST = 'manifest.json'
+STORE = None
+REQUEST_MAX_ATTEMPTS = 6 # of the requests to HTTP and S3 destinations
+REQUEST_BASE_BACKOFF = 0.5 # seconds
+REQUEST_MAX_BACKOFF = 60 # seconds
+REQUEST_TIMEOUT = 120 # seconds
+UPLOAD_QUEUE_SIZE = int(EXTRA_ARGS.get('upload_queue') or 2) # datasets written and waiting to be uploaded
+UPLOAD_QUEUE_BYTES = int(EXTRA_ARGS.get('upload_queue_mb') or 1024) * 1024 * 1024 # bytes of the datasets waiting to be uploaded
+QUERY_TIMEOUT = int(EXTRA_ARGS.get('query_timeout') or 0) # seconds the query of a dataset can run, 0 for no limit
+RUN_TIMEOUT = int(EXTRA_ARGS.get('run_timeout') or 0) # seconds the whole run can last, 0 for no limit
+RUN_DEADLINE = time.monotonic() + RUN_TIMEOUT if RUN_TIMEOUT else None
+# lists of dataset names, each one URL encoded
+DEFERRED = [unquote_plus(name) for name in EXTRA_ARGS.get('deferred', '').split(';') if name] # timed out recently, extracted last
+SKIPPED = [unquote_plus(name) for name in EXTRA_ARGS.get('skip', '').split(';') if name] # keep timing out, not extracted
+ONLY = [unquote_plus(name) for name in EXTRA_ARGS.get('only', '').split(';') if name] # edited queries, the only ones re-synced
+IDLE_TRANSACTION_TIMEOUT = 600 # seconds a connection of the script can be idle in a transaction
+CONNECTION_CHECK_INTERVAL = 10 # seconds between the checks of the server that the script is still there
+# why the run or the dataset in progress must stop, the deadline of the dataset, and whether the
+# extraction already knows it
+STOP = {'reason': None, 'deadline': None, 'handled': False, 'watcher': None}
+# the ssh connections to a server are shared for a minute, by the checks, rsync and the next runs
+SSH_OPTIONS = (f'{"-i" if PRIVATE_KEY_PATH != "" else ""} {PRIVATE_KEY_PATH} -o StrictHostKeyChecking=no'
+               ' -o ControlMaster=auto -o ControlPath=/tmp/etpbic-ssh-%C -o ControlPersist=60')
+PACING = {'delay': 0.0, 'usual': None, 'lag': 0.0, 'lag_checked': 0.0, 'paused': 0.0}
+INTERMEDIATE_REFERENCE = re.compile(r'\{\{\s*([^{}]+?)\s*\}\}') # {{Name}} of an intermediate query in another query
+# the text and the materialized view of the intermediate queries of the run, the tables or common
+# table expressions with the results computed, and whether temporary tables can be created
+INTERMEDIATES = {'queries': {}, 'views': {}, 'results': {}, 'nested': {}, 'temporary': set(), 'tables': 0,
+                 'can_create': None}
 
+
+def post_log_chunk(data, logtype):
+    # send a gzip compressed piece of the log, the first one creates the BI log entry. A chunk whose
+    # response is lost is sent again by the next call: the entry is created with the id chosen here,
+    # and the chunk is only appended if the entry holds the log up to its offset, so it is never
+    # created nor appended twice
+    payload = {
+        'organization': AD_ORG_ID,
+        'client': AD_CLIENT_ID,
+        'logtype': logtype,
+        'rule': RULE_ID,
+        'logid': LOG_STATE['id'],
+        'offset': str(LOG_STATE['offset']),
+        'chunk': base64.b64encode(gzip.compress(data)).decode('ascii')
+    }
+    response = requests.post(WEBHOOKS_URL, params={'name': WEBHOOK_NAME, 'apikey': WEBHOOK_APIKEY},
+                             json=payload, timeout=60)
+    response.raise_for_status()
+    LOG_STATE['id'] = response.json().get('logid', LOG_STATE['id'])
+
+
+def line_end(data):
+    # the bytes of data up to its last line break, the rest is a line still being written. A line
+    # longer than a chunk is cut before its last character, which may not be complete
+    end = data.rfind(b'\n') + 1
+    if end or len(data) < LOG_CHUNK_SIZE:
+        return end
+    end = len(data)
+    while end > 1 and data[end - 1] & 0xC0 == 0x80:
+        end -= 1
+    return end - 1 if data[end - 1] >= 0xC0 else end
+
+
+def ship_log(logtype='Running'):
+    # send the log lines written since the last call, only the last chunk carries the final log type.
+    # Chunks end at a line break, so the end of a line still being written is sent in the next call,
+    # except by the last call of the run, which sends everything
+    final = logtype != 'Running'
+    try:
+        with open(LOG_FILE, 'rb') as log:
+            while True:
+                log.seek(LOG_STATE['offset'])
+                data = log.read(LOG_CHUNK_SIZE)
+                last = not log.read(1)
+                size = len(data) if final and last else line_end(data)
+                if size or (final and last):
+                    post_log_chunk(data[:size], logtype if final and last else 'Running')
+                    LOG_STATE['offset'] += size
+                if last or not size:
+                    break
+    except (requests.RequestException, ValueError) as e:
+        print(f"Could not send logs to BI Logs window: {e}", file=sys.stderr)
+
+
+def post_run_event(phase, status=None, dataset=None, index=None, count=None, rows=None, elapsed=None):
+    # report the progress of the run to the status webhook, if configured
+    if not (RUN_ID and STATUS_WEBHOOK):
+        return
+    event = {'name': STATUS_WEBHOOK, 'apikey': WEBHOOK_APIKEY, 'runid': RUN_ID, 'phase': phase}
+    for key, value in (('status', status), ('dataset', dataset), ('index', index), ('count', count), ('rows', rows),
+                       ('elapsed', elapsed)):
+        if value is not None:
+            event[key] = value
+    try:
+        requests.get(WEBHOOKS_URL, params=event, timeout=RUN_EVENT_TIMEOUT)
+    except requests.RequestException as e:
+        print(f"Could not send run event {phase}: {e}", file=sys.stderr)
+
+
+class Stopped(Exception):
+    # the run was cancelled or a timeout expired, the reason is the argument
+    pass
+
+
+def cancel_statement():
+    # a cancel request is the same as pg_cancel_backend, sent through the connection itself, which
+    # may be to a replica
+    for conn in [globals().get('CONN')] + list(SESSIONS):
+        if conn is not None and not conn.closed:
+            try:
+                conn.cancel()
+            except psycopg2.Error as e:
+                LOGGER.debug(f"the statement in progress could not be cancelled: {e}")
+
+
+def stop(reason):
+    if not STOP['reason']:
+        LOGGER.debug(f"stopping: {reason}")
+    STOP['reason'] = reason
+    cancel_statement()
+
+
+def watch(exit_on_cancel):
+    # runs in its own thread, as the main thread may be blocked in the database for a long time and
+    # python only handles the signals between its statements. SIGTERM cancels the run, and the
+    # deadlines stop the run or the dataset. The statement in progress is cancelled every second
+    # until the extraction raises Stopped, in case the cancel arrived between two statements
+    while True:
+        signum = signal.sigtimedwait([signal.SIGTERM], 1)
+        deadline = STOP['deadline']
+        if signum:
+            if exit_on_cancel:
+                # a worker of RANGES, terminated by stop_ranges() or the end of the run
+                cancel_statement()
+                os._exit(1)
+            stop('cancelled')
+        elif not STOP['reason'] and RUN_DEADLINE and time.monotonic() >= RUN_DEADLINE:
+            stop('run-timeout')
+        elif not STOP['reason'] and deadline and time.monotonic() >= deadline:
+            stop('query-timeout')
+        elif STOP['reason'] and not STOP['handled']:
+            stop(STOP['reason'])
+
+
+def start_watcher(exit_on_cancel=False):
+    # once per process: the workers of RANGES start their own, exiting when they are
+    # terminated. SIGTERM must be blocked before any other thread starts, they inherit the mask
+    if STOP['watcher'] == os.getpid():
+        return
+    STOP['watcher'] = os.getpid()
+    signal.pthread_sigmask(signal.SIG_BLOCK, {signal.SIGTERM})
+    threading.Thread(target=watch, args=(exit_on_cancel,), name='watcher', daemon=True).start()
+
+
+def check_stop():
+    # raise Stopped once the run is cancelled or a timeout expires
+    if STOP['reason']:
+        STOP['handled'] = True
+        raise Stopped(STOP['reason'])
+
+
+def end_query():
+    # the deadline of a dataset that ended, even if it expired right after, doesn't stop the next one
+    STOP['deadline'] = None
+    if STOP['reason'] == 'query-timeout':
+        STOP.update(reason=None, handled=False)
+
+
+def stop_reason():
+    # why a dataset stopped: known by the watcher, or a statement_timeout of the server
+    if STOP['reason']:
+        return STOP['reason']
+    return 'run-timeout' if RUN_DEADLINE and time.monotonic() >= RUN_DEADLINE - 1 else 'query-timeout'
+
+
+def limit_statements(conn):
+    # the server cancels the statements still running at the deadline of the dataset or the run,
+    # even if the script is not there to do it
+    deadlines = [deadline for deadline in (STOP['deadline'], RUN_DEADLINE) if deadline]
+    timeout = max(1, int((min(deadlines) - time.monotonic()) * 1000)) if deadlines else 0
+    with conn.cursor() as cur:
+        cur.execute("SELECT set_config('statement_timeout', %s, false)", (str(timeout),))
+    conn.commit()
+
+
+def configure_session(conn):
+    # the server ends the sessions of the script left idle in a transaction and, from PostgreSQL 14,
+    # cancels the statements of a script that is gone
+    with conn.cursor() as cur:
+        cur.execute("SELECT set_config('idle_in_transaction_session_timeout', %s, false)",
+                    (str(IDLE_TRANSACTION_TIMEOUT * 1000),))
+        if conn.server_version >= 140000:
+            cur.execute("SELECT set_config('client_connection_check_interval', %s, false)",
+                        (str(CONNECTION_CHECK_INTERVAL * 1000),))
+    conn.commit()
+    if ORGS:
+        bind_filter(conn)
+
+
+def bind_filter(conn):
+    # the client and the organizations of the run, read by filter_query() from the settings of the
+    # session. Committed, so a rolled back transaction doesn't undo them
+    with conn.cursor() as cur:
+        cur.execute("SELECT set_config('etpbic.client_id', %s, false), set_config('etpbic.org_ids', %s, false)",
+                    (AD_CLIENT_ID, ','.join(ORGS)))
+    conn.commit()
+
+
+def replica_lag():
+    # seconds the standby is behind the primary, 0 when connected to the primary or fully replayed
+    with CONN.cursor() as cur:
+        cur.execute("""
+                    SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0
+                    ELSE COALESCE(extract(epoch FROM clock_timestamp() - pg_last_xact_replay_timestamp()), 0) END""")
+        return float(cur.fetchone()[0])
+
+
+def pace(batch_seconds):
+    # AIMD on the fetch rate: the delay between transactions doubles while the standby lags or the
+    # batches slow down, and shrinks step by step otherwise. It is waited by pause(), never within a
+    # transaction: a snapshot kept open on a standby holds back the vacuum of the primary, or gets
+    # cancelled by the replay
+    now = time.monotonic()
+    if now - PACING['lag_checked'] >= LAG_CHECK_SECONDS:
+        PACING['lag'] = replica_lag()
+        PACING['lag_checked'] = now
+    usual = PACING['usual']
+    if PACING['lag'] > MAX_REPLICA_LAG or (usual and batch_seconds > SLOW_BATCH_FACTOR * usual):
+        PACING['delay'] = min(MAX_PACING_DELAY, max(PACING_STEP, PACING['delay'] * 2))
+        LOGGER.debug(f"database under pressure ({PACING['lag']:.1f}s of lag), pausing {PACING['delay']:.2f}s between transactions")
+    else:
+        PACING['delay'] = max(0.0, PACING['delay'] - PACING_STEP)
+    PACING['usual'] = batch_seconds if usual is None else usual + 0.2 * (batch_seconds - usual)
+
+
+def pause():
+    # wait the delay set by pace(), once the transaction of the rows fetched is over. The queries
+    # extracted in keyset pages wait between pages, the rest between datasets
+    if PACING['delay']:
+        time.sleep(PACING['delay'])
+        PACING['paused'] += PACING['delay']
+
+
+def query_description(query, conn=None):
+    # the description of the columns of a query, with their names and the oids of their types,
+    # without fetching its rows
+    with (conn or CONN).cursor() as cur:
+        cur.execute(sql.SQL("SELECT * FROM ({}) AS q LIMIT 0").format(sql.SQL(query)))
+        return cur.description
+
+
+def query_columns(query):
+    # names of the columns of a query, without fetching its rows
+    return [desc[0] for desc in query_description(query)]
+
+
+def fetch_batches(query, conn=None):
+    # fetch the rows of a query in batches through a server side cursor, measuring the database load.
+    # Yields the columns and the rows of each batch, and at least one batch even if it's empty
+    PACING['usual'] = None
+    CURSORS['opened'] += 1
+    with (conn or CONN).cursor(name=f"etpbic_fetch_{CURSORS['opened']}") as cur:
+        check_stop()
+        cur.execute(query)
+        first = True
+        while True:
+            start = time.monotonic()
+            check_stop()
+            batch = cur.fetchmany(FETCH_SIZE)
+            if batch or first:
+                yield [desc[0] for desc in cur.description], batch
+            first = False
+            if not batch:
+                break
+            pace(time.monotonic() - start)
+
+
+def fetch_prepared(name, params):
+    # the rows of a prepared statement, in batches. A server side cursor can't be declared over a
+    # prepared statement, so its whole result is received at once: only for bounded results
+    with CONN.cursor() as cur:
+        check_stop()
+        start = time.monotonic()
+        cur.execute(sql.SQL("EXECUTE {}({})").format(
+            sql.Identifier(name), sql.SQL(', ').join(sql.Literal(param) for param in params)))
+        pace(time.monotonic() - start)
+        while True:
+            batch = cur.fetchmany(FETCH_SIZE)
+            if not batch:
+                break
+            yield batch
+
+
+def filter_query(query):
+    # the rows of a query in the client and the organizations of the run. The values are read from
+    # the settings of the session, see bind_filter(), so the text of a query is the same for every
+    # client and organization, and its keyset pages can be prepared
+    return sql.SQL("SELECT * FROM ({query}) AS q WHERE q.clientid = current_setting('etpbic.client_id')"
+                   " AND q.orgid = ANY(string_to_array(current_setting('etpbic.org_ids'), ','))").format(
+        query=sql.SQL(query)).as_string(CONN)
+
+
+def org_closure():
+    # the organization of the run, the ones below it in the tree and the shared organization, found
+    # once instead of checking the tree for every row of every query
+    with CONN.cursor() as cur:
+        cur.execute("SELECT ad_org_id FROM ad_org WHERE ad_client_id IN (%s, '0')"
+                    " AND ad_isorgincluded(ad_org_id, %s, %s) <> -1", (AD_CLIENT_ID, AD_ORG_ID, AD_CLIENT_ID))
+        return sorted({org_id for org_id, in cur.fetchall()} | {'0'})
+
+
+def intermediate_order(query):
+    # the intermediate queries a query needs, directly or through other intermediate queries, each one
+    # after the ones it references. Fails if a name is not found or the references form a cycle
+    order = []
+    path = []
+
+    def visit(name):
+        if name in order:
+            return
+        if name in path:
+            raise ValueError(f"intermediate queries reference each other: {' -> '.join(path + [name])}")
+        if name not in INTERMEDIATES['queries']:
+            raise ValueError(f"intermediate query '{name}' not found")
+        path.append(name)
+        for reference in INTERMEDIATE_REFERENCE.findall(INTERMEDIATES['queries'][name]):
+            visit(reference)
+        path.pop()
+        order.append(name)
+
+    for reference in INTERMEDIATE_REFERENCE.findall(query):
+        visit(reference)
+    return order
+
+
+def read_write(statement):
+    # runs a statement that writes, in a transaction of its own. The rest of the transactions of the
+    # run are read only
+    CONN.commit()
+    CONN.readonly = False
+    try:
+        with CONN.cursor() as cur:
+            cur.execute(statement)
+        CONN.commit()
+    except Exception:
+        CONN.rollback()
+        raise
+    finally:
+        CONN.readonly = True
+
+
+def can_create_tables():
+    # temporary tables can't be created in a standby, nor without the TEMPORARY privilege
+    if INTERMEDIATES['can_create'] is None:
+        with CONN.cursor() as cur:
+            cur.execute("SELECT NOT pg_is_in_recovery() AND has_database_privilege(current_database(), 'TEMPORARY')")
+            INTERMEDIATES['can_create'] = cur.fetchone()[0]
+        CONN.commit()
+        if not INTERMEDIATES['can_create']:
+            LOGGER.debug("temporary tables not available, intermediate queries are nested in the queries that use them")
+    return INTERMEDIATES['can_create']
+
+
+def compute_intermediate(name):
+    # the table, view or common table expression with the result of an intermediate query, whose own
+    # references are already computed
+    if INTERMEDIATES['views'].get(name):
+        LOGGER.debug(f"intermediate query '{name}' is materialized, reading it from {INTERMEDIATES['views'][name]}")
+        return sql.Identifier(INTERMEDIATES['views'][name]).as_string(CONN)
+    INTERMEDIATES['tables'] += 1
+    table = sql.Identifier(f"etpbic_intermediate_{INTERMEDIATES['tables']}")
+    body = subquery(INTERMEDIATE_REFERENCE.sub(lambda m: INTERMEDIATES['results'][m.group(1)],
+                                               INTERMEDIATES['queries'][name]))
+    if not can_create_tables():
+        INTERMEDIATES['nested'][name] = body
+        return table.as_string(CONN)
+    LOGGER.debug(f"computing intermediate query '{name}'")
+    start = time.monotonic()
+    # the table is created without running the query, and filled by a read only transaction like the
+    # rest of the queries of the run. A table left empty by a timeout is replaced by the next attempt
+    read_write(sql.SQL("CREATE TEMPORARY TABLE {} AS SELECT * FROM ({}) AS q WITH NO DATA").format(table, body))
+    with CONN.cursor() as cur:
+        check_stop()
+        cur.execute(sql.SQL("INSERT INTO {} SELECT * FROM ({}) AS q").format(table, body))
+        rows = cur.rowcount
+    CONN.commit()
+    read_write(sql.SQL("ANALYZE {}").format(table))
+    LOGGER.debug(f"intermediate query '{name}' computed, {rows} rows in {time.monotonic() - start:.1f}s")
+    INTERMEDIATES['temporary'].add(name)
+    return table.as_string(CONN)
+
+
+def resolve_intermediates(query):
+    # the query reading the results of the intermediate queries it references, computed the first
+    # time a query of the run needs them. Without temporary tables, they are nested in the query as
+    # common table expressions, computed by each query that uses them
+    order = intermediate_order(query)
+    for name in order:
+        if name not in INTERMEDIATES['results']:
+            INTERMEDIATES['results'][name] = compute_intermediate(name)
+    resolved = INTERMEDIATE_REFERENCE.sub(lambda m: INTERMEDIATES['results'][m.group(1)], query)
+    nested = [sql.SQL("{} AS ({})").format(sql.SQL(INTERMEDIATES['results'][name]), INTERMEDIATES['nested'][name])
+              for name in order if name in INTERMEDIATES['nested']]
+    if not nested:
+        return resolved
+    # merged with the common table expressions of the query, if it has them
+    head = re.match(r'\s*WITH(\s+RECURSIVE)?\s', resolved, re.IGNORECASE)
+    return sql.SQL("WITH{} {}{}").format(
+        sql.SQL(' RECURSIVE' if head and head.group(1) else ''), sql.SQL(', ').join(nested),
+        sql.SQL(', ' + resolved[head.end():] if head else ' ' + resolved)).as_string(CONN)
+
+
+def uses_temporary_tables(query):
+    return any(name in INTERMEDIATES['temporary'] for name in intermediate_order(query))
+
+
+def projection(positions):
+    # a function taking the values at the given positions of a row, all of them if None
+    if positions is None:
+        return None
+    if len(positions) == 1:
+        return lambda row: (row[positions[0]],)
+    return itemgetter(*positions)
+
+
+class CsvOutputs:
+    # csv files written together, batch by batch, each one through its own buffered file and with
+    # its own projection of the rows: the columns at the given positions, all if None, of the rows
+    # accepted by its filter, all if None. The first file is the one whose rows are counted.
+    # Rows go straight to the csv writer: values are written as they are fetched, None as empty,
+    # and only the values with the separator, quotes or line breaks are quoted. The writer still
+    # turns every value into a string, it saves building a data frame per batch, not the text of
+    # the cells: see src-test/python/benchmark_csv_outputs.py. With append, local files are
+    # continued from their end, without writing the header again
+
+    def __init__(self, columns, outputs, directory=TMP_DIR, append=False):
+        self.files = []
+        self.outputs = []
+        for file_name, positions, accept in outputs:
+            if STORE:
+                file = STORE.open(file_name)
+            else:
+                file = open(os.path.join(directory, file_name), 'a' if append else 'w', encoding='utf-8', newline='',
+                            buffering=OUTPUT_BUFFER)
+            self.files.append(file)
+            writer = csv.writer(file, delimiter=csv_separator, lineterminator=os.linesep)
+            project = projection(positions)
+            header = columns if project is None else list(project(columns))
+            if not append:
+                writer.writerow(header)
+            self.outputs.append((file_name, header, writer, project, accept))
+        self.rows = 0
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, *exc_info):
+        for file in self.files:
+            if exc_info[0] and STORE:
+                file.abort()
+            else:
+                file.close()
+        if PUSHER and not exc_info[0]:
+            for file_name, _, _, _, _ in self.outputs:
+                PUSHER.flush(file_name)
+
+    def flush(self):
+        # write the local files to disk, returns the size of the first one
+        for file in self.files:
+            file.flush()
+            os.fsync(file.fileno())
+        return self.files[0].tell()
+
+    def write(self, batch):
+        for position, (file_name, header, writer, project, accept) in enumerate(self.outputs):
+            rows = batch if accept is None else [row for row in batch if accept(row)]
+            if position == 0:
+                self.rows += len(rows)
+            if project is not None:
+                rows = list(map(project, rows))
+            writer.writerows(rows)
+            if PUSHER:
+                PUSHER.send(file_name, header, rows)
+
+
+def export_query(query, outputs):
+    # stream the rows of a query into csv files, returns the rows of the first one
+    batches = fetch_batches(query)
+    columns, batch = next(batches)
+    with CsvOutputs(columns, outputs) as writer:
+        writer.write(batch)
+        for _, batch in batches:
+            writer.write(batch)
+    return writer.rows
+
+
+def checkpoint_path(file_name):
+    return os.path.join(CHECKPOINT_DIR, file_name + '.checkpoint')
+
+
+def load_checkpoint(file_name, query):
+    # the progress of the last paged export of a query that didn't finish, None if there is none
+    # or it was of another query, too old, or its file doesn't have the rows it recorded
+    try:
+        with open(checkpoint_path(file_name), 'rb') as file:
+            checkpoint = pickle.load(file)
+    except (OSError, pickle.UnpicklingError, EOFError):
+        return None
+    data_file = os.path.join(CHECKPOINT_DIR, file_name)
+    if (checkpoint['query'] != hashlib.sha256(query.encode('utf-8')).hexdigest()
+            or time.time() - checkpoint['saved'] > CHECKPOINT_TTL
+            or not os.path.exists(data_file) or os.path.getsize(data_file) < checkpoint['size']):
+        return None
+    # the rows written after the checkpoint are fetched again
+    with open(data_file, 'r+b') as file:
+        file.truncate(checkpoint['size'])
+    return checkpoint
+
+
+def save_checkpoint(file_name, query, last, rows, size):
+    fd, path = tempfile.mkstemp(dir=CHECKPOINT_DIR)
+    with os.fdopen(fd, 'wb') as file:
+        pickle.dump({'query': hashlib.sha256(query.encode('utf-8')).hexdigest(), 'last': last, 'rows': rows,
+                     'size': size, 'saved': time.time()}, file)
+    os.replace(path, checkpoint_path(file_name))
+
+
+def keyset_pages(query, page):
+    # whether the pages of a query read only their own rows: its first column must read an indexed
+    # column of a table, the planner must apply the lower bound of a page to the scan of the table
+    # and return the rows in the order of the index, without sorting them. Otherwise each page would
+    # run the whole query again, and the export would grow with the square of the rows
+    key = range_key(query)
+    if not key or not key['histogram']:
+        return False
+    nodes = plan_nodes(page(sql.Literal(key['histogram'][len(key['histogram']) // 2])))
+    return key_condition(nodes, key) and not any(node['Node Type'] in ('Sort', 'Incremental Sort') for node in nodes)
+
+
+def export_pages(file_name, query, page_size):
+    # stream the rows of a query into a csv file by keyset pages on its first column, which must be
+    # unique: each page takes the next page_size rows after the last key written, in its own short
+    # transaction, so no statement or snapshot lasts the whole extraction. Rows inserted or changed
+    # while the pages are read are included if their key is after the last page, never twice.
+    # The file and the last key are checkpointed after each page, so a failed export resumes from
+    # the last page in the next run. The pages after the first one are a statement prepared once
+    # and planned once, bound to the last key; they are received whole, page_size bounds their
+    # memory. The bound of the page is applied to the index of the key, see keyset_pages(): if it
+    # can't be, the query is extracted in a single statement through a server side cursor instead.
+    # Returns the rows of the file
+    columns = query_columns(query)
+
+    def page(after):
+        # the next page_size rows, after a key if given
+        return sql.SQL("SELECT * FROM ({query}) AS p {where} ORDER BY p.{key} LIMIT {limit}").format(
+            query=sql.SQL(query), key=sql.Identifier(columns[0]), limit=sql.Literal(page_size),
+            where=sql.SQL("WHERE p.{} > {}").format(sql.Identifier(columns[0]), after) if after else sql.SQL(''))
+
+    if not keyset_pages(query, page):
+        CONN.commit()
+        LOGGER.debug(f"{file_name} pages can't be read through the index of its first column, extracting it in a single statement")
+        return export_query(query, [(file_name, None, None)])
+    CONN.commit()
+    # files streamed to a remote destination are not kept locally, they are always fetched again
+    resumable = not (STORE or PUSHER)
+    checkpoint = load_checkpoint(file_name, query) if resumable else None
+    last, rows = (checkpoint['last'], checkpoint['rows']) if checkpoint else (None, 0)
+    if checkpoint:
+        LOGGER.debug(f"resuming {file_name} after {rows} rows")
+    directory = CHECKPOINT_DIR if resumable else TMP_DIR
+    # a prepared statement lasts until the connection closes, even if the transaction is rolled back
+    CURSORS['opened'] += 1
+    statement = f"etpbic_page_{CURSORS['opened']}"
+    with CONN.cursor() as cur:
+        cur.execute(sql.SQL("PREPARE {} AS {}").format(sql.Identifier(statement), page(sql.SQL('$1'))))
+    with CsvOutputs(columns, [(file_name, None, None)], directory, append=checkpoint is not None) as writer:
+        while True:
+            if last is None:
+                batches = (batch for _, batch in fetch_batches(page(None)))
+            else:
+                batches = fetch_prepared(statement, [last])
+            page_rows = 0
+            for batch in batches:
+                writer.write(batch)
+                if batch:
+                    page_rows += len(batch)
+                    last = batch[-1][0]
+            CONN.commit()
+            pause()
+            rows += page_rows
+            if resumable and page_rows:
+                save_checkpoint(file_name, query, last, rows, writer.flush())
+            if page_rows < page_size:
+                break
+    with CONN.cursor() as cur:
+        cur.execute(sql.SQL("DEALLOCATE {}").format(sql.Identifier(statement)))
+    CONN.commit()
+    if resumable:
+        os.replace(os.path.join(CHECKPOINT_DIR, file_name), os.path.join(TMP_DIR, file_name))
+        os.remove(checkpoint_path(file_name))
+    return rows
+
+
+def estimated_rows(query, conn=None):
+    # rows the planner expects from a query
+    with (conn or CONN).cursor() as cur:
+        cur.execute(sql.SQL("EXPLAIN (FORMAT JSON) {}").format(sql.SQL(query)))
+        plan = cur.fetchone()[0]
+        return (json.loads(plan) if isinstance(plan, str) else plan)[0]['Plan']['Plan Rows']
+
+
+def range_key(query):
+    # the column of a table read by the first column of a query, if it is the first column of an
+    # index, and the bounds of its histogram in the statistics of the table. The server tells the
+    # column of the table a result column comes from when it is a plain reference to it
+    with CONN.cursor() as cur:
+        cur.execute(sql.SQL("SELECT * FROM ({}) AS q LIMIT 0").format(sql.SQL(query)))
+        column = cur.description[0]
+        if not column.table_oid:
+            return None
+        cur.execute("""
+                    SELECT n.nspname, c.relname, a.attname, format_type(a.atttypid, NULL) FROM pg_class c
+                    JOIN pg_namespace n ON n.oid = c.relnamespace
+                    JOIN pg_attribute a ON a.attrelid = c.oid AND a.attnum = %s
+                    WHERE c.oid = %s AND EXISTS (SELECT 1 FROM pg_index i WHERE i.indrelid = c.oid
+                     AND i.indkey[0] = a.attnum AND i.indpred IS NULL)""", (column.table_column, column.table_oid))
+        found = cur.fetchone()
+        if not found:
+            return None
+        schema, table, table_column, type_name = found
+        cur.execute(sql.SQL("""
+                    SELECT h.bound FROM pg_stats s, unnest(s.histogram_bounds::text::{}[]) WITH ORDINALITY AS h(bound, n)
+                    WHERE s.schemaname = %s AND s.tablename = %s AND s.attname = %s ORDER BY h.n""").format(
+            sql.SQL(type_name)), (schema, table, table_column))
+        histogram = [bound for bound, in cur.fetchall()]
+    return {'name': column.name, 'table': table, 'column': table_column, 'histogram': histogram}
+
+
+def range_bounds(histogram):
+    # the bounds splitting the histogram of a key in PARALLEL_WORKERS ranges, in the order of the
+    # database, which may not be the one of python for strings
+    bounds = []
+    for index in range(1, PARALLEL_WORKERS):
+        bound = histogram[len(histogram) * index // PARALLEL_WORKERS] if len(histogram) > 1 else None
+        if bound is not None and (not bounds or bound != bounds[-1]):
+            bounds.append(bound)
+    return bounds
+
+
+def range_query(query, key, low, high):
+    return sql.SQL("SELECT * FROM ({query}) AS r WHERE {condition}").format(
+        query=sql.SQL(query), condition=range_condition(key, low, high))
+
+
+def plan_nodes(statement):
+    # the nodes of the plan of a statement, without running it
+    with CONN.cursor() as cur:
+        cur.execute(sql.SQL("EXPLAIN (FORMAT JSON) {}").format(statement))
+        plan = cur.fetchone()[0]
+    nodes = []
+    pending = [(json.loads(plan) if isinstance(plan, str) else plan)[0]['Plan']]
+    while pending:
+        node = pending.pop()
+        nodes.append(node)
+        pending.extend(node.get('Plans', []))
+    return nodes
+
+
+def key_condition(nodes, key):
+    # whether a plan applies a lower bound of the key to the scan of its table
+    condition = re.compile(rf'\b{re.escape(key["column"])}"?\s*>')
+    return any(node.get('Relation Name') == key['table'] and any(
+        condition.search(node.get(name, '')) for name in ('Index Cond', 'Recheck Cond', 'Filter')) for node in nodes)
+
+
+def pushed_down(query, key, low, high):
+    # whether the planner applies the condition of a range to the scan of the table of the key, so
+    # the range only reads its own rows instead of running the whole query
+    return key_condition(plan_nodes(range_query(query, key['name'], low, high)), key)
+
+
+def range_condition(key, low, high):
+    # keys after low, up to high included, an open end if None. The first range takes the null keys
+    conditions = []
+    if low is not None:
+        conditions.append(sql.SQL("r.{} > {}").format(sql.Identifier(key), sql.Literal(low)))
+    if high is not None:
+        conditions.append(sql.SQL("r.{} <= {}").format(sql.Identifier(key), sql.Literal(high)))
+        if low is None:
+            conditions[-1] = sql.SQL("({} OR r.{} IS NULL)").format(conditions[-1], sql.Identifier(key))
+    return sql.SQL(' AND ').join(conditions) if conditions else sql.SQL('true')
+
+
+def extract_range(host, port, snapshot, deadline, query, key, low, high, file_name):
+    # runs in a worker of RANGES, extracting the rows of a key range with its own connection, in the
+    # snapshot exported by the run, so all the ranges see the same data, and stopping at the deadline
+    # of the dataset. Returns the rows of the range
+    global CONN
+    STOP.update(reason=None, deadline=deadline, handled=False)
+    CONN = connect_to(host, port)
+    try:
+        limit_statements(CONN)
+        CONN.set_session(isolation_level=psycopg2.extensions.ISOLATION_LEVEL_REPEATABLE_READ, readonly=True)
+        with CONN.cursor() as cur:
+            cur.execute("SET TRANSACTION SNAPSHOT %s", (snapshot,))
+        return export_query(range_query(query, key, low, high), [(file_name, None, None)])
+    finally:
+        CONN.close()
+
+
+def start_ranges():
+    # the workers of export_ranges are forked once, before any thread of the script starts: a process
+    # forked while other threads run can inherit locks they hold, locked forever. They can't be
+    # spawned instead, as the script has no main guard and they would run it again
+    if PARALLEL_WORKERS > 1 and not (DRY_RUN or PUSH_URL or S3_BUCKET):
+        RANGES['pool'] = multiprocessing.get_context('fork').Pool(PARALLEL_WORKERS, start_watcher, (True,))
+
+
+def stop_ranges(result):
+    # the workers stop by themselves at the deadline of the dataset or the run. Otherwise, or if they
+    # don't, they are terminated and the next large queries are extracted in a single statement
+    result.wait(RANGE_STOP_SECONDS)
+    if not result.ready():
+        LOGGER.debug("terminating the workers extracting key ranges, they are not used again in this run")
+        RANGES['pool'].terminate()
+        RANGES['pool'] = None
+
+
+def export_ranges(file_name, query):
+    # extract a large query in up to PARALLEL_WORKERS key ranges of its first column, each one in a
+    # worker of RANGES with its own connection, and concatenate them into the csv file. The first
+    # column must read an indexed column of a table: the ranges are split at the bounds of its
+    # histogram in the statistics of the table, without running the query, and only if the planner
+    # applies the condition of a range to the scan of the table. The ranges share the snapshot
+    # exported by the connection of the run, which is kept open until they end. Returns the rows of
+    # the file, or None if the query is not large enough, its key can't be split or pushed down, or
+    # the extraction of the ranges failed
+    if RANGES['pool'] is None:
+        return None
+    try:
+        rows = estimated_rows(query)
+        if rows < PARALLEL_MIN_ROWS:
+            return None
+        key = range_key(query)
+        bounds = range_bounds(key['histogram']) if key else []
+        if not bounds or not pushed_down(query, key, bounds[0], bounds[-1]):
+            CONN.commit()
+            LOGGER.debug(f"{file_name} has no indexed key to split it in ranges, extracting it in a single statement")
+            return None
+        CONN.commit()
+        with CONN.cursor() as cur:
+            # the transaction of the snapshot is idle while the ranges are extracted
+            cur.execute("SELECT set_config('idle_in_transaction_session_timeout', '0', true)")
+            cur.execute("SELECT pg_export_snapshot()")
+            snapshot = cur.fetchone()[0]
+        ranges = list(zip([None] + bounds, bounds + [None]))
+        LOGGER.debug(f"extracting {file_name}, about {rows} rows, in {len(ranges)} ranges of {key['table']}.{key['column']}")
+        parts = [f'{file_name}.part{index}' for index in range(len(ranges))]
+        result = RANGES['pool'].starmap_async(extract_range, [
+            (CONN.info.host, CONN.info.port, snapshot, STOP['deadline'], query, key['name'], low, high, part)
+            for (low, high), part in zip(ranges, parts)])
+        try:
+            while not result.ready():
+                check_stop()
+                result.wait(1)
+        finally:
+            if not result.ready():
+                stop_ranges(result)
+        counts = result.get()
+        CONN.commit()
+    except Exception as e:
+        CONN.rollback()
+        for index in range(PARALLEL_WORKERS):
+            if os.path.exists(os.path.join(TMP_DIR, f'{file_name}.part{index}')):
+                os.remove(os.path.join(TMP_DIR, f'{file_name}.part{index}'))
+        # the ranges stopped by a timeout or a cancel are not extracted again
+        check_stop()
+        if isinstance(e, (Stopped, psycopg2.extensions.QueryCanceledError)):
+            raise
+        LOGGER.debug(f"{file_name} can't be extracted in ranges, extracting it in a single statement: {e}")
+        return None
+    with open(os.path.join(TMP_DIR, file_name), 'wb') as output:
+        for index, part in enumerate(parts):
+            with open(os.path.join(TMP_DIR, part), 'rb') as file:
+                if index:
+                    file.readline()
+                shutil.copyfileobj(file, output, OUTPUT_BUFFER)
+            os.remove(os.path.join(TMP_DIR, part))
+    return sum(counts)
+
+
+class ColumnDictionaries:
+    # per column dictionaries that make the repeated strings of a column share a single copy in
+    # memory. They are turned on for the columns whose first rows have few distinct strings, and
+    # stop growing at DICTIONARY_MAX_SIZE entries
+
+    def __init__(self, sample):
+        self.columns = {}
+        for position in range(len(sample[0]) if sample else 0):
+            values = [row[position] for row in sample if isinstance(row[position], str)]
+            if values and len(set(values)) <= DICTIONARY_MAX_RATIO * len(values):
+                self.columns[position] = {}
+
+    def encode(self, row):
+        # returns the row with its strings shared, and the bytes it adds to the memory in use
+        size = sys.getsizeof(row)
+        values = None
+        for position, value in enumerate(row):
+            dictionary = self.columns.get(position)
+            if dictionary is None or not isinstance(value, str):
+                size += sys.getsizeof(value)
+                continue
+            shared = dictionary.get(value)
+            if shared is None:
+                size += sys.getsizeof(value)
+                if len(dictionary) < DICTIONARY_MAX_SIZE:
+                    dictionary[value] = value
+            elif shared is not value:
+                values = values or list(row)
+                values[position] = shared
+        return (tuple(values) if values else row), size
+
+
+class SpillingHashJoin:
+    # left join of the base rows with the custom rows on their key, as a grace hash join. The rows
+    # of both sides come with their key first, and each joined row is the base row followed by the
+    # custom values. The build side, the base or the custom rows, is indexed in memory up to
+    # MERGE_MEMORY_BYTES; beyond that, both sides are split in partitions on disk by the hash of the
+    # key and joined one partition at a time, so the memory used is bounded by the size of a
+    # partition. When the base rows are the build side, the ones no custom row matched are joined
+    # at the end, with empty custom values
+
+    def __init__(self, width, build_base=False):
+        self.missing = (None,) * width # values of a base row without custom rows
+        self.build_base = build_base
+        self.table = {}
+        self.matched = set()
+        self.size = 0
+        self.dictionaries = None
+        self.spill_dir = None
+        self.build_files = []
+        self.probe_files = []
+
+    def build(self, rows):
+        # add the rows of the build side
+        if self.dictionaries is None:
+            self.dictionaries = ColumnDictionaries(rows)
+        for row in rows:
+            if self.spill_dir:
+                pickle.dump(row, self.build_files[hash(row[0]) % MERGE_PARTITIONS])
+                continue
+            row, size = self.dictionaries.encode(row)
+            self.table.setdefault(row[0], []).append(row[1:])
+            self.size += size
+            if self.size > MERGE_MEMORY_BYTES:
+                self.spill()
+
+    def spill(self):
+        LOGGER.debug(f"merge exceeds {MERGE_MEMORY_BYTES} bytes, spilling to {MERGE_PARTITIONS} partitions on disk")
+        self.spill_dir = tempfile.mkdtemp(prefix='merge_', dir=FOLDER_DIR)
+        self.build_files = [open(os.path.join(self.spill_dir, f'build_{i}'), 'wb') for i in range(MERGE_PARTITIONS)]
+        self.probe_files = [open(os.path.join(self.spill_dir, f'probe_{i}'), 'wb') for i in range(MERGE_PARTITIONS)]
+        for key, values in self.table.items():
+            for value in values:
+                pickle.dump((key,) + value, self.build_files[hash(key) % MERGE_PARTITIONS])
+        self.table = {}
+
+    def probe(self, rows):
+        # join the rows of the probe side; returns the joined rows, or none while spilling to disk
+        if self.spill_dir:
+            for row in rows:
+                pickle.dump(row, self.probe_files[hash(row[0]) % MERGE_PARTITIONS])
+            return []
+        return self.join(self.table, rows)
+
+    def join(self, table, rows):
+        if not self.build_base:
+            return [row[1:] + match for row in rows for match in table.get(row[0], [self.missing])]
+        joined = []
+        for row in rows:
+            matches = table.get(row[0])
+            if matches:
+                self.matched.add(row[0])
+                joined.extend(base + row[1:] for base in matches)
+        return joined
+
+    def unmatched(self, table):
+        # yields batches of the base rows of the build side no custom row matched
+        batch = []
+        if self.build_base:
+            for key, matches in table.items():
+                if key not in self.matched:
+                    batch.extend(base + self.missing for base in matches)
+                    if len(batch) >= FETCH_SIZE:
+                        yield batch
+                        batch = []
+        self.matched = set()
+        yield batch
+
+    def finish(self):
+        # yields batches of the joined rows left: the unmatched base rows and the partitions spilled
+        # to disk
+        if not self.spill_dir:
+            yield from self.unmatched(self.table)
+            return
+        try:
+            for file in self.build_files + self.probe_files:
+                file.close()
+            for i in range(MERGE_PARTITIONS):
+                table = {}
+                for row in read_pickles(os.path.join(self.spill_dir, f'build_{i}')):
+                    # the dictionaries of the in memory stage are reused by each partition
+                    row, _ = self.dictionaries.encode(row)
+                    table.setdefault(row[0], []).append(row[1:])
+                batch = []
+                for row in read_pickles(os.path.join(self.spill_dir, f'probe_{i}')):
+                    batch.append(row)
+                    if len(batch) >= FETCH_SIZE:
+                        yield self.join(table, batch)
+                        batch = []
+                yield self.join(table, batch)
+                yield from self.unmatched(table)
+        finally:
+            shutil.rmtree(self.spill_dir, ignore_errors=True)
+
+
+def key_normalizer(pk, base_type, custom_type):
+    # the function giving the keys of the base and the custom rows the same type, so they match as
+    # if one of them was cast to the type of the other: numbers of any type match each other, and
+    # text matches the text of the numbers. The types are the oids of the columns in the database.
+    # Keys of other types that differ can't be compared, the merge fails instead of leaving the
+    # custom values of every row empty
+    types = {base_type, custom_type}
+    if len(types) == 1 or types <= NUMBER_TYPES:
+        return lambda key: key
+    if types <= TEXT_TYPES:
+        # char values come padded with blanks, which the cast to text removes
+        return lambda key: key.rstrip(' ') if isinstance(key, str) else key
+    if types <= TEXT_TYPES | NUMBER_TYPES:
+        return key_text
+    raise ValueError(f"the key {pk} of the custom query and the one of the base query have types that can't be"
+                     f" compared, cast one of them in its query")
+
+
+def key_text(key):
+    # the text of a key, the integral numbers without decimals
+    if key is None:
+        return None
+    if isinstance(key, str):
+        return key.rstrip(' ')
+    if isinstance(key, Decimal) and key.is_finite() and key == key.to_integral_value():
+        key = int(key)
+    return str(key)
+
+
+def read_pickles(path):
+    with open(path, 'rb') as file:
+        while True:
+            try:
+                yield pickle.load(file)
+            except EOFError:
+                return
+
+
+def subquery(query):
+    # a query ready to be nested in another one
+    return sql.SQL(query.strip().rstrip(';'))
+
+
+def merge_in_database(name, prefix, filtered_query, base_columns, custom_query):
+    # writes the files of a dataset with a custom query, merged with a join in the database.
+    # Returns the rows of the dataset
+    custom_columns = query_columns(subquery(custom_query).string)
+    pk = base_columns[0]
+    # the columns of the custom query replace the base ones with the same name
+    kept = [c for c in base_columns if c == pk or c not in custom_columns]
+    dataset = (prefix + f'{name}.csv', list(range(len(kept))), None)
+    if pk not in custom_columns:
+        LOGGER.debug("pk not found")
+        return export_query(sql.SQL("SELECT {} FROM ({}) AS b").format(
+            sql.SQL(', ').join(sql.Identifier('b', c) for c in kept), sql.SQL(filtered_query)), [dataset])
+    LOGGER.debug("executing " + f'\'{name}\' custom query merged with the base query')
+    # one join gives the rows of the three files: the dataset file takes the kept base columns of
+    # the first match of each base row, numbered in the custom query, the FULL file the kept base
+    # columns and all the custom ones, and the BASE file the base columns, with the overlapping
+    # ones taken from the custom query
+    added = [c for c in custom_columns if c != pk]
+    match = len(kept) + len(added)
+    merge_query = sql.SQL("SELECT {}, c.etpbic_match FROM ({}) AS b LEFT JOIN"
+                          " (SELECT *, row_number() OVER (PARTITION BY {}) AS etpbic_match FROM ({}) AS c) AS c"
+                          " ON {} = {}").format(
+        sql.SQL(', ').join([sql.Identifier('b', c) for c in kept] + [sql.Identifier('c', c) for c in added]),
+        sql.SQL(filtered_query), sql.Identifier(pk), subquery(custom_query), sql.Identifier('b', pk),
+        sql.Identifier('c', pk))
+    dataset = (dataset[0], dataset[1], lambda row: row[match] is None or row[match] == 1)
+    LOGGER.debug(f"creating {prefix}{name}.csv, BASE_{name}.csv and FULL_{name}.csv files")
+    return export_query(merge_query, [dataset] + merge_outputs(name, base_columns, kept, added))
+
+
+def custom_session(schema):
+    # a read only session searching the given schema, for the custom queries of another schema,
+    # limited by the deadlines of the run like CONN
+    conn = connect_to(CONN.info.host, CONN.info.port)
+    try:
+        limit_statements(conn)
+        with conn.cursor() as cur:
+            cur.execute("SELECT set_config('search_path', quote_ident(%s), false)", (schema,))
+        conn.commit()
+        conn.set_session(readonly=True)
+    except Exception:
+        conn.close()
+        raise
+    SESSIONS.append(conn)
+    return conn
+
+
+def merge_in_script(name, prefix, filtered_query, base_columns, custom_query, schema=None):
+    # writes the files of a dataset with a custom query, merged with a hash join in the script. A
+    # custom query of another schema runs in a session of its own, searching that schema. The query
+    # with the fewer rows, by the estimates of the planner, is the build side of the join; the rows
+    # of the other one stream through. Returns the rows of the dataset
+    pk = base_columns[0]
+    conn = custom_session(schema) if schema else CONN
+    try:
+        custom_query = subquery(custom_query).string
+        description = query_description(custom_query, conn)
+        custom_columns = [desc[0] for desc in description]
+        kept = [c for c in base_columns if c == pk or c not in custom_columns]
+        added = [c for c in custom_columns if c != pk]
+        kept_positions = [base_columns.index(c) for c in kept]
+        if pk not in custom_columns:
+            LOGGER.debug("pk not found")
+            return export_query(filtered_query, [(prefix + f'{name}.csv', kept_positions, None)])
+        pk_position = custom_columns.index(pk)
+        normalize = key_normalizer(pk, query_description(filtered_query)[0].type_code,
+                                   description[pk_position].type_code)
+        build_base = estimated_rows(filtered_query) < estimated_rows(custom_query, conn)
+        LOGGER.debug(f"merging '{name}' in the script, indexing the {'base' if build_base else 'custom'} rows")
+        join = SpillingHashJoin(len(custom_columns) - 1, build_base)
+        # the base rows are written to the dataset file as they are fetched
+        with ExitStack() as files:
+            plain = files.enter_context(CsvOutputs(kept, [(prefix + f'{name}.csv', None, None)]))
+            merged = files.enter_context(CsvOutputs(kept + added, merge_outputs(name, base_columns, kept, added)))
+            if not build_base:
+                for rows in custom_batches(fetch_batches(custom_query, conn), pk_position, normalize):
+                    join.build(rows)
+            for _, batch in fetch_batches(filtered_query):
+                batch = [tuple(row[i] for i in kept_positions) for row in batch]
+                plain.write(batch)
+                rows = [(normalize(row[0]),) + row for row in batch]
+                if build_base:
+                    join.build(rows)
+                else:
+                    merged.write(join.probe(rows))
+            if build_base:
+                for rows in custom_batches(fetch_batches(custom_query, conn), pk_position, normalize):
+                    merged.write(join.probe(rows))
+            for batch in join.finish():
+                merged.write(batch)
+        return plain.rows
+    finally:
+        if conn is not CONN:
+            SESSIONS.remove(conn)
+            conn.close()
+
+
+def custom_batches(batches, pk_position, normalize):
+    # the batches of custom rows, each one with its key first, normalized, and the rest of values
+    for _, batch in batches:
+        yield [(normalize(row[pk_position]),) + row[:pk_position] + row[pk_position + 1:] for row in batch]
+
+
+def merge_outputs(name, base_columns, kept, added):
+    # the BASE and FULL files of the rows of a merge, made of the kept base columns and the added
+    # custom ones
+    pk = base_columns[0]
+    base_positions = list(range(len(kept))) + [len(kept) + added.index(c) for c in base_columns
+                                               if c != pk and c in added]
+    return [('BASE_' + f'{name}.csv', base_positions, None),
+            ('FULL_' + f'{name}.csv', list(range(len(kept) + len(added))), None)]
+
+
+def run_ssh(command):
+    # run a command in the destination server, returns its output
+    result = subprocess.run(f'ssh {SSH_OPTIONS} {USER}@{IP} -p {PORT} "{command}"', shell=True, capture_output=True)
+    return result.stdout.strip().decode()
+
+
+def load_cache(cache_file):
+    # a cache shared by the runs of all the organizations
+    try:
+        with open(cache_file) as file:
+            return json.load(file)
+    except (OSError, ValueError):
+        return {}
+
+
+def save_cache(cache_file, entries):
+    cache = load_cache(cache_file)
+    cache.update(entries)
+    # written to a temporary file and renamed, so concurrent runs never read a partial file
+    fd, path = tempfile.mkstemp(dir=CURRENT_DIR, prefix=os.path.basename(cache_file) + '_')
+    with os.fdopen(fd, 'w') as file:
+        json.dump(cache, file)
+    os.replace(path, cache_file)
+
+
+def load_destinations():
+    # when each check of each server was last passed
+    return load_cache(DESTINATION_CACHE_FILE)
+
+
+def save_destination(checks):
+    save_cache(DESTINATION_CACHE_FILE, {DESTINATION_KEY: checks})
+
+
+def forget_destination():
+    save_destination({})
+
+
+def check_destination():
+    # check that the server is reachable and PATH exists, and create the directory of the
+    # organization. The checks passed within DESTINATION_CACHE_TTL by any run are skipped.
+    # Returns True if all of them were skipped
+    checks = load_destinations().get(DESTINATION_KEY, {})
+    now = time.time()
+    cached = True
+    for check, command in (('reachable', 'echo 1'), (PATH, f"test -d '{PATH}' && echo 1"),
+                           (DESTINATION_DIR, f"test -d {DESTINATION_DIR} && echo 1")):
+        if now - checks.get(check, 0) < DESTINATION_CACHE_TTL:
+            continue
+        cached = False
+        if run_ssh(command) == "1":
+            LOGGER.debug(f'{IP} is reachable' if check == 'reachable' else f"{check} exists in the server")
+        elif check == 'reachable':
+            LOGGER.debug(f'{IP} is not reachable')
+            raise Exception(f'{IP} is not reachable')
+        elif check == PATH:
+            LOGGER.debug(f"{PATH} does not exist in the server")
+            raise Exception(f"{PATH} does not exist in the server")
+        else:
+            run_ssh(f"mkdir -p {DESTINATION_DIR}")
+            LOGGER.debug(f"created {DESTINATION_DIR} in the server")
+        checks[check] = now
+    if cached:
+        LOGGER.debug(f"{DESTINATION_DIR} in {IP} checked by a recent run")
+    else:
+        save_destination(checks)
+    return cached
+
+
+def rsync_command(source, destination, options=''):
+    return (f'rsync -avz {options} -e "ssh -p {PORT} {SSH_OPTIONS}" {source} {USER}@{IP}:{destination}/'
+            f' >> "{LOG_DIR}/rsync_$(date +%Y-%m-%d).log" 2>&1')
+
+
+class Uploader:
+    # uploads the files of each dataset as soon as they are written, while the next query runs.
+    # The files go to a directory of the run in the server, with the published ones as basis of the
+    # delta transfer, and are published together at the end by pointing DESTINATION_DIR to it. At
+    # most UPLOAD_QUEUE_SIZE datasets and UPLOAD_QUEUE_BYTES bytes wait to be uploaded, a larger
+    # dataset only when no other one waits: beyond that the extraction waits for the uploads
+
+    def __init__(self):
+        self.queue = queue.Queue(maxsize=UPLOAD_QUEUE_SIZE)
+        self.space = threading.Condition()
+        self.spooled = 0
+        self.error = None
+        self.cached = False
+        self.uploaded = 0
+        self.thread = threading.Thread(target=self.run, name='uploader', daemon=True)
+        self.thread.start()
+
+    def submit(self, files):
+        self.check()
+        if not files:
+            return
+        size = sum(os.path.getsize(os.path.join(TMP_DIR, file_name)) for file_name in files)
+        with self.space:
+            while self.spooled and self.spooled + size > UPLOAD_QUEUE_BYTES:
+                self.space.wait(1)
+                check_stop()
+            self.spooled += size
+        self.queue.put((files, size))
+
+    def check(self):
+        # raise in the extraction the error of the uploads
+        if self.error:
+            raise self.error
+
+    def run(self):
+        try:
+            self.cached = check_destination()
+            run_ssh(f"rm -rf {STAGING_DIR} && mkdir -p {STAGING_DIR}")
+        except Exception as e:
+            self.error = e
+        while True:
+            item = self.queue.get()
+            if item is None:
+                return
+            files, size = item
+            # after an error the queue is still drained, so the extraction never blocks on it
+            if not self.error:
+                try:
+                    self.upload(files)
+                except Exception as e:
+                    self.error = e
+            with self.space:
+                self.spooled -= size
+                self.space.notify_all()
+
+    def upload(self, files):
+        LOGGER.debug(f"uploading {', '.join(files)}")
+        command = rsync_command(' '.join(shlex.quote(os.path.join(TMP_DIR, file_name)) for file_name in files),
+                                STAGING_DIR, f'--copy-dest=../../{org_name}')
+        try:
+            subprocess.run(command, shell=True, check=True)
+        except subprocess.CalledProcessError:
+            if not self.cached:
+                raise
+            # the server may have changed since it was checked: check it again and retry once
+            LOGGER.debug("rsync failed, checking the server again")
+            forget_destination()
+            self.cached = False
+            check_destination()
+            run_ssh(f"mkdir -p {STAGING_DIR}")
+            subprocess.run(command, shell=True, check=True)
+        self.uploaded += len(files)
+
+    def publish(self):
+        # wait for the pending uploads, then publish the directory of the run at once by renaming a
+        # link to it over DESTINATION_DIR. The directory published before stays for the readers that
+        # are still reading it, the older ones and the ones of failed runs are deleted. The first run
+        # moves the directory published before the versions into them
+        self.queue.put(None)
+        self.thread.join()
+        self.check()
+        if not self.uploaded:
+            # do not delete the published files if no files were uploaded
+            LOGGER.debug("no files to publish")
+            run_ssh(f"rm -rf {STAGING_DIR}")
+            return
+        LOGGER.debug(f"publishing {self.uploaded} files in {DESTINATION_DIR}")
+        versions = os.path.basename(VERSIONS_DIR)
+        version = os.path.basename(STAGING_DIR)
+        if run_ssh(f"cd {PATH}{client}"
+                   f" && if [ -d {org_name} ] && [ ! -L {org_name} ]; then"
+                   f" mv {org_name} {versions}/previous && ln -s {versions}/previous {org_name}; fi"
+                   f" && previous=\\$(basename \\\"\\$(readlink {org_name} || true)\\\")"
+                   f" && ln -sfn {versions}/{version} .{org_name}_next && mv -T .{org_name}_next {org_name}"
+                   f" && cd {versions} && ls -1A | grep -vx -e {version} -e \\\"\\$previous\\\" | xargs -r rm -rf"
+                   f" && echo 1") != "1":
+            raise Exception(f"files could not be published in {DESTINATION_DIR}")
+
+
+def json_value(value):
+    # numeric values are sent as strings with all their digits, a float would round them
+    if isinstance(value, Decimal):
+        return str(value)
+    if isinstance(value, (datetime, date)):
+        return value.isoformat()
+    return str(value)
+
+
+def retry_after(response):
+    # seconds asked by a 429 or 503 response to wait before retrying, None if not given
+    value = response.headers.get('Retry-After')
+    if not value:
+        return None
+    try:
+        seconds = float(value)
+    except ValueError:
+        try:
+            seconds = (parsedate_to_datetime(value) - datetime.now(timezone.utc)).total_seconds()
+        except (TypeError, ValueError):
+            return None
+    return min(REQUEST_MAX_BACKOFF, max(0.0, seconds))
+
+
+def send_request(description, send, accept=()):
+    # send a request to a destination, retrying the timeouts, the connection errors and the 408, 429
+    # and 5xx responses with exponential backoff and jitter, or the Retry-After of 429 and 503 responses.
+    # Returns the response, that can only be an error if its status is accepted
+    for attempt in range(1, REQUEST_MAX_ATTEMPTS + 1):
+        delay = None
+        try:
+            response = send()
+            if response.status_code < 400 or response.status_code in accept:
+                return response
+            retryable = response.status_code in (408, 429) or response.status_code >= 500
+            if not retryable or attempt == REQUEST_MAX_ATTEMPTS:
+                response.raise_for_status()
+            if response.status_code in (429, 503):
+                delay = retry_after(response)
+        except (requests.ConnectionError, requests.Timeout):
+            if attempt == REQUEST_MAX_ATTEMPTS:
+                raise
+        if delay is None:
+            # full jitter, so the retries of the requests in flight don't arrive together
+            delay = random.uniform(0, min(REQUEST_MAX_BACKOFF, REQUEST_BASE_BACKOFF * 2 ** attempt))
+        LOGGER.debug(f"{description} failed, retrying in {delay:.1f}s")
+        time.sleep(delay)
+
+
+class RequestPool:
+    # requests sent in parallel to a destination while the extraction goes on. At most `concurrency`
+    # requests are in flight and as many wait for them, beyond that the extraction waits. The first
+    # error is raised in the extraction by check()
+
+    def __init__(self, concurrency, name):
+        self.executor = ThreadPoolExecutor(max_workers=concurrency, thread_name_prefix=name)
+        self.slots = threading.BoundedSemaphore(concurrency * 2)
+        self.sessions = threading.local()
+        self.error = None
+
+    def check(self):
+        if self.error:
+            raise self.error
+
+    def run(self, function, *args):
+        self.check()
+        self.slots.acquire()
+        future = self.executor.submit(function, *args)
+        future.add_done_callback(self.done)
+        return future
+
+    def done(self, future):
+        self.slots.release()
+        if future.exception() and not self.error:
+            self.error = future.exception()
+
+    def session(self):
+        # each thread keeps its connections to the destination
+        if not hasattr(self.sessions, 'session'):
+            self.sessions.session = requests.Session()
+        return self.sessions.session
+
+    def wait(self):
+        self.executor.shutdown(wait=True)
+        self.check()
+
+
+class HttpPusher(RequestPool):
+    # HTTP push destination: sends the rows of the datasets to a REST ingestion endpoint while they
+    # are fetched, instead of uploading files. The rows of each file go in gzip compressed JSON or
+    # CSV batches of PUSH_BATCH_ROWS rows to PUSH_URL, where {dataset} is replaced by the file name
+    # without extension, with at most PUSH_CONCURRENCY requests in flight. Each batch has an
+    # Idempotency-Key header with the run, the dataset and the number of the batch, the same in all
+    # its retries, so the endpoint can discard a batch it already received
+
+    def __init__(self):
+        super().__init__(PUSH_CONCURRENCY, 'push')
+        self.lock = threading.Lock()
+        self.pending = {}
+        self.batches = {}
+        self.pushed = 0
+        self.run_id = RUN_ID or datetime.now(timezone.utc).strftime('%Y%m%dT%H%M%S')
+
+    def send(self, file_name, columns, rows):
+        _, pending = self.pending.setdefault(file_name, (columns, []))
+        pending.extend(rows)
+        while len(pending) >= PUSH_BATCH_ROWS:
+            self.run(self.post, file_name, self.next_batch(file_name), columns, pending[:PUSH_BATCH_ROWS])
+            del pending[:PUSH_BATCH_ROWS]
+
+    def flush(self, file_name):
+        columns, pending = self.pending.pop(file_name, (None, []))
+        if pending:
+            self.run(self.post, file_name, self.next_batch(file_name), columns, pending)
+
+    def next_batch(self, file_name):
+        self.batches[file_name] = self.batches.get(file_name, 0) + 1
+        return self.batches[file_name]
+
+    def submit(self, files):
+        # the rows are pushed as they are written, there is nothing left to do with the files
+        self.check()
+
+    def publish(self):
+        for file_name in list(self.pending):
+            self.flush(file_name)
+        self.wait()
+        LOGGER.debug(f"pushed {self.pushed} rows to {PUSH_URL}")
+
+    def encode(self, columns, rows):
+        if PUSH_FORMAT == 'csv':
+            body = io.StringIO()
+            writer = csv.writer(body, delimiter=csv_separator, lineterminator=os.linesep)
+            writer.writerow(columns)
+            writer.writerows(rows)
+            return 'text/csv', body.getvalue().encode('utf-8')
+        body = json.dumps({'rows': [dict(zip(columns, row)) for row in rows]}, default=json_value)
+        return 'application/json', body.encode('utf-8')
+
+    def post(self, file_name, batch, columns, rows):
+        content_type, body = self.encode(columns, rows)
+        body = gzip.compress(body)
+        dataset = quote(os.path.splitext(file_name)[0])
+        headers = {'Content-Type': content_type, 'Content-Encoding': 'gzip',
+                   'Idempotency-Key': f'{self.run_id}:{dataset}:{batch}'}
+        if PUSH_TOKEN:
+            headers['Authorization'] = f'Bearer {PUSH_TOKEN}'
+        url = PUSH_URL.replace('{dataset}', dataset)
+        send_request(f"push of {file_name}",
+                     lambda: self.session().post(url, data=body, headers=headers, timeout=REQUEST_TIMEOUT))
+        with self.lock:
+            self.pushed += len(rows)
+
+
+def s3_signature_key(day):
+    key = ('AWS4' + S3_SECRET_KEY).encode('utf-8')
+    for part in (day, S3_REGION, 's3', 'aws4_request'):
+        key = hmac.new(key, part.encode('utf-8'), hashlib.sha256).digest()
+    return key
+
+
+def s3_authorization(method, path, params, headers, now):
+    # AWS signature version 4 of a request, headers must include host, x-amz-date and x-amz-content-sha256
+    query = '&'.join(f"{quote(name, safe='~')}={quote(value, safe='~')}" for name, value in sorted(params.items()))
+    signed = sorted((name.lower(), ' '.join(str(value).split())) for name, value in headers.items())
+    request = '\n'.join([method, quote(path, safe='/~'), query, ''.join(f'{name}:{value}\n' for name, value in signed),
+                         ';'.join(name for name, _ in signed), headers['x-amz-content-sha256']])
+    scope = f"{now:%Y%m%d}/{S3_REGION}/s3/aws4_request"
+    to_sign = '\n'.join(['AWS4-HMAC-SHA256', f'{now:%Y%m%dT%H%M%SZ}', scope,
+                         hashlib.sha256(request.encode('utf-8')).hexdigest()])
+    signature = hmac.new(s3_signature_key(f'{now:%Y%m%d}'), to_sign.encode('utf-8'), hashlib.sha256).hexdigest()
+    return (f"AWS4-HMAC-SHA256 Credential={S3_ACCESS_KEY}/{scope}, "
+            f"SignedHeaders={';'.join(name for name, _ in signed)}, Signature={signature}")
+
+
+class S3Store(RequestPool):
+    # S3 compatible object storage destination: streams the datasets to S3_BUCKET as they are written,
+    # without local files, in multipart uploads of S3_PART_SIZE parts with at most S3_CONCURRENCY parts
+    # in flight. The objects of a run get their own keys and are only published when the run ends, by
+    # writing the manifest object with the key, the size and the hash of each dataset. A dataset with
+    # the same hash as in the last manifest keeps its object. The objects replaced by a run are deleted
+    # by the next one, so the readers of the previous manifest can still get them. A failed upload is
+    # aborted, and the uploads left by a run that was killed are aborted when the next one publishes.
+    # A lifecycle rule of the bucket that aborts incomplete multipart uploads after a day also covers
+    # the prefixes no run publishes anymore
+
+    def __init__(self):
+        super().__init__(S3_CONCURRENCY, 's3')
+        self.base = urlsplit(S3_ENDPOINT)
+        self.run_prefix = f"{S3_PREFIX}{RUN_ID or datetime.now(timezone.utc).strftime('%Y%m%dT%H%M%S')}/"
+        manifest = self.request('GET', S3_PREFIX + S3_MANIFEST, accept=(404,))
+        self.previous = manifest.json() if manifest.status_code == 200 else {'files': {}, 'retired': []}
+        self.files = {}
+        self.reused = 0
+
+    def request(self, method, key, params=None, body=b'', headers=None, accept=()):
+        params = params or {}
+        path = f'/{S3_BUCKET}/{key}'
+
+        def send():
+            now = datetime.now(timezone.utc)
+            signed = dict(headers or {}, host=self.base.netloc, **{
+                'x-amz-date': f'{now:%Y%m%dT%H%M%SZ}', 'x-amz-content-sha256': hashlib.sha256(body).hexdigest()})
+            signed['Authorization'] = s3_authorization(method, self.base.path.rstrip('/') + path, params, signed, now)
+            url = f"{self.base.scheme}://{self.base.netloc}{self.base.path.rstrip('/')}{quote(path, safe='/~')}"
+            return self.session().request(method, url, params=params, data=body, headers=signed,
+                                          timeout=REQUEST_TIMEOUT)
+        return send_request(f"{method} of {key}", send, accept)
+
+    def open(self, file_name):
+        return S3Object(self, file_name)
+
+    def sweep(self):
+        # abort the multipart uploads of the previous runs that were never completed nor aborted, the
+        # runs of an organization never overlap so none of them is still in progress
+        params = {'uploads': '', 'prefix': S3_PREFIX}
+        while True:
+            listing = ElementTree.fromstring(self.request('GET', '', params).content)
+            for upload in listing.findall('{*}Upload'):
+                key = upload.findtext('{*}Key')
+                if not key.startswith(self.run_prefix):
+                    LOGGER.debug(f"aborting the incomplete upload of {key}")
+                    self.request('DELETE', key, {'uploadId': upload.findtext('{*}UploadId')}, accept=(404,))
+            if listing.findtext('{*}IsTruncated') != 'true':
+                break
+            params = dict(params, **{'key-marker': listing.findtext('{*}NextKeyMarker'),
+                                     'upload-id-marker': listing.findtext('{*}NextUploadIdMarker')})
+
+    def upload_part(self, key, upload_id, number, data):
+        response = self.request('PUT', key, {'partNumber': str(number), 'uploadId': upload_id}, data)
+        return response.headers['ETag']
+
+    def submit(self, files):
+        # the datasets are uploaded as they are written, there is nothing left to do with the files
+        self.check()
+
+    def keep(self, file_name):
+        # the manifest keeps pointing to the previous object of a dataset, returns False if there is none
+        previous = self.previous['files'].get(file_name)
+        if previous:
+            self.files[file_name] = previous
+        return previous is not None
+
+    def publish(self):
+        self.wait()
+        keys = {entry['key'] for entry in self.files.values()}
+        retired = [entry['key'] for entry in self.previous['files'].values() if entry['key'] not in keys]
+        manifest = {'created': datetime.now(timezone.utc).isoformat(), 'files': self.files, 'retired': retired}
+        # a single PUT replaces the manifest at once, the readers see all the datasets of a run or none
+        self.request('PUT', S3_PREFIX + S3_MANIFEST, body=json.dumps(manifest, indent=2).encode('utf-8'),
+                     headers={'Content-Type': 'application/json'})
+        for key in self.previous.get('retired', []):
+            if key not in keys:
+                self.request('DELETE', key, accept=(404,))
+        self.sweep()
+        LOGGER.debug(f"published {len(self.files)} datasets in {S3_BUCKET}/{S3_PREFIX}, {self.reused} unchanged")
+
+
+class S3Object:
+    # file like object streaming the csv of a dataset to the store. The parts are uploaded while the
+    # next rows are fetched; a dataset smaller than a part is sent in a single PUT once it is complete
+
+    def __init__(self, store, file_name):
+        self.store = store
+        self.file_name = file_name
+        self.key = store.run_prefix + file_name
+        self.text = []
+        self.text_size = 0
+        self.buffer = bytearray()
+        self.hash = hashlib.sha256()
+        self.size = 0
+        self.upload_id = None
+        self.parts = []
+
+    def write(self, text):
+        # csv rows are encoded and hashed by chunks, not one by one
+        self.text.append(text)
+        self.text_size += len(text)
+        if self.text_size >= OUTPUT_BUFFER:
+            self.encode()
+        while len(self.buffer) >= S3_PART_SIZE:
+            self.send_part(bytes(self.buffer[:S3_PART_SIZE]))
+            del self.buffer[:S3_PART_SIZE]
+
+    def encode(self):
+        data = ''.join(self.text).encode('utf-8')
+        self.text = []
+        self.text_size = 0
+        self.hash.update(data)
+        self.size += len(data)
+        self.buffer += data
+
+    def send_part(self, data):
+        if self.upload_id is None:
+            response = self.store.request('POST', self.key, {'uploads': ''})
+            self.upload_id = ElementTree.fromstring(response.content).findtext('{*}UploadId')
+        self.parts.append(self.store.run(self.store.upload_part, self.key, self.upload_id, len(self.parts) + 1, data))
+
+    def close(self):
+        self.encode()
+        digest = self.hash.hexdigest()
+        previous = self.store.previous['files'].get(self.file_name)
+        if previous and previous['sha256'] == digest:
+            # unchanged since the last run, the manifest keeps pointing to the previous object
+            LOGGER.debug(f"{self.file_name} is unchanged, keeping {previous['key']}")
+            self.abort()
+            self.store.files[self.file_name] = previous
+            self.store.reused += 1
+            return
+        if self.upload_id is None:
+            response = self.store.request('PUT', self.key, body=bytes(self.buffer), headers={'Content-Type': 'text/csv'})
+        else:
+            try:
+                if self.buffer:
+                    self.send_part(bytes(self.buffer))
+                parts = ''.join(f'<Part><PartNumber>{number}</PartNumber><ETag>{part.result()}</ETag></Part>'
+                                for number, part in enumerate(self.parts, start=1))
+                response = self.store.request('POST', self.key, {'uploadId': self.upload_id},
+                                              f'<CompleteMultipartUpload>{parts}</CompleteMultipartUpload>'.encode('utf-8'))
+                # the completion can fail after the 200 status was sent
+                if ElementTree.fromstring(response.content).tag.endswith('Error'):
+                    raise Exception(f"upload of {self.file_name} failed: {response.text}")
+            except Exception:
+                self.abort()
+                raise
+        self.buffer = bytearray()
+        self.store.files[self.file_name] = {'key': self.key, 'sha256': digest, 'size': self.size,
+                                            'etag': response.headers.get('ETag', '').strip('"')}
+
+    def abort(self):
+        # the parts already stored are deleted with the upload. If it can't be aborted, it is by the
+        # next run, see S3Store.sweep()
+        if self.upload_id is None:
+            return
+        for part in self.parts:
+            part.exception()
+        try:
+            self.store.request('DELETE', self.key, {'uploadId': self.upload_id}, accept=(404,))
+        except Exception as e:
+            LOGGER.debug(f"upload of {self.file_name} can't be aborted, it is by the next run: {e}")
+        self.upload_id = None
+
+
+def dataset_files(name, prefix):
+    return [prefix + f'{name}.csv', f'BASE_{name}.csv', f'FULL_{name}.csv']
+
+
+def keep_previous(file_names):
+    # a dataset not extracted by the run keeps its last published files, pushed rows stay as they are
+    kept = []
+    for file_name in file_names:
+        if os.path.exists(os.path.join(TMP_DIR, file_name)):
+            os.remove(os.path.join(TMP_DIR, file_name))
+        if STORE:
+            if STORE.keep(file_name):
+                kept.append(file_name)
+        elif not PUSHER and os.path.exists(os.path.join(OUTPUT_DIR, file_name)):
+            shutil.copy2(os.path.join(OUTPUT_DIR, file_name), os.path.join(TMP_DIR, file_name))
+            kept.append(file_name)
+    UPLOADER.submit(kept)
+
+
+def connect_to(host, port):
+    conn = psycopg2.connect(database=BBDD_SID, user=BBDD_USER, password=BBDD_PASSWORD, host=host, port=port,
+                            application_name=APPLICATION_NAME, connect_timeout=10)
+    configure_session(conn)
+    return conn
+
+
+def connect():
+    # connect to the chosen database, or to the next one available
+    endpoints = [(BBDD_HOST, BBDD_PORT)] + [tuple(endpoint) for endpoint in FAILOVER]
+    for position, (host, port) in enumerate(endpoints, start=1):
+        try:
+            return connect_to(host, port)
+        except psycopg2.OperationalError as e:
+            if position == len(endpoints):
+                raise
+            LOGGER.debug(f"database {host}:{port} not available, trying the next one: {e}")
+
+
+def load_queries():
+    # the datasets of the run, the ones that timed out recently last, and the intermediate queries
+    # they reference. Unknown or cyclic references fail the run before any dataset is extracted
+    global ORGS
+    ORGS = org_closure()
+    bind_filter(CONN)
+    with CONN.cursor() as cur:
+        cur.execute("""
+                    SELECT q.name, q.query, q.isetendobase, qc.query AS cust_query, q.keyset_page_size, mv.relname,
+                    q.isintermediate, qc.db_schema
+                    FROM etpbic_query q
+                    LEFT JOIN etpbic_query_custom qc ON q.etpbic_query_id = qc.etpbic_query_id 
+                    LEFT JOIN pg_class mv ON q.ismaterialized = 'Y' AND mv.relkind = 'm' AND mv.relispopulated
+                     AND mv.relname = 'etpbic_mv_' || left(md5(q.query), 24) AND pg_table_is_visible(mv.oid)
+                    WHERE q.isactive='Y' AND q.ad_client_id = %s AND q.ad_org_id = ANY(%s)""", (AD_CLIENT_ID, ORGS))
+        rows = cur.fetchall()
+    CONN.commit()
+    # the intermediate queries are not datasets, they are computed when a dataset references them
+    INTERMEDIATES['queries'] = {query_row[0]: query_row[1] for query_row in rows if query_row[6] == 'Y'}
+    INTERMEDIATES['views'] = {query_row[0]: query_row[5] for query_row in rows if query_row[6] == 'Y'}
+    queries = sorted([query_row for query_row in rows if query_row[6] != 'Y'],
+                     key=lambda query_row: query_row[0] in DEFERRED)
+    for query_row in queries:
+        intermediate_order(query_row[1] + (query_row[3] or ''))
+    return queries
+
+
+def targeted(name, query):
+    # a run restricted to the edited queries extracts their datasets and the ones reading an edited
+    # intermediate query, directly or through other intermediate queries
+    return not ONLY or name in ONLY or any(intermediate in ONLY for intermediate in intermediate_order(query))
+
+
+def valid_query(name, query):
+    # the datasets are filtered by the client and the organization columns of their query
+    isValidQuery = True
+    if CLIENT_FILTER.upper() not in query.upper():
+        isValidQuery = False
+        LOGGER.debug(f"{name} query does not contains ad_client_id column with 'ClientID' alias.")
+    if ORG_FILTER.upper() not in query.upper():
+        isValidQuery = False
+        LOGGER.debug(f"{name} query does not contains ad_org_id column with 'OrgID' alias.")
+    return isValidQuery
+
+
+def dataset_query(query, materialized_view):
+    # read the materialized view of the query once it is filled, instead of running the query
+    if materialized_view:
+        return sql.SQL("SELECT * FROM {view}").format(view=sql.Identifier(materialized_view)).as_string(CONN)
+    return query
+
+
+def estimate_query(query):
+    # the rows of a query, counted within the query timeout or estimated by the planner, the time
+    # the database takes to count them and the size of their csv file, measured in a sample. Runs
+    # with a connection of its own
+    conn = connect()
+    try:
+        conn.set_session(readonly=True)
+        with conn.cursor() as cur:
+            cur.execute("SELECT set_config('statement_timeout', %s, false)",
+                        (str((QUERY_TIMEOUT or PREVIEW_COUNT_TIMEOUT) * 1000),))
+            cur.execute(sql.SQL("EXPLAIN (FORMAT JSON) {}").format(sql.SQL(query)))
+            plan = cur.fetchone()[0][0]['Plan']
+            estimate = {'rows': int(plan['Plan Rows']), 'exact': False, 'cost': plan['Total Cost']}
+            conn.commit()
+            start = time.monotonic()
+            try:
+                cur.execute(sql.SQL("SELECT count(*) FROM ({}) AS q").format(sql.SQL(query)))
+                estimate.update(rows=cur.fetchone()[0], exact=True)
+            except psycopg2.extensions.QueryCanceledError:
+                # the count takes longer than the query timeout, the time is a minimum
+                conn.rollback()
+            estimate['db_ms'] = int((time.monotonic() - start) * 1000)
+            conn.commit()
+            cur.execute(sql.SQL("SELECT * FROM ({}) AS q LIMIT {}").format(sql.SQL(query),
+                                                                           sql.Literal(PREVIEW_SAMPLE_ROWS)))
+            sample = cur.fetchall()
+            columns = [desc[0] for desc in cur.description]
+        conn.commit()
+        body = io.StringIO()
+        writer = csv.writer(body, delimiter=csv_separator, lineterminator=os.linesep)
+        writer.writerow(columns)
+        header = len(body.getvalue().encode('utf-8'))
+        writer.writerows(sample)
+        row_bytes = (len(body.getvalue().encode('utf-8')) - header) / len(sample) if sample else plan['Plan Width']
+        estimate['bytes'] = header + int(row_bytes * estimate['rows'])
+        return estimate
+    except psycopg2.Error as e:
+        return {'error': str(e).strip()}
+    finally:
+        conn.close()
+
+
+def preview():
+    # dry run: estimates every dataset of the run, without extracting nor uploading anything, and
+    # prints a line per dataset for PreviewBiSync. The queries are estimated PREVIEW_CONCURRENCY at a
+    # time, and their estimates are reused for PREVIEW_CACHE_TTL. Returns the exit status
+    global CONN
+    CONN = None
+    try:
+        CONN = connect()
+        CONN.set_session(readonly=True)
+        # each query is estimated by its own connection, with its intermediate queries nested
+        INTERMEDIATES['can_create'] = False
+        cache = load_cache(PREVIEW_CACHE_FILE)
+        now = time.time()
+        estimates = {}
+        pending = []
+        for row in load_queries():
+            name = row[0]
+            if not valid_query(name, row[1]):
+                continue
+            query = filter_query(resolve_intermediates(dataset_query(row[1], row[5])))
+            # the filter of the query reads its client and organizations from the session
+            key = hashlib.sha256(f'{CONN.info.host}:{CONN.info.port}:{AD_CLIENT_ID}:{",".join(ORGS)}:{query}'
+                                 .encode('utf-8')).hexdigest()
+            cached = cache.get(key)
+            if cached and now - cached['time'] < PREVIEW_CACHE_TTL:
+                estimates[name] = dict(cached, cached=True)
+            else:
+                estimates[name] = None
+                pending.append((name, key, query))
+        with ThreadPoolExecutor(PREVIEW_CONCURRENCY) as executor:
+            results = list(executor.map(estimate_query, [query for name, key, query in pending]))
+        for (name, key, query), estimate in zip(pending, results):
+            estimates[name] = dict(estimate, cached=False)
+        save_cache(PREVIEW_CACHE_FILE, {key: dict(estimate, time=now) for (name, key, query), estimate
+                                        in zip(pending, results) if 'error' not in estimate})
+        for name, estimate in estimates.items():
+            LOGGER.debug(f"'{name}' estimate: {estimate}")
+            if 'error' in estimate:
+                print(f"{PREVIEW_LINE}_ERROR\t{name}\t{' '.join(estimate['error'].split())}")
+            else:
+                print(f"{PREVIEW_LINE}\t{name}\t{estimate['rows']}\t{'Y' if estimate['exact'] else 'N'}"
+                      f"\t{estimate['bytes']}\t{estimate['db_ms']}\t{'Y' if estimate['cached'] else 'N'}")
+        return 0
+    except Exception as e:
+        LOGGER.debug(f"Error estimating the run: {e}")
+        print(f"{PREVIEW_LINE}_ERROR\t\t{' '.join(str(e).split())}")
+        return 1
+    finally:
+        if CONN is not None:
+            CONN.close()
+
+
+start_ranges()
+start_watcher()
+if DRY_RUN:
+    sys.exit(preview())
 LOGGER.debug("connecting to database")
 try:
     # connect to db
-    CONN = psycopg2.connect(database=BBDD_SID, user=BBDD_USER, password=BBDD_PASSWORD, host=BBDD_HOST, port=BBDD_PORT)
+    CONN = connect()
     
     # set session to readonly
     CONN.set_session(readonly=True)
@@ -79,127 +1951,118 @@ try:
 
     LOGGER.debug("fetching base queries and their customizations")
     # fetch all queries from etpbic_query
-    CUR.execute(f"""
-                SELECT q.name, q.query, q.isetendobase, qc.query AS cust_query FROM etpbic_query q
-                LEFT JOIN etpbic_query_custom qc ON q.etpbic_query_id = qc.etpbic_query_id 
-                WHERE q.isactive='Y' AND q.ad_client_id = '{AD_CLIENT_ID}'
-                AND (ad_isorgincluded(q.ad_org_id, '{AD_ORG_ID}', '{AD_CLIENT_ID}')<>-1 OR q.ad_org_id = '0')""")
+    QUERIES = load_queries()
+    post_run_event('config-resolved', count=len(QUERIES))
+
+    # check the server and upload the datasets as they are written, or push their rows
+    if PUSH_URL:
+        UPLOADER = PUSHER = HttpPusher()
+    elif S3_BUCKET:
+        UPLOADER = STORE = S3Store()
+    else:
+        UPLOADER = Uploader()
 
     # iterate over the rows and execute the queries
-    for row in CUR.fetchall():
+    for query_index, row in enumerate(QUERIES, start=1):
         name = row[0]
         query = row[1]
         isetendobase = row[2]
         custom_query = row[3]
+        custom_schema = row[7]
+        page_size = int(row[4] or 0)
+        materialized_view = row[5]
 
-        isValidQuery = True
-        
-        # filter by ad_client_id
-        if CLIENT_FILTER.upper() not in query.upper():            
-            isValidQuery = False
-            LOGGER.debug(f"{name} query does not contains ad_client_id column with 'ClientID' alias.")
-            
-        # filter by ad_client_id
-        if ORG_FILTER.upper() not in query.upper():            
-            isValidQuery = False
-            LOGGER.debug(f"{name} query does not contains ad_org_id column with 'OrgID' alias.")
-            
-        if not isValidQuery:
+        if not valid_query(name, query):
             continue;
 
-        # executes query
-        LOGGER.debug(f'executing \'{name}\' base query')
-        
-        filtered_query = f"""
-        SELECT * FROM ({query}) AS q WHERE q.clientid = '{AD_CLIENT_ID}'
-        AND (ad_isorgincluded(q.orgid, '{AD_ORG_ID}', '{AD_CLIENT_ID}')<>-1 OR q.orgid = '0')""" 
-
-        CUR.execute(filtered_query)
-        result1 = CUR.fetchall() 
-
-        # set original query dataframe
-        df1 = pd.DataFrame(result1, columns=[desc[0] for desc in CUR.description])
-
-        df2 = None
-        # executes custom query
-        if custom_query:
-            LOGGER.debug("executing " + f'\'{name}\'custom query')
-            CUR.execute(custom_query)
-            result2 = CUR.fetchall()
-            # set custom query dataframe
-            df2 = pd.DataFrame(result2, columns=[desc[0] for desc in CUR.description])
-            cols = []
-            pk = df1.columns[0]
-            for c in df1.columns:
-                if c in df2.columns:
-                    cols.append(c) 
-                    if pk != c:
-                        del df1[c]
-            df3 = df2[cols]
-            LOGGER.debug("BASE merging for " + f'\'{name}\' query')
-            # BASE
-            if pk in df3:
-                df4 = pd.merge(df1, df3, how='left', on=[pk, pk])
-                LOGGER.debug("creating BASE_" + f'{name}.csv file')
-                df4.to_csv(os.path.join(TMP_DIR, 'BASE_' + f'{name}.csv'), index = False, sep=csv_separator)
-            else:
-                LOGGER.debug("pk not found")
-
-            LOGGER.debug("FULL merging for " + f'\'{name}\' query')
-            # FULL
-            if pk in df2:
-                df4 = pd.merge(df1, df2, how='left', on=[pk, pk])
-                LOGGER.debug("creating FULL_" + f'{name}.csv file')
-                df4.to_csv(os.path.join(TMP_DIR, 'FULL_' + f'{name}.csv'), index = False, sep=csv_separator)
-            else:
-                LOGGER.debug('pk not found')
-        else:
-            LOGGER.debug("custom query not found for original query " + f'\'{name}\'' + ".")
+        if materialized_view:
+            LOGGER.debug(f"'{name}' query is materialized, reading it from {materialized_view}")
+        query = dataset_query(query, materialized_view)
 
         PREFIX = CLIENT_PREFIX + "_" if (isetendobase == 'N') else "EBI_"
-        df1.to_csv(os.path.join(TMP_DIR, PREFIX + f'{name}.csv'), index = False, sep=csv_separator)
-        
-    # Test server connection
-    TEST_COMMAND = f'ssh {"-i" if PRIVATE_KEY_PATH != "" else ""} {PRIVATE_KEY_PATH} -o StrictHostKeyChecking=no {USER}@{IP} -p {PORT} "echo 1"'
-    TEST_RESULT = subprocess.run(TEST_COMMAND, shell=True, capture_output=True)
-    TEST_OUTPUT = TEST_RESULT.stdout.strip().decode()
-    if TEST_OUTPUT == "1":
-        LOGGER.debug(f'{IP} is reachable')
-    else:
-        LOGGER.debug(f'{IP} is not reachable')
-        raise Exception(f'{IP} is not reachable')
-
+        if name in SKIPPED:
+            LOGGER.debug(f"'{name}' query timed out in its last runs, skipping it")
+            keep_previous(dataset_files(name, PREFIX))
+            post_run_event('query-skipped', dataset=name, index=query_index)
+            continue
+        if not targeted(name, row[1] + (custom_query or '')):
+            LOGGER.debug(f"'{name}' query didn't change, keeping its last files")
+            keep_previous(dataset_files(name, PREFIX))
+            post_run_event('query-kept', dataset=name, index=query_index)
+            continue
 
-    # Check if PATH exists in the server
-    PATH_VERIFICATION = f'ssh {"-i" if PRIVATE_KEY_PATH != "" else ""} {PRIVATE_KEY_PATH} -o StrictHostKeyChecking=no {USER}@{IP} -p {PORT} "test -d \'{PATH}\' && echo 1"'
-    VERIFICATION_RESULT = subprocess.run(PATH_VERIFICATION, shell=True, capture_output=True)
-    VERIFICATION_OUTPUT = VERIFICATION_RESULT.stdout.strip().decode()
-    
-    if VERIFICATION_OUTPUT == "1":
-        LOGGER.debug(f"{PATH} exists in the server")
-    else:
-        LOGGER.debug(f"{PATH} does not exist in the server")
-        raise Exception(f"{PATH} does not exist in the server")
-    
-    # Create client and org directories if not exists
-    PATH_CREATION = f'ssh {"-i" if PRIVATE_KEY_PATH != "" else ""} {PRIVATE_KEY_PATH} -o StrictHostKeyChecking=no {USER}@{IP} -p {PORT} "test -d {PATH}{client}/{org_name} && echo 1"'
-    PATH_CREATION_RESULT = subprocess.run(PATH_CREATION, shell=True, capture_output=True)
-    PATH_CREATION_OUTPUT = PATH_CREATION_RESULT.stdout.strip().decode()
+        # executes query
+        LOGGER.debug(f'executing \'{name}\' base query')
+        post_run_event('query-started', dataset=name, index=query_index)
+        query_start = time.monotonic()
+        PACING['paused'] = 0.0
+        STOP['deadline'] = query_start + QUERY_TIMEOUT if QUERY_TIMEOUT else None
+        limit_statements(CONN)
 
-    
-    if PATH_CREATION_OUTPUT != "1":
-        CREATE_PATH = f'ssh {"-i" if PRIVATE_KEY_PATH != "" else ""} {PRIVATE_KEY_PATH} -o StrictHostKeyChecking=no {USER}@{IP} -p {PORT} "mkdir -p {PATH}{client}/{org_name}"'
-        subprocess.run(CREATE_PATH, shell=True, capture_output=True)
-        LOGGER.debug(f"created {PATH}{client}/{org_name} in the server")
+        try:
+            query = resolve_intermediates(query)
+            if custom_query:
+                custom_query = resolve_intermediates(custom_query)
+            filtered_query = filter_query(query)
+            if custom_query and page_size:
+                # the merge with the custom query needs the whole base query, it can't be split in pages
+                LOGGER.debug(f"'{name}' query has a customization, it is not extracted in pages of {page_size} rows")
 
+            if custom_query and custom_schema:
+                # the custom query is not found in the search path of the run, it can't be joined there
+                LOGGER.debug(f"'{name}' custom query runs in schema {custom_schema}, merging it in the script")
+                rows = merge_in_script(name, PREFIX, filtered_query, query_columns(filtered_query), custom_query,
+                                       custom_schema)
+            elif custom_query:
+                base_columns = query_columns(filtered_query)
+                try:
+                    rows = merge_in_database(name, PREFIX, filtered_query, base_columns, custom_query)
+                except psycopg2.Error as e:
+                    if isinstance(e, psycopg2.extensions.QueryCanceledError):
+                        raise
+                    # for example, custom queries that can't be nested or whose key has another type
+                    LOGGER.debug(f"{name} custom query can't be merged in the database, merging in the script: {e}")
+                    CONN.rollback()
+                    rows = merge_in_script(name, PREFIX, filtered_query, base_columns, custom_query)
+            elif page_size:
+                LOGGER.debug(f"custom query not found for original query '{name}', extracting it in pages of {page_size} rows")
+                rows = export_pages(PREFIX + f'{name}.csv', filtered_query, page_size)
+            else:
+                LOGGER.debug("custom query not found for original query " + f'\'{name}\'' + ".")
+                rows = None
+                # files streamed to a remote destination are written by a single process
+                # and the temporary tables of the intermediate queries are only seen by the run
+                if PARALLEL_WORKERS > 1 and not (STORE or PUSHER) and not uses_temporary_tables(row[1]):
+                    rows = export_ranges(PREFIX + f'{name}.csv', filtered_query)
+                if rows is None:
+                    rows = export_query(filtered_query, [(PREFIX + f'{name}.csv', None, None)])
+            CONN.commit()
+            end_query()
+            pause()
+        except (Stopped, psycopg2.extensions.QueryCanceledError) as e:
+            reason = stop_reason()
+            if reason != 'query-timeout':
+                raise Stopped(reason) from e
+            # the rest of the run goes on, the dataset keeps its last files
+            LOGGER.debug(f"'{name}' query timed out after {QUERY_TIMEOUT}s, it will be extracted last in the next runs")
+            CONN.rollback()
+            end_query()
+            keep_previous(dataset_files(name, PREFIX))
+            post_run_event('query-timeout', dataset=name, index=query_index)
+            ship_log()
+            continue
+        post_run_event('query-done', dataset=name, index=query_index, rows=rows,
+                       elapsed=int((time.monotonic() - query_start - PACING['paused']) * 1000))
+        # the files are uploaded while the next query runs
+        UPLOADER.submit([file_name for file_name in dataset_files(name, PREFIX)
+                         if os.path.exists(os.path.join(TMP_DIR, file_name))])
+        ship_log()
+        
+    check_stop()
     # SEND FILES TO THE SERVER
-    filesAmt = len(os.listdir(TMP_DIR))
-    LOGGER.debug(f"sending {filesAmt} files to cloud for client {client} to {IP}")
-    DST = f'{USER}@{IP}:{PATH}{client}/{org_name}/' 
-    OPTIONS = f'-av {"--delete" if filesAmt > 0 else ""} -e "ssh -p {PORT} {"-i" if PRIVATE_KEY_PATH != "" else ""} {PRIVATE_KEY_PATH} -o StrictHostKeyChecking=no"' # do not delete if no files being uploaded
-    COMMAND = f'rsync {OPTIONS} {TMP_DIR}/ {DST} >> "{LOG_DIR}/rsync_$(date +%Y-%m-%d).log" 2>&1'
-    LOGGER.debug("executing rsync")
-    subprocess.run(COMMAND, shell=True, check=True)
+    LOGGER.debug(f"waiting for the upload of the last files to {PUSH_URL or S3_BUCKET or IP}")
+    post_run_event('upload-started', dataset='')
+    UPLOADER.publish()
 
     # Remove tmp directory and rename output directory
     LOGGER.debug("setting tmp directory as output directory")
@@ -207,69 +2070,28 @@ try:
     os.rename(TMP_DIR, OUTPUT_DIR)
 
     # Send logs to BI
-    logtype="Success"
-    lines = ""
-    description = ""
-    with open(LOG_FILE, 'r') as log:
-        lines = log.readlines()
-    for line in lines:
-        description += line.strip() + '\n'
     LOGGER.debug("sending logs to BI Logs window")
-    LOGGER.debug(f"DESCRIPTION: {description}")
-
-    params = {
-        'name': WEBHOOK_NAME,
-        'apikey': WEBHOOK_APIKEY,
-        'description': description,
-        'organization': AD_ORG_ID,
-        'client': AD_CLIENT_ID,
-        'logtype': logtype,
-        'rule': RULE_ID
-    }
-    response = requests.get(WEBHOOKS_URL, params=params)
+    ship_log("Success")
+    post_run_event('done', status='Success')
 
+except Stopped as e:
+    LOGGER.debug(f"run stopped: {e.args[0]}")
+    shutil.rmtree(TMP_DIR)
+    ship_log("Error")
+    post_run_event(e.args[0], status='Cancelled' if e.args[0] == 'cancelled' else 'Error')
 except psycopg2.Error as e:
     LOGGER.debug("Database related error: " + e.args[0])
-    logtype="Error"
-    lines=""
-    description=""
-    with open(LOG_FILE, 'r') as log:
-        lines = log.readlines()
-    for line in lines:
-        description += line.strip() + '\n'
     shutil.rmtree(TMP_DIR)
-    
-    params = {
-        'name': WEBHOOK_NAME,
-        'apikey': WEBHOOK_APIKEY,
-        'description': description,
-        'organization': AD_ORG_ID,
-        'client': AD_CLIENT_ID,
-        'logtype': logtype,
-        'rule': RULE_ID
-    }
-    response = requests.get(WEBHOOKS_URL, params=params)
+    ship_log("Error")
+    post_run_event('failed', status='Error')
 except Exception as e:
     LOGGER.debug("Error occurred: " + e.args[0])
-    logtype="Error"
-    lines=""
-    description=""
-    with open(LOG_FILE, 'r') as log:
-        lines = log.readlines()
-    for line in lines:
-        description += line.strip() + '\n'
     shutil.rmtree(TMP_DIR)
-    params = {
-        'name': WEBHOOK_NAME,
-        'apikey': WEBHOOK_APIKEY,
-        'description': description,
-        'organization': AD_ORG_ID,
-        'client': AD_CLIENT_ID,
-        'logtype': logtype,
-        'rule': RULE_ID
-    }
-    response = requests.get(WEBHOOKS_URL, params=params)
+    ship_log("Error")
+    post_run_event('failed', status='Error')
 finally:
     LOGGER.debug("closing database connections")
     CUR.close()
     CONN.close()
+    if RANGES['pool'] is not None:
+        RANGES['pool'].terminate()